@@ -0,0 +1,301 @@
+/**
+ * @author David Morin
+ * This class holds the greedy step shared by KCapFL and KCapFLND: a heap of
+ * candidate clusters keyed by their radius, each the nearest neighbors of a
+ * center. A popped candidate is committed if its members are all unassigned;
+ * otherwise its center is offered again with the live part of its cached
+ * neighbors, or with a fresh query once fewer than capacity remain. The
+ * subclasses store the points and the kdTree, and decide how the members of
+ * a candidate are represented
+ * @param <M>: the type of a list of members
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.BitSet;
+
+abstract class CandidateHeap<M> {
+	
+	int capacity;
+	int overfetch; // candidate lists hold overfetch * capacity neighbors
+	boolean compact; // heap entries keep only their center, not their members
+	LeftistHeap<Double, Candidate> heap;
+	BitSet assigned; // ids of the points committed to a cluster or removed
+	int[] versions; // bumped when a center's candidate is replaced
+	long pops; // heap entries popped by extraction
+	long commits; // heap entries committed as clusters
+	
+	/**
+	 * A candidate cluster stored in the heap: the k-nearest neighbors of a center
+	 */
+	class Candidate {
+		int center; // id of the center point
+		int version; // version of the center when this candidate was computed
+		M members; // the nearest neighbors of the center, in order (null if compact)
+		
+		/**
+		 * Constructor
+		 */
+		public Candidate(int center, int version, M members) {
+			this.center = center;
+			this.version = version;
+			this.members = members;
+		}
+		
+		public String toString() {
+			return describe(center, members);
+		}
+	}
+	
+	/**
+	 * Constructor
+	 * @param capacity: Maximum capacity of any service center
+	 */
+	CandidateHeap(int capacity) {
+		this.capacity = capacity;
+		this.overfetch = 1;
+		this.compact = false;
+		this.heap = new LeftistHeap<>();
+		this.assigned = new BitSet();
+		this.versions = new int[0];
+		this.pops = 0;
+		this.commits = 0;
+	}
+	
+	/**
+	 * @return the number of points in a list of members
+	 */
+	abstract int size(M members);
+	
+	/**
+	 * @return the id of the i-th point of a list of members
+	 */
+	abstract int id(M members, int i);
+	
+	/**
+	 * @return the squared distance from a center to the i-th point of a list
+	 * of members
+	 */
+	abstract double distanceSq(int center, M members, int i);
+	
+	/**
+	 * @return the k nearest unassigned points of a center, in order
+	 */
+	abstract M nearest(int center, int k);
+	
+	/**
+	 * @return the first n points of a list of members
+	 */
+	abstract M prefix(M members, int n);
+	
+	/**
+	 * @return the unassigned points of a list of members, in order
+	 */
+	abstract M live(M members);
+	
+	/**
+	 * Deletes the points of a committed cluster from the kdTree
+	 * @throws Exception if a point is not in the kdTree
+	 */
+	abstract void delete(M members) throws Exception;
+	
+	/**
+	 * @return the heap list representation of a candidate
+	 */
+	abstract String describe(int center, M members);
+	
+	/**
+	 * Called for every candidate inserted into the heap, before it is inserted
+	 * @param center: the id of the center
+	 * @param reach: the squared distance to its last cached neighbor
+	 */
+	void reached(int center, double reach) {
+	}
+	
+	/**
+	 * Sets how many neighbors are cached per center, as a multiple of the
+	 * capacity. When a candidate turns out to be stale its consumed points are
+	 * filtered out of the cache, and the kdTree is only queried again once fewer
+	 * than capacity cached points remain. Takes effect for candidates computed
+	 * after the call
+	 * @param overfetch: the cache size factor (at least 1, the default)
+	 */
+	public void setOverfetch(int overfetch) {
+		this.overfetch = Math.max(1, overfetch);
+	}
+	
+	/**
+	 * Switches the memory-lean mode on or off. In compact mode a heap entry only
+	 * holds its center id and squared radius, so the heap takes O(n) space
+	 * instead of O(n * capacity). The members of a cluster are recomputed with
+	 * one k-nearest neighbor query when its entry is popped, and the entry is
+	 * committed if the radius has not grown in the meantime. Overfetching is
+	 * ignored in compact mode. Takes effect for candidates computed after the call
+	 * @param compact: true to keep only centers in the heap
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+	
+	/**
+	 * Removes the candidate with the smallest radius from the heap
+	 * @return the candidate (the heap must not be empty)
+	 */
+	Candidate pop() {
+		pops++;
+		
+		try {
+			return heap.extractMin();
+		} catch (Exception e) {
+			// callers check that the heap is not empty
+			throw new IllegalStateException("Heap is empty", e);
+		}
+	}
+	
+	/**
+	 * Handles a candidate popped from the heap: commits it if its members are
+	 * all unassigned, and otherwise offers a repaired candidate for its center
+	 * @param min: the popped candidate
+	 * @param key: the heap key of the candidate
+	 * @return the committed cluster, or null if the candidate was stale
+	 */
+	M process(Candidate min, double key) {
+		if(min.version != versions[min.center]) {
+			return null; // superseded by a newer candidate for the same center
+		}
+		
+		M minList = min.members;
+		
+		if(minList == null) { // compact entry: recompute its members
+			if(assigned.get(min.center)) {
+				return null;
+			}
+			
+			minList = nearest(min.center, capacity);
+			double distance = distanceSq(min.center, minList, size(minList) - 1);
+			
+			if(distance > key) {
+				insert(min.center, distance, distance, null);
+				return null;
+			}
+		}
+		
+		if(isFree(minList, null)) {
+			M cluster = firstCluster(minList);
+			
+			commit(cluster);
+			commits++;
+			reofferCenter(min.center);
+			return cluster;
+		}
+		
+		if(!assigned.get(min.center)) {
+			minList = live(minList);
+			
+			if(size(minList) < capacity) {
+				minList = neighbors(min.center);
+			}
+			
+			offer(min.center, minList);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Assigns the points of one or more clusters and deletes them from the kdTree
+	 * @param members: the points to commit
+	 */
+	void commit(M members) {
+		for(int i = 0; i < size(members); i++) {
+			assigned.set(id(members, i));
+		}
+		
+		try {
+			delete(members);
+		} catch (Exception e) {
+			// members are live, so they are in the kdTree and delete cannot fail
+			throw new IllegalStateException("kdTree and heap out of sync", e);
+		}
+	}
+	
+	/**
+	 * Offers a new candidate for a center left out of the cluster it just
+	 * committed, which happens when it has more than capacity coincident copies
+	 * @param center: the id of the center
+	 */
+	void reofferCenter(int center) {
+		if(!assigned.get(center)) {
+			offer(center, neighbors(center));
+		}
+	}
+	
+	/**
+	 * Checks whether the cluster of a candidate is still available
+	 * @param members: the cached nearest neighbors of the center, in order
+	 * @param claimed: the ids already picked in the current round, or null
+	 * @return true if the first capacity members are all unassigned and unclaimed
+	 */
+	boolean isFree(M members, BitSet claimed) {
+		int size = Math.min(capacity, size(members));
+		
+		for(int i = 0; i < size; i++) {
+			int id = id(members, i);
+			
+			if(assigned.get(id) || (claimed != null && claimed.get(id))) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return the first capacity members of a candidate (the list itself if it
+	 * holds no more)
+	 */
+	M firstCluster(M members) {
+		if(capacity < size(members)) {
+			return prefix(members, capacity);
+		}
+		
+		return members;
+	}
+	
+	/**
+	 * Computes the cached neighbor list of a center
+	 * @param center: the id of the center
+	 * @return the overfetch * capacity nearest neighbors of center, or just
+	 * the capacity nearest in compact mode
+	 */
+	M neighbors(int center) {
+		return nearest(center, compact ? capacity : capacity * overfetch);
+	}
+	
+	/**
+	 * Inserts a candidate cluster for a center into the heap, keyed by the
+	 * squared distance from the center to its capacity-th nearest neighbor
+	 * @param center: the id of the center
+	 * @param members: the cached nearest neighbors of the center, in order
+	 */
+	void offer(int center, M members) {
+		double distance = distanceSq(center, members, Math.min(capacity, size(members)) - 1);
+		
+		// a new point can only change this candidate if it lands inside the cache
+		double reach = distanceSq(center, members, size(members) - 1);
+		
+		insert(center, distance, reach, compact ? null : members);
+	}
+	
+	/**
+	 * Inserts a candidate into the heap
+	 * @param center: the id of the center
+	 * @param distance: the squared radius of the candidate cluster (heap key)
+	 * @param reach: the squared distance to the last cached neighbor
+	 * @param members: the cached nearest neighbors, or null in compact mode
+	 */
+	void insert(int center, double distance, double reach, M members) {
+		reached(center, reach);
+		heap.insert(distance, new Candidate(center, versions[center], members));
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * @author David Morin
+ * This class makes an XkdTree safe to share between threads. Readers query the
+ * latest published snapshot of the tree without taking a lock, so they never
+ * wait for each other or for a writer. Writers are serialized: each one changes
+ * the working tree, which copies the nodes on the paths it modifies rather than
+ * the nodes readers may be using, and then publishes the result as the new
+ * snapshot. A reader therefore always sees the tree as it was between two writes
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+public class ConcurrentXkdTree<LPoint extends LabeledPoint2D> {
+	
+	/**
+	 * A group of changes published together as a single version
+	 */
+	public interface Update<LPoint extends LabeledPoint2D> {
+		void apply(XkdTree<LPoint> tree) throws Exception;
+	}
+	
+	private XkdTree<LPoint> tree; // the working version, only used while holding the lock
+	private volatile XkdTree<LPoint>.Snapshot current; // the latest published version
+	
+	/**
+	 * Constructor
+	 * @param bucketSize: the maximum amount of points an ExternalNode can store
+	 * @param bbox: the bounding box for the xkdTree
+	 */
+	public ConcurrentXkdTree(int bucketSize, Rectangle2D bbox) {
+		this.tree = new XkdTree<>(bucketSize, bbox);
+		this.current = tree.snapshot();
+	}
+	
+	/**
+	 * Attaches a metrics collector to the tree. Should be called before the
+	 * tree is shared with other threads
+	 * @param metrics: the collector, or null to disable instrumentation
+	 */
+	public synchronized void setMetrics(SolverMetrics metrics) {
+		tree.setMetrics(metrics);
+	}
+	
+	/**
+	 * Sets the live fraction below which a subtree is rebuilt by deletions
+	 * @param fraction: the fraction, or 0 to never rebuild
+	 */
+	public synchronized void setRebuildThreshold(double fraction) {
+		tree.setRebuildThreshold(fraction);
+	}
+	
+	/**
+	 * @return the latest published version of the tree, which can be used to
+	 * run several queries against the same points
+	 */
+	public XkdTree<LPoint>.Snapshot snapshot() {
+		return current;
+	}
+	
+	/**
+	 * Applies a group of changes to the tree and publishes them as one version.
+	 * The tree passed to the update must not be used after it returns
+	 * @param update: the changes
+	 * @throws Exception if the update throws (the tree is then rolled back to
+	 * the latest published version, and none of the changes are published)
+	 */
+	public synchronized void update(Update<LPoint> update) throws Exception {
+		try {
+			update.apply(tree);
+		} catch (Throwable e) {
+			tree.restore(current);
+			throw e;
+		}
+		
+		current = tree.snapshot();
+	}
+	
+	/**
+	 * Removes all the points
+	 */
+	public synchronized void clear() {
+		tree.clear();
+		current = tree.snapshot();
+	}
+	
+	/**
+	 * Inserts a point
+	 * @param pt: the point being inserted
+	 * @throws Exception if the point is outside the bounding box
+	 */
+	public void insert(LPoint pt) throws Exception {
+		update((t) -> t.insert(pt));
+	}
+	
+	/**
+	 * Inserts a list of points as one version
+	 * @param pts: the points being inserted
+	 * @throws Exception if a point is outside the bounding box
+	 */
+	public void bulkInsert(ArrayList<LPoint> pts) throws Exception {
+		update((t) -> t.bulkInsert(pts));
+	}
+	
+	/**
+	 * Deletes a point at the given coordinates
+	 * @param pt: the coordinates of the point
+	 * @throws Exception if there is no point at pt
+	 */
+	public void delete(Point2D pt) throws Exception {
+		update((t) -> t.delete(pt));
+	}
+	
+	/**
+	 * Deletes this particular point
+	 * @param pt: the point
+	 * @throws Exception if the point is not in the tree
+	 */
+	public void delete(LPoint pt) throws Exception {
+		update((t) -> t.delete(pt));
+	}
+	
+	/**
+	 * Deletes a batch of points, given by their coordinates, as one version
+	 * @param pts: the coordinates of the points
+	 * @throws Exception if some of the points were not found (none are deleted)
+	 */
+	public void deleteAll(Collection<Point2D> pts) throws Exception {
+		update((t) -> t.deleteAll(pts));
+	}
+	
+	/**
+	 * Deletes a batch of particular points as one version
+	 * @param pts: the points
+	 * @throws Exception if some of the points were not found (none are deleted)
+	 */
+	public void deleteAllPoints(Collection<? extends LPoint> pts) throws Exception {
+		update((t) -> t.deleteAllPoints(pts));
+	}
+	
+	/**
+	 * @return the number of points in the latest version
+	 */
+	public int size() {
+		return current.size();
+	}
+	
+	/**
+	 * Determines whether a point occurs within the latest version
+	 * @param q: the point that is being searched for
+	 * @return the associated LPoint if the point occurs, otherwise null
+	 */
+	public LPoint find(Point2D q) {
+		return current.find(q);
+	}
+	
+	/**
+	 * Finds the point of the latest version closest to a query point
+	 * @param center: the query point
+	 * @return the closest LPoint, or null if the tree is empty
+	 */
+	public LPoint nearestNeighbor(Point2D center) {
+		return current.nearestNeighbor(center);
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of a point in the latest version
+	 * @param center: the query point
+	 * @param k: the number of neighbors
+	 * @return the k nearest neighbors of center in order of increasing distance
+	 */
+	public ArrayList<LPoint> kNearestNeighbor(Point2D center, int k) {
+		return current.kNearestNeighbor(center, k);
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of a point in the latest version into
+	 * a buffer owned by the calling thread
+	 * @param center: the query point
+	 * @param k: the number of neighbors
+	 * @param result: receives the neighbors in order of increasing distance
+	 * @return the number of neighbors found
+	 */
+	public int kNearestNeighbor(Point2D center, int k, XkdTree.NeighborBuffer<LPoint> result) {
+		return current.kNearestNeighbor(center, k, result);
+	}
+	
+	/**
+	 * @return the points of the latest version within radius of center
+	 */
+	public ArrayList<LPoint> withinRadius(Point2D center, double radius) {
+		return current.withinRadius(center, radius);
+	}
+	
+	/**
+	 * @return the number of points of the latest version within radius of center
+	 */
+	public int countWithinRadius(Point2D center, double radius) {
+		return current.countWithinRadius(center, radius);
+	}
+	
+	/**
+	 * @return the points of the latest version in the rectangle
+	 */
+	public ArrayList<LPoint> inRectangle(Rectangle2D rect) {
+		return current.inRectangle(rect);
+	}
+	
+	/**
+	 * @return the number of points of the latest version in the rectangle
+	 */
+	public int countInRectangle(Rectangle2D rect) {
+		return current.countInRectangle(rect);
+	}
+	
+	/**
+	 * @return an ArrayList<String> representation of the latest version
+	 */
+	public ArrayList<String> list() {
+		return current.list();
+	}
+}
@@ -0,0 +1,413 @@
+/**
+ * @author David Morin
+ * This class solves the k-capacitated facility location problem for point sets
+ * that do not fit on the Java heap. The coordinates are read from a memory-mapped
+ * file, the points are partitioned into spatial tiles spilled to disk as id
+ * files, and only one tile at a time is turned into objects and solved with KCapFL
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Consumer;
+
+public class ExternalKCapFL<LPoint extends LabeledPoint2D> {
+	
+	/**
+	 * Creates the point object of a record of the input file
+	 */
+	public interface PointFactory<LPoint> {
+		LPoint create(long index, double x, double y);
+	}
+	
+	private static final int RECORD_BYTES = 16; // x and y, as big-endian doubles
+	private static final long MAX_MAP = (Integer.MAX_VALUE / RECORD_BYTES) * RECORD_BYTES; // bytes per mapping
+	private static final int MAX_ROUNDS = 4; // tiling rounds in a row that may commit no cluster before giving up
+	private static final int BUFFER_BYTES = 4096; // stream buffer per open tile file
+	private static final int MAX_GRID = 16; // tiles per side in one pass, bounds the open tile files
+	
+	private int capacity;
+	private int bucketSize;
+	private Rectangle2D bbox;
+	private int maxPoints; // the most points turned into objects at one time
+	private PointFactory<LPoint> factory;
+	private Path workDir;
+	private MappedByteBuffer[] chunks; // the mapped input file
+	
+	/**
+	 * Constructor
+	 * @param capacity: Maximum capacity of any service center
+	 * @param bucketSize: the maximum bucket size for the kdTrees
+	 * @param bbox: the bounding box of all points
+	 * @param maxPoints: the most points solved in memory at one time, which bounds
+	 * the heap used by the kdTree, the candidate lists and the heap of each tile
+	 * @param factory: creates the point objects of the records being solved
+	 * @param workDir: the directory for the spill files
+	 */
+	public ExternalKCapFL(int capacity, int bucketSize, Rectangle2D bbox, int maxPoints,
+						  PointFactory<LPoint> factory, Path workDir) {
+		this.capacity = capacity;
+		this.bucketSize = bucketSize;
+		this.bbox = bbox;
+		this.maxPoints = Math.max(maxPoints, 4 * capacity);
+		this.factory = factory;
+		this.workDir = workDir;
+	}
+	
+	/**
+	 * Solves the problem for the points of a file. The points are tiled so that
+	 * each tile holds at most maxPoints points, every tile commits the clusters
+	 * that stay inside it, and the leftovers are tiled again with a shifted grid
+	 * until they fit in memory, when they are solved together
+	 * @param points: a file of (x, y) records written with DataOutputStream.writeDouble
+	 * @param sink: receives the clusters as soon as they are committed
+	 * @return the number of clusters extracted
+	 * @throws Exception if the number of points is zero or not evenly divisible
+	 * by the capacity, if MAX_ROUNDS rounds in a row commit no cluster while the
+	 * leftovers still exceed maxPoints, or if the files cannot be read or written
+	 */
+	public long solve(Path points, Consumer<? super ArrayList<LPoint>> sink) throws Exception {
+		long n;
+		
+		try(FileChannel channel = FileChannel.open(points, StandardOpenOption.READ)) {
+			n = channel.size() / RECORD_BYTES;
+			chunks = new MappedByteBuffer[(int) ((n * RECORD_BYTES + MAX_MAP - 1) / MAX_MAP)];
+			
+			for(int i = 0; i < chunks.length; i++) {
+				long start = i * MAX_MAP;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_MAP, n * RECORD_BYTES - start));
+			}
+		}
+		
+		if(n == 0 || (n % capacity) != 0) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		Path input = Files.createTempFile(workDir, "kcapfl", ".ids");
+		try(DataOutputStream out = open(input)) {
+			for(long i = 0; i < n; i++) {
+				out.writeLong(i);
+			}
+		}
+		
+		long[] clusters = new long[1];
+		Consumer<ArrayList<LPoint>> counted = (cluster) -> {
+			clusters[0]++;
+			sink.accept(cluster);
+		};
+		
+		long count = n;
+		int stalled = 0; // rounds in a row that committed no cluster
+		
+		try {
+			for(int round = 0; count > maxPoints; round++) {
+				if(stalled == MAX_ROUNDS) {
+					throw new Exception("Leftover points exceed the memory budget");
+				}
+				
+				Path leftovers = Files.createTempFile(workDir, "kcapfl", ".ids");
+				long[] left = new long[1];
+				
+				try(DataOutputStream out = open(leftovers)) {
+					partition(input, count, bbox, bbox, round, counted, out, left);
+				}
+				
+				Files.delete(input);
+				input = leftovers;
+				stalled = (left[0] == count) ? stalled + 1 : 0;
+				count = left[0];
+			}
+			
+			if(count > 0) {
+				KCapFL<LPoint> solver = new KCapFL<>(capacity, bucketSize, bbox);
+				solver.build(load(input, count, null));
+				solver.extractAll(counted);
+			}
+		} finally {
+			Files.deleteIfExists(input);
+			chunks = null;
+		}
+		
+		return clusters[0];
+	}
+	
+	/**
+	 * Splits a set of points into a grid of tiles small enough to be solved in
+	 * memory, solving the small tiles and splitting the large ones further. The
+	 * cuts divide the bounding box of the points rather than the whole region,
+	 * so a large tile shrinks at every level even if all its points fall into
+	 * one tile, until they are all at the same location
+	 * @param ids: the file of the point ids
+	 * @param count: the number of ids in the file (more than maxPoints)
+	 * @param region: the region the tiles cover, holding no other points
+	 * @param box: the bounding box of the points, or any box inside region
+	 * that contains them
+	 * @param round: the tiling round, odd rounds shift the grid by half a tile
+	 * @param sink: receives the committed clusters
+	 * @param leftovers: receives the ids of the points not committed
+	 * @param left: counts the ids written to leftovers
+	 * @throws Exception if the files cannot be read or written
+	 */
+	private void partition(Path ids, long count, Rectangle2D region, Rectangle2D box, int round,
+						   Consumer<ArrayList<LPoint>> sink, DataOutputStream leftovers, long[] left) throws Exception {
+		int grid = (int) Math.min(MAX_GRID, Math.ceil(Math.sqrt(2.0 * count / maxPoints)));
+		double shift = (round % 2 == 1) ? 0.5 : 0;
+		int cols = (shift > 0) ? grid + 1 : grid;
+		
+		Path[] files = new Path[cols * cols];
+		DataOutputStream[] outs = new DataOutputStream[cols * cols];
+		long[] counts = new long[cols * cols];
+		double[][] low = new double[2][cols * cols]; // bounding box of the points of each tile
+		double[][] high = new double[2][cols * cols];
+		
+		for(int dim = 0; dim < 2; dim++) {
+			Arrays.fill(low[dim], Double.POSITIVE_INFINITY);
+			Arrays.fill(high[dim], Double.NEGATIVE_INFINITY);
+		}
+		
+		try {
+			for(int t = 0; t < files.length; t++) {
+				files[t] = Files.createTempFile(workDir, "tile", ".ids");
+				outs[t] = open(files[t]);
+			}
+			
+			try(DataInputStream in = read(ids)) {
+				for(long i = 0; i < count; i++) {
+					long id = in.readLong();
+					double x = getCoordinate(id, 0);
+					double y = getCoordinate(id, 1);
+					int t = cell(1, y, region, box, grid, shift) * cols + cell(0, x, region, box, grid, shift);
+					
+					outs[t].writeLong(id);
+					counts[t]++;
+					low[0][t] = Math.min(low[0][t], x);
+					low[1][t] = Math.min(low[1][t], y);
+					high[0][t] = Math.max(high[0][t], x);
+					high[1][t] = Math.max(high[1][t], y);
+				}
+			}
+			
+			for(DataOutputStream out: outs) {
+				out.close();
+			}
+			
+			for(int t = 0; t < files.length; t++) {
+				Rectangle2D tile = new Rectangle2D(
+						new Point2D(edge(0, t % cols, region, box, grid, shift), edge(1, t / cols, region, box, grid, shift)),
+						new Point2D(edge(0, t % cols + 1, region, box, grid, shift),
+									edge(1, t / cols + 1, region, box, grid, shift)));
+				
+				if(counts[t] > maxPoints) {
+					Point2D min = new Point2D(low[0][t], low[1][t]);
+					Point2D max = new Point2D(high[0][t], high[1][t]);
+					
+					if(low[0][t] == high[0][t] && low[1][t] == high[1][t]) {
+						solveCoincident(files[t], counts[t], sink, leftovers, left);
+					} else {
+						partition(files[t], counts[t], tile, new Rectangle2D(min, max), round, sink, leftovers, left);
+					}
+				} else if(counts[t] > 0) {
+					solveTile(files[t], counts[t], tile, sink, leftovers, left);
+				}
+				
+				Files.delete(files[t]);
+			}
+		} finally {
+			for(int t = 0; t < files.length; t++) {
+				if(outs[t] != null) {
+					outs[t].close();
+				}
+				
+				if(files[t] != null) {
+					Files.deleteIfExists(files[t]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Runs the greedy algorithm on one tile in memory. The clusters whose disc
+	 * stays inside the tile are committed, the other points are spilled back
+	 * @param ids: the file of the point ids of the tile
+	 * @param count: the number of ids in the file
+	 * @param tile: the region of the tile
+	 * @param sink: receives the committed clusters
+	 * @param leftovers: receives the ids of the points not committed
+	 * @param left: counts the ids written to leftovers
+	 * @throws Exception if the files cannot be read or written
+	 */
+	private void solveTile(Path ids, long count, Rectangle2D tile, Consumer<ArrayList<LPoint>> sink,
+						   DataOutputStream leftovers, long[] left) throws Exception {
+		IdentityHashMap<LPoint, Long> index = new IdentityHashMap<>();
+		ArrayList<LPoint> pts = load(ids, count, index);
+		Set<LPoint> committed = Collections.newSetFromMap(new IdentityHashMap<>());
+		
+		if(pts.size() >= capacity) {
+			KCapFL<LPoint> solver = new KCapFL<>(capacity, bucketSize, bbox);
+			solver.load(pts);
+			
+			for(int i = pts.size() / capacity; i > 0; i--) {
+				ArrayList<LPoint> cluster = solver.extractCluster();
+				
+				if(TiledKCapFL.insideTile(cluster, tile, bbox)) {
+					committed.addAll(cluster);
+					sink.accept(cluster);
+				}
+			}
+		}
+		
+		for(LPoint p: pts) {
+			if(!committed.contains(p)) {
+				leftovers.writeLong(index.get(p));
+				left[0]++;
+			}
+		}
+	}
+	
+	/**
+	 * Commits the points of a tile that all lie at the same location, streaming
+	 * them instead of loading them: any capacity of them form a cluster of
+	 * radius 0, the smallest the greedy algorithm can pick. The points that do
+	 * not fill a cluster are spilled back
+	 * @param ids: the file of the point ids of the tile
+	 * @param count: the number of ids in the file
+	 * @param sink: receives the committed clusters
+	 * @param leftovers: receives the ids of the points not committed
+	 * @param left: counts the ids written to leftovers
+	 * @throws IOException if the files cannot be read or written
+	 */
+	private void solveCoincident(Path ids, long count, Consumer<ArrayList<LPoint>> sink,
+								 DataOutputStream leftovers, long[] left) throws IOException {
+		long full = count - count % capacity;
+		
+		try(DataInputStream in = read(ids)) {
+			ArrayList<LPoint> cluster = new ArrayList<>(capacity);
+			
+			for(long i = 0; i < full; i++) {
+				long id = in.readLong();
+				cluster.add(factory.create(id, getCoordinate(id, 0), getCoordinate(id, 1)));
+				
+				if(cluster.size() == capacity) {
+					sink.accept(cluster);
+					cluster = new ArrayList<>(capacity);
+				}
+			}
+			
+			for(long i = full; i < count; i++) {
+				leftovers.writeLong(in.readLong());
+				left[0]++;
+			}
+		}
+	}
+	
+	/**
+	 * Creates the point objects of the ids in a file
+	 * @param ids: the file of the point ids
+	 * @param count: the number of ids in the file
+	 * @param index: if not null, receives the id of every point created
+	 * @return the points, in file order
+	 * @throws Exception if there are more than maxPoints ids or the file cannot
+	 * be read
+	 */
+	private ArrayList<LPoint> load(Path ids, long count, IdentityHashMap<LPoint, Long> index) throws Exception {
+		if(count > maxPoints) {
+			throw new Exception("Tile exceeds the memory budget");
+		}
+		
+		ArrayList<LPoint> pts = new ArrayList<>((int) count);
+		
+		try(DataInputStream in = read(ids)) {
+			for(long i = 0; i < count; i++) {
+				long id = in.readLong();
+				LPoint p = factory.create(id, getCoordinate(id, 0), getCoordinate(id, 1));
+				
+				pts.add(p);
+				
+				if(index != null) {
+					index.put(p, id);
+				}
+			}
+		}
+		
+		return pts;
+	}
+	
+	/**
+	 * Reads a coordinate of a point from the mapped input file
+	 * @param id: the index of the point record
+	 * @param dim: the coordinate (0 = x, 1 = y)
+	 * @return the coordinate
+	 */
+	private double getCoordinate(long id, int dim) {
+		long offset = id * RECORD_BYTES + dim * 8;
+		return chunks[(int) (offset / MAX_MAP)].getDouble((int) (offset % MAX_MAP));
+	}
+	
+	/**
+	 * Finds the grid column (or row) of a coordinate: the last cell whose lower
+	 * edge is at most v. The edges are those of edge(), so every point lies
+	 * inside the box of its own tile
+	 */
+	private int cell(int dim, double v, Rectangle2D region, Rectangle2D box, int grid, double shift) {
+		int lo = 0;
+		int hi = (shift > 0) ? grid : grid - 1;
+		
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			
+			if(edge(dim, mid, region, box, grid, shift) <= v) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		
+		return lo;
+	}
+	
+	/**
+	 * Computes the coordinate of the i-th grid edge along a dimension. The inner
+	 * edges cut the box, clipped to it, and the outer edges are those of the region
+	 */
+	private double edge(int dim, int i, Rectangle2D region, Rectangle2D box, int grid, double shift) {
+		if(i == 0) {
+			return region.getLow().get(dim);
+		}
+		
+		if(i == ((shift > 0) ? grid + 1 : grid)) {
+			return region.getHigh().get(dim);
+		}
+		
+		double v = box.getLow().get(dim) + box.getWidth(dim) * (i - shift) / grid;
+		
+		return Math.max(box.getLow().get(dim), Math.min(box.getHigh().get(dim), v));
+	}
+	
+	/**
+	 * Opens a buffered stream that writes a spill file
+	 */
+	private static DataOutputStream open(Path file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_BYTES));
+	}
+	
+	/**
+	 * Opens a buffered stream that reads a spill file
+	 */
+	private static DataInputStream read(Path file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES));
+	}
+}
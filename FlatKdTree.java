@@ -0,0 +1,889 @@
+/**
+ * @author David Morin
+ * This class is an extended kd-tree laid out in flat arrays instead of linked
+ * node objects. Node fields live in parallel int and double arrays, and every
+ * bucket owns a fixed block of bucketSize slots in contiguous coordinate
+ * arrays, so a query reads coordinates without touching the LPoint objects.
+ * The points themselves are only referenced by index. It has the same cutting
+ * rules and the same public operations as XkdTree, and can replace it for
+ * large point sets
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class FlatKdTree<LPoint extends LabeledPoint2D> {
+	
+	private static final int LEAF = -1; // cutDim of an external node
+	private static final int NONE = -1; // null node, block or id
+	
+	private int numPoints;
+	private int bucketSize;
+	private Rectangle2D bbox;
+	private int root;
+	private ArrayList<String> list;
+	private boolean deleted; // set by a delete traversal that removed a point
+	
+	// nodes: an internal node uses all four arrays, an external node stores its
+	// block in left and its number of points in right
+	private int[] cutDim;
+	private double[] cutVal;
+	private int[] left, right;
+	private int nodeCount; // nodes ever allocated
+	private int freeNode; // head of the free node list, chained through left
+	
+	// buckets: block b holds slots [b * bucketSize, (b + 1) * bucketSize)
+	private double[] xs, ys; // coordinates of the point in each slot
+	private int[] slotIds; // id of the point in each slot
+	private int blockCount; // blocks ever allocated
+	private int freeBlock; // head of the free block list, chained through the first slot id
+	
+	// points, indexed by id
+	private ArrayList<LPoint> payload;
+	private int[] freeIds; // ids of deleted points, available for reuse
+	private int freeIdCount;
+	
+	/**
+	 * The k smallest distances seen by a k-nearest neighbor query, kept in a
+	 * max heap of primitives (1-based) so the k-th distance is at the top.
+	 * Also used by KdTreeND
+	 */
+	static class NearestK {
+		int k;
+		int size;
+		double[] keys;
+		int[] ids;
+		
+		/**
+		 * Constructor
+		 */
+		public NearestK(int k) {
+			this.k = k;
+			this.size = 0;
+			this.keys = new double[k + 1];
+			this.ids = new int[k + 1];
+		}
+		
+		/**
+		 * @return the k-th smallest distance, or Double.MAX_VALUE until k have been seen
+		 */
+		double getKth() {
+			return (size == k) ? keys[1] : Double.MAX_VALUE;
+		}
+		
+		/**
+		 * Offers a point to the heap
+		 * @param key: the squared distance of the point
+		 * @param id: the id of the point
+		 */
+		void add(double key, int id) {
+			if(size < k) {
+				int i = ++size;
+				
+				while(i > 1 && keys[i / 2] < key) {
+					keys[i] = keys[i / 2];
+					ids[i] = ids[i / 2];
+					i /= 2;
+				}
+				
+				keys[i] = key;
+				ids[i] = id;
+			} else if(key < keys[1]) {
+				int i = 1;
+				
+				while(2 * i <= size) {
+					int c = 2 * i;
+					
+					if(c + 1 <= size && keys[c + 1] > keys[c]) {
+						c++;
+					}
+					
+					if(keys[c] <= key) {
+						break;
+					}
+					
+					keys[i] = keys[c];
+					ids[i] = ids[c];
+					i = c;
+				}
+				
+				keys[i] = key;
+				ids[i] = id;
+			}
+		}
+		
+		/**
+		 * Empties the heap. The heap is stably sorted by distance, so equal
+		 * distances keep their heap order, as in MinK.list()
+		 * @return the ids in order of increasing distance
+		 */
+		int[] drain() {
+			int[] order = new int[size], temp = new int[size];
+			
+			for(int i = 0; i < size; i++) {
+				order[i] = i + 1;
+			}
+			
+			sort(order, 0, size, temp);
+			
+			int[] result = new int[size];
+			for(int i = 0; i < size; i++) {
+				result[i] = ids[order[i]];
+			}
+			
+			size = 0;
+			return result;
+		}
+		
+		/**
+		 * Stably merge sorts a range of heap positions by key
+		 */
+		private void sort(int[] order, int lo, int hi, int[] temp) {
+			if(hi - lo < 2) {
+				return;
+			}
+			
+			int mid = (lo + hi) >>> 1;
+			sort(order, lo, mid, temp);
+			sort(order, mid, hi, temp);
+			
+			if(keys[order[mid - 1]] <= keys[order[mid]]) {
+				return;
+			}
+			
+			System.arraycopy(order, lo, temp, lo, hi - lo);
+			
+			int i = lo, j = mid;
+			for(int n = lo; n < hi; n++) {
+				if(j >= hi || (i < mid && keys[temp[i]] <= keys[temp[j]])) {
+					order[n] = temp[i++];
+				} else {
+					order[n] = temp[j++];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The points of an insertion, presorted once per dimension as in XkdTree's
+	 * BulkLoad. Both orders are positions in ids, and every subtree works on the
+	 * same range [lo, hi) of the two orders, which always holds the same points.
+	 * Splitting a range keeps both halves sorted: the order of the cutting
+	 * dimension is already split, and the other one is stably partitioned
+	 */
+	private class Presorted {
+		int[] ids; // the ids of the points, in their original order
+		double[][] coords; // coords[dim][i] is coordinate dim of point ids[i]
+		int[][] sorted; // sorted[0] by x then y, sorted[1] by y then x
+		boolean[] leftSide; // marks the points that go left in a partition
+		int[] temp; // scratch space for sorting and partitioning
+		
+		/**
+		 * Constructor that sorts the points along both dimensions
+		 * @param ids: the ids of the points being inserted
+		 */
+		public Presorted(int[] ids) {
+			int n = ids.length;
+			
+			this.ids = ids;
+			this.coords = new double[2][n];
+			this.sorted = new int[2][n];
+			this.leftSide = new boolean[n];
+			this.temp = new int[n];
+			
+			for(int i = 0; i < n; i++) {
+				coords[0][i] = payload.get(ids[i]).getX();
+				coords[1][i] = payload.get(ids[i]).getY();
+				sorted[0][i] = i;
+				sorted[1][i] = i;
+			}
+			
+			sort(sorted[0], 0, n, 0);
+			sort(sorted[1], 0, n, 1);
+		}
+		
+		/**
+		 * @return the id at position i of the order of dim, or of the original
+		 * order if dim is -1
+		 */
+		int id(int dim, int i) {
+			return ids[(dim < 0) ? i : sorted[dim][i]];
+		}
+		
+		/**
+		 * @return coordinate c of the point at position i of the order of dim
+		 */
+		double coordinate(int dim, int i, int c) {
+			return coords[c][sorted[dim][i]];
+		}
+		
+		/**
+		 * Stably partitions the order of the other dimension so that the points
+		 * at positions [lo, mid) of the order of dim come first
+		 */
+		void partition(int dim, int lo, int mid, int hi) {
+			int[] other = sorted[1 - dim];
+			
+			for(int i = lo; i < mid; i++) {
+				leftSide[sorted[dim][i]] = true;
+			}
+			
+			int l = lo, r = mid;
+			for(int i = lo; i < hi; i++) {
+				if(leftSide[other[i]]) {
+					temp[l++] = other[i];
+				} else {
+					temp[r++] = other[i];
+				}
+			}
+			
+			System.arraycopy(temp, lo, other, lo, hi - lo);
+			
+			for(int i = lo; i < mid; i++) {
+				leftSide[sorted[dim][i]] = false;
+			}
+		}
+		
+		/**
+		 * Stably merge sorts a range of positions by dim, then by the other coordinate
+		 * (the order of XkdTree's ByXThenY and ByYThenX)
+		 */
+		void sort(int[] order, int lo, int hi, int dim) {
+			if(hi - lo < 2) {
+				return;
+			}
+			
+			int mid = (lo + hi) >>> 1;
+			sort(order, lo, mid, dim);
+			sort(order, mid, hi, dim);
+			
+			if(compare(order[mid - 1], order[mid], dim) <= 0) {
+				return;
+			}
+			
+			System.arraycopy(order, lo, temp, lo, hi - lo);
+			
+			int i = lo, j = mid;
+			for(int n = lo; n < hi; n++) {
+				if(j >= hi || (i < mid && compare(temp[i], temp[j], dim) <= 0)) {
+					order[n] = temp[i++];
+				} else {
+					order[n] = temp[j++];
+				}
+			}
+		}
+		
+		/**
+		 * Compares two points lexicographically by dim, then by the other coordinate
+		 */
+		int compare(int a, int b, int dim) {
+			int result = Double.compare(coords[dim][a], coords[dim][b]);
+			
+			return (result != 0) ? result : Double.compare(coords[1 - dim][a], coords[1 - dim][b]);
+		}
+	}
+	
+	/**
+	 * Initializes the tree with an empty external node as the root
+	 * @param bucketSize: the maximum amount of points an external node can store
+	 * @param bbox: the bounding box for the tree
+	 */
+	public FlatKdTree(int bucketSize, Rectangle2D bbox) {
+		this.bucketSize = bucketSize;
+		this.bbox = bbox;
+		clear();
+	}
+	
+	/**
+	 * Removes all entries of the tree
+	 */
+	public void clear() {
+		numPoints = 0;
+		cutDim = new int[16];
+		cutVal = new double[16];
+		left = new int[16];
+		right = new int[16];
+		nodeCount = 0;
+		freeNode = NONE;
+		xs = new double[4 * bucketSize];
+		ys = new double[4 * bucketSize];
+		slotIds = new int[4 * bucketSize];
+		blockCount = 0;
+		freeBlock = NONE;
+		payload = new ArrayList<>();
+		freeIds = new int[16];
+		freeIdCount = 0;
+		root = newLeaf();
+	}
+	
+	/**
+	 * @return the number of points in the tree
+	 */
+	public int size() {
+		return numPoints;
+	}
+	
+	/**
+	 * Determines whether a point, q, occurs within the tree
+	 * @param q: the point that is being searched for within the tree
+	 * @return: if the point occurs, the associated LPoint is returned,
+	 * otherwise null is returned
+	 */
+	public LPoint find(Point2D q) {
+		int id = find(root, q.getX(), q.getY());
+		
+		return (id == NONE) ? null : payload.get(id);
+	}
+	
+	/**
+	 * Inserts a single point into the tree
+	 * @param pt: the point being inserted
+	 * @throws Exception: thrown when point is outside the bounding box
+	 */
+	public void insert(LPoint pt) throws Exception {
+		ArrayList<LPoint> addedPoint = new ArrayList<>();
+		addedPoint.add(pt);
+		bulkInsert(addedPoint);
+	}
+	
+	/**
+	 * Inserts an ArrayList of points into the tree
+	 * @param pts: the ArrayList<LPoint> of points being inserted
+	 * @throws Exception: thrown any point is outside the bounding box
+	 */
+	public void bulkInsert(ArrayList<LPoint> pts) throws Exception {
+		for(LPoint p: pts) {
+			if(p.getX() < bbox.getLow().getX() || p.getX() > bbox.getHigh().getX()
+			|| p.getY() < bbox.getLow().getY() || p.getY() > bbox.getHigh().getY()) {
+				throw new Exception("Attempt to insert a point outside bounding box");
+			}
+		}
+		
+		if(pts.isEmpty()) {
+			return;
+		}
+		
+		int[] added = new int[pts.size()];
+		for(int i = 0; i < added.length; i++) {
+			added[i] = newId(pts.get(i));
+		}
+		
+		root = insert(root, new Presorted(added), 0, added.length, -1);
+		numPoints += pts.size();
+	}
+	
+	/**
+	 * Builds an ArrayList<String> representation of the tree, in the same
+	 * format as XkdTree.list()
+	 * @return: an ArrayList<String> representation of the tree
+	 */
+	public ArrayList<String> list() {
+		list = new ArrayList<>();
+		list(root);
+		return list;
+	}
+	
+	/**
+	 * Performs a nearest neighbor search upon a query point
+	 * @param center: the point being queried upon in the nearest neighbor search
+	 * @return: null if the tree is empty, otherwise returns the LPoint closest to
+	 * center in the tree
+	 */
+	public LPoint nearestNeighbor(Point2D center) {
+		if(numPoints == 0) {
+			return null;
+		}
+		
+		double[] best = {Double.POSITIVE_INFINITY, NONE};
+		nearestNeighbor(root, center.getX(), center.getY(), bbox.getLow().getX(), bbox.getLow().getY(),
+						bbox.getHigh().getX(), bbox.getHigh().getY(), best);
+		
+		return payload.get((int) best[1]);
+	}
+	
+	/**
+	 * Deletes the point from the tree
+	 * @param pt: the point to be deleted
+	 * @Exception: If the point is not in the tree, and exception is thrown
+	 */
+	public void delete(Point2D pt) throws Exception {
+		deleted = false;
+		root = delete(root, pt.getX(), pt.getY(), null);
+		
+		if(!deleted) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+		
+		numPoints--;
+	}
+	
+	/**
+	 * Deletes this particular LPoint from the tree. Unlike delete(Point2D),
+	 * other points stored at the same coordinates are left in place
+	 * @param pt: the point to be deleted
+	 * @Exception: If the point is not in the tree, and exception is thrown
+	 */
+	public void delete(LPoint pt) throws Exception {
+		deleted = false;
+		root = delete(root, pt.getX(), pt.getY(), pt);
+		
+		if(!deleted) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+		
+		numPoints--;
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of the point passed into the method
+	 * @param center: the point being queried upon in the k nearest neighbor search
+	 * @param k: the number of points being queried upon
+	 * @return: ArrayList of LPoints listing the k-nearest neighbors of center in
+	 * sorted order of increasing distance
+	 */
+	public ArrayList<LPoint> kNearestNeighbor(Point2D center, int k) {
+		if(numPoints == 0) {
+			return new ArrayList<>();
+		}
+		
+		NearestK nearest = new NearestK(k);
+		kNearestNeighbor(root, center.getX(), center.getY(), bbox.getLow().getX(), bbox.getLow().getY(),
+						 bbox.getHigh().getX(), bbox.getHigh().getY(), nearest);
+		
+		int[] found = nearest.drain();
+		ArrayList<LPoint> result = new ArrayList<>(found.length);
+		
+		for(int id: found) {
+			result.add(payload.get(id));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Helper method for find that searches the subtree of a node
+	 * @return the id of a point at (x, y), or NONE
+	 */
+	private int find(int node, double x, double y) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			
+			for(int s = start; s < start + right[node]; s++) {
+				if(xs[s] == x && ys[s] == y) {
+					return slotIds[s];
+				}
+			}
+			
+			return NONE;
+		}
+		
+		double q = (cutDim[node] == 0) ? x : y;
+		
+		if(q < cutVal[node]) {
+			return find(left[node], x, y);
+		} else if(q > cutVal[node]) {
+			return find(right[node], x, y);
+		}
+		
+		int result = find(left[node], x, y);
+		return (result != NONE) ? result : find(right[node], x, y);
+	}
+	
+	/**
+	 * Helper method for bulkInsert that adds the presorted points [lo, hi) to
+	 * the subtree of a node, following the same rules as XkdTree: an internal
+	 * node sends the points below the cutting value left, which form a prefix of
+	 * the order of its cutting dimension, and a bucket that overflows is split at
+	 * the median of its widest dimension
+	 * @param order: the dimension whose order the points arrive in, or -1 for
+	 * their original order
+	 * @return the node that replaces this one
+	 */
+	private int insert(int node, Presorted load, int lo, int hi, int order) {
+		if(cutDim[node] != LEAF) {
+			int dim = cutDim[node];
+			int split = lo;
+			
+			while(split < hi && load.coordinate(dim, split, dim) < cutVal[node]) {
+				split++;
+			}
+			
+			load.partition(dim, lo, split, hi);
+			
+			// the children are stored after the call, which may grow the arrays
+			if(split > lo) {
+				int child = insert(left[node], load, lo, split, dim);
+				left[node] = child;
+			}
+			
+			if(split < hi) {
+				int child = insert(right[node], load, split, hi, dim);
+				right[node] = child;
+			}
+			
+			return node;
+		}
+		
+		int count = right[node];
+		int start = left[node] * bucketSize;
+		
+		if(count + hi - lo <= bucketSize) {
+			for(int i = lo; i < hi; i++) {
+				place(start + count++, load.id(order, i));
+			}
+			
+			right[node] = count;
+			return node;
+		}
+		
+		if(count == 0) {
+			freeLeaf(node);
+			return build(load, lo, hi, order);
+		}
+		
+		int[] pts = new int[count + hi - lo];
+		System.arraycopy(slotIds, start, pts, 0, count);
+		
+		for(int i = lo; i < hi; i++) {
+			pts[count + i - lo] = load.id(order, i);
+		}
+		
+		freeLeaf(node);
+		return build(new Presorted(pts), 0, pts.length, -1);
+	}
+	
+	/**
+	 * Builds a subtree over the presorted points [lo, hi), splitting buckets
+	 * the same way XkdTree does
+	 * @param order: the dimension whose order the points arrive in, or -1 for
+	 * their original order
+	 * @return the root of the subtree
+	 */
+	private int build(Presorted load, int lo, int hi, int order) {
+		if(hi - lo <= bucketSize) {
+			int node = newLeaf();
+			int start = left[node] * bucketSize;
+			
+			for(int i = lo; i < hi; i++) {
+				place(start + i - lo, load.id(order, i));
+			}
+			
+			right[node] = hi - lo;
+			return node;
+		}
+		
+		int dim = (load.coordinate(0, hi - 1, 0) - load.coordinate(0, lo, 0)
+				   >= load.coordinate(1, hi - 1, 1) - load.coordinate(1, lo, 1)) ? 0 : 1;
+		int median = lo + (hi - lo) / 2;
+		double value = ((hi - lo) % 2 == 0)
+				? (load.coordinate(dim, median, dim) + load.coordinate(dim, median - 1, dim)) / 2
+				: load.coordinate(dim, median, dim);
+		
+		load.partition(dim, lo, median, hi);
+		
+		int node = newNode();
+		int leftChild = build(load, lo, median, dim);
+		int rightChild = build(load, median, hi, dim);
+		
+		cutDim[node] = dim;
+		cutVal[node] = value;
+		left[node] = leftChild;
+		right[node] = rightChild;
+		
+		return node;
+	}
+	
+	/**
+	 * Helper method for list that adds the subtree of a node in preorder,
+	 * right subtree first. Like XkdTree.list(), it leaves every bucket sorted
+	 * by label, so that later queries break ties in the same order
+	 */
+	private void list(int node) {
+		if(cutDim[node] == LEAF) {
+			ArrayList<Integer> ids = new ArrayList<>(right[node]);
+			int start = left[node] * bucketSize;
+			
+			for(int s = start; s < start + right[node]; s++) {
+				ids.add(slotIds[s]);
+			}
+			
+			Collections.sort(ids, (id1, id2) -> payload.get(id1).getLabel().compareTo(payload.get(id2).getLabel()));
+			
+			String added = "[ ";
+			for(int i = 0; i < ids.size(); i++) {
+				place(start + i, ids.get(i));
+				added += ("{" + payload.get(ids.get(i)).toString() + "} ");
+			}
+			
+			list.add(added + "]");
+			return;
+		}
+		
+		list.add((cutDim[node] == 0 ? "(x=" : "(y=") + cutVal[node] + ")");
+		list(right[node]);
+		list(left[node]);
+	}
+	
+	/**
+	 * Helper method for nearestNeighbor that searches the subtree of a node
+	 * whose cell is [lowX, highX] x [lowY, highY]
+	 * @param best: the squared distance and the id of the closest point so far
+	 */
+	private void nearestNeighbor(int node, double x, double y, double lowX, double lowY, double highX,
+								 double highY, double[] best) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			
+			for(int s = start; s < start + right[node]; s++) {
+				double dx = xs[s] - x;
+				double dy = ys[s] - y;
+				double d = dx * dx + dy * dy;
+				
+				if(d < best[0]) {
+					best[0] = d;
+					best[1] = slotIds[s];
+				}
+			}
+			
+			return;
+		}
+		
+		double cut = cutVal[node];
+		boolean byX = cutDim[node] == 0;
+		boolean goLeft = (byX ? x : y) < cut;
+		
+		for(int side = 0; side < 2; side++) {
+			boolean leftSide = (side == 0) == goLeft;
+			double cLowX = (byX && !leftSide) ? cut : lowX;
+			double cLowY = (!byX && !leftSide) ? cut : lowY;
+			double cHighX = (byX && leftSide) ? cut : highX;
+			double cHighY = (!byX && leftSide) ? cut : highY;
+			
+			if(side == 0 || cellDistanceSq(x, y, cLowX, cLowY, cHighX, cHighY) < best[0]) {
+				nearestNeighbor(leftSide ? left[node] : right[node], x, y, cLowX, cLowY, cHighX, cHighY, best);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method for kNearestNeighbor that searches the subtree of a node
+	 * whose cell is [lowX, highX] x [lowY, highY]
+	 * @param nearest: the closest points found so far
+	 */
+	private void kNearestNeighbor(int node, double x, double y, double lowX, double lowY, double highX,
+								  double highY, NearestK nearest) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			
+			for(int s = start; s < start + right[node]; s++) {
+				double dx = xs[s] - x;
+				double dy = ys[s] - y;
+				
+				nearest.add(dx * dx + dy * dy, slotIds[s]);
+			}
+			
+			return;
+		}
+		
+		if(cellDistanceSq(x, y, lowX, lowY, highX, highY) > nearest.getKth()) {
+			return;
+		}
+		
+		double cut = cutVal[node];
+		
+		if(cutDim[node] == 0) {
+			if(x < cut) {
+				kNearestNeighbor(left[node], x, y, lowX, lowY, cut, highY, nearest);
+				kNearestNeighbor(right[node], x, y, cut, lowY, highX, highY, nearest);
+			} else {
+				kNearestNeighbor(right[node], x, y, cut, lowY, highX, highY, nearest);
+				kNearestNeighbor(left[node], x, y, lowX, lowY, cut, highY, nearest);
+			}
+		} else {
+			if(y < cut) {
+				kNearestNeighbor(left[node], x, y, lowX, lowY, highX, cut, nearest);
+				kNearestNeighbor(right[node], x, y, lowX, cut, highX, highY, nearest);
+			} else {
+				kNearestNeighbor(right[node], x, y, lowX, cut, highX, highY, nearest);
+				kNearestNeighbor(left[node], x, y, lowX, lowY, highX, cut, nearest);
+			}
+		}
+	}
+	
+	/**
+	 * Helper method for delete that removes one point from the subtree of a node.
+	 * An empty bucket is removed and its parent is replaced by the sibling
+	 * @param target: the exact LPoint to remove, or null to remove any point at (x, y)
+	 * @return the node that replaces this one, or NONE if it became empty
+	 */
+	private int delete(int node, double x, double y, LPoint target) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			int end = start + right[node];
+			int s = start;
+			
+			while(s < end && (target == null ? (xs[s] != x || ys[s] != y) : payload.get(slotIds[s]) != target)) {
+				s++;
+			}
+			
+			if(s < end) {
+				freeId(slotIds[s]);
+				System.arraycopy(xs, s + 1, xs, s, end - s - 1);
+				System.arraycopy(ys, s + 1, ys, s, end - s - 1);
+				System.arraycopy(slotIds, s + 1, slotIds, s, end - s - 1);
+				right[node]--;
+				deleted = true;
+			}
+			
+			if(right[node] == 0 && node != root) {
+				freeLeaf(node);
+				return NONE;
+			}
+			
+			return node;
+		}
+		
+		double q = (cutDim[node] == 0) ? x : y;
+		
+		if(q <= cutVal[node]) {
+			left[node] = delete(left[node], x, y, target);
+			
+			if(left[node] == NONE) {
+				return replaceBy(node, right[node]);
+			}
+		}
+		
+		if(q >= cutVal[node] && !deleted) {
+			right[node] = delete(right[node], x, y, target);
+			
+			if(right[node] == NONE) {
+				return replaceBy(node, left[node]);
+			}
+		}
+		
+		return node;
+	}
+	
+	/**
+	 * Frees an internal node whose child became empty
+	 * @return the remaining child, which takes its place
+	 */
+	private int replaceBy(int node, int child) {
+		left[node] = freeNode;
+		freeNode = node;
+		return child;
+	}
+	
+	/**
+	 * @return the squared distance from (x, y) to the cell [lowX, highX] x [lowY, highY]
+	 */
+	private static double cellDistanceSq(double x, double y, double lowX, double lowY, double highX, double highY) {
+		double dx = (x < lowX) ? lowX - x : (x > highX) ? x - highX : 0;
+		double dy = (y < lowY) ? lowY - y : (y > highY) ? y - highY : 0;
+		
+		return dx * dx + dy * dy;
+	}
+	
+	/**
+	 * Copies a point into a bucket slot
+	 */
+	private void place(int slot, int id) {
+		LPoint p = payload.get(id);
+		
+		xs[slot] = p.getX();
+		ys[slot] = p.getY();
+		slotIds[slot] = id;
+	}
+	
+	/**
+	 * Gives a new point an id, reusing the id of a deleted point if possible
+	 */
+	private int newId(LPoint p) {
+		if(freeIdCount > 0) {
+			int id = freeIds[--freeIdCount];
+			payload.set(id, p);
+			return id;
+		}
+		
+		payload.add(p);
+		return payload.size() - 1;
+	}
+	
+	/**
+	 * Releases the id of a deleted point
+	 */
+	private void freeId(int id) {
+		payload.set(id, null);
+		
+		if(freeIdCount == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+		}
+		
+		freeIds[freeIdCount++] = id;
+	}
+	
+	/**
+	 * Allocates a node, reusing a freed one if possible
+	 */
+	private int newNode() {
+		if(freeNode != NONE) {
+			int node = freeNode;
+			freeNode = left[node];
+			return node;
+		}
+		
+		if(nodeCount == cutDim.length) {
+			int length = 2 * nodeCount;
+			cutDim = Arrays.copyOf(cutDim, length);
+			cutVal = Arrays.copyOf(cutVal, length);
+			left = Arrays.copyOf(left, length);
+			right = Arrays.copyOf(right, length);
+		}
+		
+		return nodeCount++;
+	}
+	
+	/**
+	 * Allocates an empty external node and its block
+	 */
+	private int newLeaf() {
+		int block;
+		
+		if(freeBlock != NONE) {
+			block = freeBlock;
+			freeBlock = slotIds[block * bucketSize];
+		} else {
+			if((blockCount + 1) * bucketSize > xs.length) {
+				int length = 2 * Math.max(xs.length, bucketSize);
+				xs = Arrays.copyOf(xs, length);
+				ys = Arrays.copyOf(ys, length);
+				slotIds = Arrays.copyOf(slotIds, length);
+			}
+			
+			block = blockCount++;
+		}
+		
+		int node = newNode();
+		cutDim[node] = LEAF;
+		left[node] = block;
+		right[node] = 0;
+		
+		return node;
+	}
+	
+	/**
+	 * Releases an external node and its block
+	 */
+	private void freeLeaf(int node) {
+		int block = left[node];
+		
+		slotIds[block * bucketSize] = freeBlock;
+		freeBlock = block;
+		
+		left[node] = freeNode;
+		freeNode = node;
+	}
+}
@@ -7,12 +7,93 @@
 package cmsc420_f22; // Do not delete this line
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
-public class KCapFL<LPoint extends LabeledPoint2D> {
+public class KCapFL<LPoint extends LabeledPoint2D> extends CandidateHeap<ArrayList<LPoint>> {
 	
-	private int capacity;
+	/**
+	 * Callback that reports the progress of extractAll after every cluster
+	 */
+	public interface ProgressListener {
+		void clusterExtracted(int clusters, int remainingPoints);
+	}
+	
+	/**
+	 * A time budget and cancellation flag for a solve. Long-running methods check
+	 * it between steps and stop early, leaving the structure in a state that
+	 * can be resumed with a new budget
+	 */
+	public static class Budget {
+		private final long deadline; // System.nanoTime() value at which time runs out
+		private volatile boolean cancelled;
+		
+		/**
+		 * Creates a budget that runs out after the given time
+		 * @param timeoutMillis: the time limit in milliseconds
+		 */
+		public Budget(long timeoutMillis) {
+			long now = System.nanoTime();
+			long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			
+			this.deadline = (timeout >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + timeout;
+			this.cancelled = false;
+		}
+		
+		/**
+		 * Creates a budget with no time limit that only stops when cancelled
+		 */
+		public Budget() {
+			this.deadline = Long.MAX_VALUE;
+			this.cancelled = false;
+		}
+		
+		/**
+		 * Asks the solve using this budget to stop at its next check (may be
+		 * called from any thread)
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		/**
+		 * @return true if the budget has been cancelled or its time is up
+		 */
+		public boolean isExhausted() {
+			return cancelled || (deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0);
+		}
+	}
+	
+	private static final int QUERY_BATCH = 1 << 16; // queries per batch of a parallel build, bounds the result arrays
+	private static final int UNINDEXED = Integer.MIN_VALUE; // reach class of a center missing from the reach index
+	
+	private int bucketSize;
+	private Rectangle2D bbox;
+	private boolean dualTree; // builds find every candidate with one all-k-nearest neighbors search
 	private XkdTree<LPoint> kdTree;
-	private LeftistHeap<Double, ArrayList<LPoint>> heap;
+	private ArrayList<LPoint> points; // demand points, indexed by id
+	private IdentityHashMap<LPoint, Integer> ids; // dense id of each demand point
+	private double[] radii; // squared radius of each center's current candidate
+	private TreeMap<Integer, XkdTree<LPoint>> reachIndex; // centers by the binary exponent of their reach, built by the first addDemand
+	private int[] reachClass; // largest exponent under which each center is in the reach index
+	private int[] reindex; // centers offered since the reach index was last updated
+	private int reindexed; // number of ids in reindex, or -1 once they outnumber the points
+	private int indexed; // entries in the reach index, stale ones included
+	private ArrayList<LPoint> pending; // points of an interrupted build still lacking a candidate
+	private int nextPending; // index of the next point of pending to query
+	private SolverMetrics metrics; // null unless instrumentation is enabled
+	private XkdTree.NeighborBuffer<LPoint> query; // reused by the serial k-nearest neighbor queries
 	
 	/**
 	 * Constructor
@@ -21,9 +102,31 @@ public class KCapFL<LPoint extends LabeledPoint2D> {
 	 * @param bbox: the bounding box for the kdTree
 	 */
 	public KCapFL(int capacity, int bucketSize, Rectangle2D bbox) { 
-		this.capacity = capacity;
-		this.kdTree = new XkdTree<>(bucketSize, bbox);
-		this.heap = new LeftistHeap<>();
+		this(capacity, bucketSize, bbox, new XkdTree<>(bucketSize, bbox));
+	}
+	
+	/**
+	 * Creates a solver over an existing kdTree of its demand points
+	 * @param capacity: Maximum capacity of any service center
+	 * @param bucketSize: the maximum bucket size of the kdTree
+	 * @param bbox: the bounding box of the kdTree
+	 * @param kdTree: the kdTree the solver takes over
+	 */
+	private KCapFL(int capacity, int bucketSize, Rectangle2D bbox, XkdTree<LPoint> kdTree) {
+		super(capacity);
+		this.bucketSize = bucketSize;
+		this.bbox = bbox;
+		this.dualTree = false;
+		this.kdTree = kdTree;
+		this.points = new ArrayList<>();
+		this.ids = new IdentityHashMap<>();
+		this.radii = new double[0];
+		this.reachIndex = null;
+		this.reindex = new int[0];
+		this.reindexed = 0;
+		this.pending = null;
+		this.nextPending = 0;
+		this.query = new XkdTree.NeighborBuffer<>();
 	}
 	
 	/**
@@ -32,6 +135,50 @@ public class KCapFL<LPoint extends LabeledPoint2D> {
 	public void clear() {
 		kdTree.clear();
 		heap.clear();
+		points.clear();
+		ids.clear();
+		assigned.clear();
+		reachIndex = null;
+		reindexed = 0;
+		pending = null;
+		pops = 0;
+		commits = 0;
+	}
+	
+	/**
+	 * Makes build and load compute the candidates of all the points with one
+	 * all-k-nearest neighbors search of the kdTree instead of one query per
+	 * point. The candidates have the same radii, but equidistant neighbors are
+	 * chosen by their position in the kdTree rather than by search order, so
+	 * inputs with ties may yield different (equally valid) clusters
+	 * @param dualTree: true to use the all-k-nearest neighbors search
+	 */
+	public void setDualTree(boolean dualTree) {
+		this.dualTree = dualTree;
+	}
+	
+	/**
+	 * Lets the kdTree rebuild the subtrees that extraction has left sparse, so
+	 * that late k-nearest neighbor queries visit fewer empty nodes. Off by
+	 * default, because rebuilding changes the shape shown by listKdTree, and
+	 * because equidistant neighbors can then come back in another order
+	 * @param fraction: the live fraction below which a subtree is rebuilt, or 0
+	 * to keep the shape produced by the insertions
+	 */
+	public void setRebuildThreshold(double fraction) {
+		kdTree.setRebuildThreshold(fraction);
+	}
+	
+	/**
+	 * Attaches a metrics collector to the solver and to its kdTree and heap.
+	 * The solver times its builds and extraction steps and counts the stale
+	 * heap pops and committed clusters
+	 * @param metrics: the collector, or null to disable instrumentation
+	 */
+	public void setMetrics(SolverMetrics metrics) {
+		this.metrics = metrics;
+		kdTree.setMetrics(metrics);
+		heap.setMetrics(metrics);
 	}
 	
 	/**
@@ -45,18 +192,323 @@ public class KCapFL<LPoint extends LabeledPoint2D> {
 			throw new Exception("Invalid point set size");
 		}
 		
+		load(pts);
+	}
+	
+	/**
+	 * Builds the kdTree and heap without checking the size of the point set.
+	 * Used by solvers that only extract some of the clusters of a point set
+	 * @param pts: the points to be added to the kdTree
+	 * @throws Exception if a point is outside the bounding box
+	 */
+	void load(ArrayList<LPoint> pts) throws Exception {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		
 		kdTree.bulkInsert(pts);
+		assignIds(pts);
+		
+		if(dualTree) {
+			offerAll(pts, null);
+		} else {
+			for(LPoint p: pts) {
+				int id = ids.get(p);
+				
+				offer(id, neighbors(id));
+			}
+		}
+		
+		if(metrics != null) {
+			metrics.time(SolverMetrics.Timer.BUILD, start);
+		}
+	}
+	
+	/**
+	 * Initializes the structure like build(pts), but stops computing candidates
+	 * once the budget is exhausted. The rest of the build is done by
+	 * resumeBuild, or implicitly by the first extraction
+	 * @param pts: the points to be added to the kdTree
+	 * @param budget: the budget checked before every k-nearest neighbor query
+	 * @return true if the build completed, false if it was cut short
+	 * @throws Exception if the points ArrayList is empty or its size is not
+	 * evenly divisible by the capacity
+	 */
+	public boolean build(ArrayList<LPoint> pts, Budget budget) throws Exception {
+		if(pts.isEmpty() || (pts.size() % capacity) != 0) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		kdTree.bulkInsert(pts);
+		assignIds(pts);
+		
+		pending = pts;
+		nextPending = 0;
+		return resumeBuild(budget);
+	}
+	
+	/**
+	 * Continues a build that was cut short by its budget
+	 * @param budget: the budget checked before every k-nearest neighbor query,
+	 * or null for no limit
+	 * @return true if the build is now complete, false if it was cut short again
+	 */
+	public boolean resumeBuild(Budget budget) {
+		while(pending != null && nextPending < pending.size()) {
+			if(budget != null && budget.isExhausted()) {
+				return false;
+			}
+			
+			int id = ids.get(pending.get(nextPending++));
+			offer(id, neighbors(id));
+		}
+		
+		pending = null;
+		return true;
+	}
+	
+	/**
+	 * Initializes the structure like build(pts), but runs the k-nearest neighbor
+	 * queries concurrently on a ForkJoinPool with the batched query of the
+	 * kdTree. The queries only read the freshly built kdTree, and their results
+	 * are inserted into the heap in the original point order, so the heap (and
+	 * every extracted cluster) matches the serial build
+	 * @param pts: the points to be added to the kdTree
+	 * @param parallelism: the number of worker threads (1 or less builds serially)
+	 * @throws Exception if the points ArrayList is empty or its size is not
+	 * evenly divisible by the capacity
+	 */
+	public void build(ArrayList<LPoint> pts, int parallelism) throws Exception {
+		if(parallelism <= 1) {
+			build(pts);
+			return;
+		}
+		
+		if(pts.isEmpty() || (pts.size() % capacity) != 0) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		
+		kdTree.bulkInsert(pts);
+		assignIds(pts);
+		
+		if(dualTree) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				offerAll(pts, pool);
+			} finally {
+				pool.shutdown();
+			}
+			
+			if(metrics != null) {
+				metrics.time(SolverMetrics.Timer.BUILD, start);
+			}
+			return;
+		}
 		
-		//ArrayList<LPoint> temp = new ArrayList<>();
-		double distance = 0;
+		int k = compact ? capacity : capacity * overfetch;
+		int batch = Math.min(pts.size(), QUERY_BATCH);
+		LPoint[] result = newPoints(batch * k);
+		double[] distances = compact ? new double[batch * k] : null;
+		
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for(int lo = 0; lo < pts.size(); lo += batch) {
+				Point2D[] centers = new Point2D[Math.min(batch, pts.size() - lo)];
+				for(int i = 0; i < centers.length; i++) {
+					centers[i] = pts.get(lo + i).getPoint2D();
+				}
+				
+				kdTree.kNearestNeighbors(centers, k, result, distances, pool);
+				
+				for(int i = 0; i < centers.length; i++) {
+					int id = ids.get(pts.get(lo + i));
+					
+					if(compact) {
+						insert(id, distances[i * k + k - 1], distances[i * k + k - 1], null);
+					} else {
+						ArrayList<LPoint> temp = new ArrayList<>(k);
+						for(int j = i * k; j < (i + 1) * k && result[j] != null; j++) {
+							temp.add(result[j]);
+						}
+						
+						offer(id, temp);
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		if(metrics != null) {
+			metrics.time(SolverMetrics.Timer.BUILD, start);
+		}
+	}
+	
+	/**
+	 * Computes the candidates of a set of points with one all-k-nearest
+	 * neighbors search of the kdTree and inserts them in the order of the points
+	 * @param pts: the points, already in the kdTree and given ids
+	 * @param pool: the pool that runs the search, or null to run it on this thread
+	 * @throws Exception if the neighbor table does not fit in an array
+	 */
+	private void offerAll(ArrayList<LPoint> pts, ForkJoinPool pool) throws Exception {
+		int k = compact ? capacity : capacity * overfetch;
+		XkdTree.NeighborTable<LPoint> table = kdTree.allKNearestNeighbors(k, pool);
+		int[] rows = new int[points.size()]; // the table row of each id
+		
+		for(int i = 0; i < table.size(); i++) {
+			rows[ids.get(table.getPoint(i))] = i;
+		}
+		
+		for(LPoint p: pts) {
+			int id = ids.get(p);
+			
+			if(compact) {
+				double key = table.getDistanceSq(rows[id], k - 1);
+				insert(id, key, key, null);
+			} else {
+				offer(id, table.getNeighbors(rows[id]));
+			}
+		}
+	}
+	
+	/**
+	 * Solves the problem for several capacities from a single k-nearest neighbor
+	 * pass. The tree is built once and every point is queried once for its
+	 * neighbors at the largest capacity; each capacity then seeds its heap from
+	 * the prefixes of those lists, which also serve as the over-fetched cache of
+	 * the smaller capacities. A snapshot of the tree is taken after the build,
+	 * and every run starts from it: the deletions of a run copy the nodes they
+	 * change, so the tree is restored without inserting any point again. No
+	 * subtree is rebuilt, so each run gives the clusters of solving its
+	 * capacity on its own, except that equidistant neighbors may come back from
+	 * the query at the largest capacity in another order
+	 * @param capacities: the capacities to solve for
+	 * @param bucketSize: the maximum bucket size for the kdTree
+	 * @param bbox: the bounding box for the kdTree
+	 * @param pts: the demand points
+	 * @return the clusters in extraction order, one list per capacity in the
+	 * order of capacities
+	 * @throws Exception if the points ArrayList is empty or its size is not
+	 * evenly divisible by every capacity
+	 */
+	public static <LPoint extends LabeledPoint2D> ArrayList<ArrayList<ArrayList<LPoint>>> sweep(
+			int[] capacities, int bucketSize, Rectangle2D bbox, ArrayList<LPoint> pts) throws Exception {
+		int maxCapacity = 0;
+		
+		for(int capacity: capacities) {
+			if(capacity <= 0 || pts.isEmpty() || (pts.size() % capacity) != 0) {
+				throw new Exception("Invalid point set size");
+			}
+			
+			maxCapacity = Math.max(maxCapacity, capacity);
+		}
+		
+		XkdTree<LPoint> tree = new XkdTree<>(bucketSize, bbox);
+		tree.bulkInsert(pts);
+		XkdTree<LPoint>.Snapshot built = tree.snapshot();
+		
+		ArrayList<ArrayList<LPoint>> neighbors = new ArrayList<>(pts.size());
+		XkdTree.NeighborBuffer<LPoint> buffer = new XkdTree.NeighborBuffer<>();
+		
+		for(LPoint p: pts) {
+			tree.kNearestNeighbor(p.getPoint2D(), maxCapacity, buffer);
+			neighbors.add(buffer.toList());
+		}
+		
+		ArrayList<ArrayList<ArrayList<LPoint>>> results = new ArrayList<>(capacities.length);
+		
+		for(int capacity: capacities) {
+			tree.restore(built);
+			
+			KCapFL<LPoint> solver = new KCapFL<>(capacity, bucketSize, bbox, tree);
+			solver.assignIds(pts);
+			
+			for(int i = 0; i < pts.size(); i++) {
+				solver.offer(solver.ids.get(pts.get(i)), neighbors.get(i));
+			}
+			
+			ArrayList<ArrayList<LPoint>> clusters = new ArrayList<>(pts.size() / capacity);
+			solver.extractAll(clusters::add);
+			results.add(clusters);
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Adds new demand points to an already built structure. Only the new points
+	 * and the centers whose current candidate radius reaches one of them get new
+	 * k-nearest neighbor lists; every other heap entry is left untouched.
+	 * Clusters keep being committed until the demand runs out, so if the total
+	 * demand is not a multiple of the capacity the last cluster is smaller
+	 * @param pts: the demand points to add
+	 * @throws Exception if any point is outside the bounding box or already present
+	 */
+	public void addDemand(ArrayList<LPoint> pts) throws Exception {
+		Set<LPoint> added = Collections.newSetFromMap(new IdentityHashMap<>());
+		
+		for(LPoint p: pts) {
+			if(ids.containsKey(p) || !added.add(p)) {
+				throw new Exception("Demand point already present");
+			}
+		}
+		
+		updateReachIndex();
+		kdTree.bulkInsert(pts);
+		assignIds(pts);
 		
 		for(LPoint p: pts) {
-			ArrayList<LPoint> temp = kdTree.kNearestNeighbor(p.getPoint2D(), capacity);
+			int id = ids.get(p);
 			
-			distance = p.getPoint2D().distanceSq(temp.get(temp.size() - 1).getPoint2D());
+			offer(id, neighbors(id));
+		}
+		
+		ArrayList<Integer> refresh = new ArrayList<>(); // existing centers reached by a new point
+		
+		for(LPoint p: pts) {
+			reverseCandidates(p, refresh);
+		}
+		
+		Collections.sort(refresh);
+		
+		for(int i = 0; i < refresh.size(); i++) {
+			int id = refresh.get(i);
 			
-			heap.insert(distance, temp);
+			if(i == 0 || id != refresh.get(i - 1)) {
+				versions[id]++;
+				offer(id, neighbors(id));
+			}
+		}
+	}
+	
+	/**
+	 * Adds a single demand point to an already built structure
+	 * @param p: the demand point to add
+	 * @throws Exception if the point is outside the bounding box or already present
+	 */
+	public void addDemand(LPoint p) throws Exception {
+		ArrayList<LPoint> pts = new ArrayList<>(1);
+		pts.add(p);
+		addDemand(pts);
+	}
+	
+	/**
+	 * Removes an unassigned demand point from an already built structure. The
+	 * heap entries that contain it are repaired lazily: they fail the liveness
+	 * check when popped and their centers are re-queried at that point
+	 * @param p: the demand point to remove
+	 * @throws Exception if the point is not an unassigned demand point
+	 */
+	public void removeDemand(LPoint p) throws Exception {
+		Integer id = ids.get(p);
+		
+		if(id == null || assigned.get(id)) {
+			throw new Exception("Removal of nonexistent demand point");
 		}
+		
+		kdTree.delete(p);
+		assigned.set(id);
 	}
 	
 	/**
@@ -64,47 +516,497 @@ public class KCapFL<LPoint extends LabeledPoint2D> {
 	 * @return the cluster if kdTree is not empty or null if there are no more clusters
 	 */
 	public ArrayList<LPoint> extractCluster() {
-		if(kdTree.size() == 0) {
-			return null; 
+		try {
+			return extractCluster((Budget) null);
+		} catch (TimeoutException e) {
+			// there is no budget to run out
+			throw new IllegalStateException("Budget exhausted", e);
+		}
+	}
+	
+	/**
+	 * Performs a single step of the greedy algorithm, giving up if the budget
+	 * runs out while stale candidates are being skipped. Every stale candidate
+	 * is fully handled before the budget is checked, so the step can simply be
+	 * retried later with a new budget
+	 * @param budget: the budget checked before every heap pop, or null for no limit
+	 * @return the cluster, or null if there are no more clusters
+	 * @throws TimeoutException if the budget ran out (or was cancelled) before
+	 * a cluster was found
+	 */
+	public ArrayList<LPoint> extractCluster(Budget budget) throws TimeoutException {
+		if(metrics == null) {
+			return extract(budget);
 		}
 		
-		boolean clusterFound = false;
-		ArrayList<LPoint> result = new ArrayList<>();
+		long start = System.nanoTime();
+		long before = pops;
+		ArrayList<LPoint> result = null;
 		
-		while (!clusterFound) {
-			try {
-				boolean allIn = true;
+		try {
+			result = extract(budget);
+			return result;
+		} finally {
+			if(result != null) {
+				metrics.count(SolverMetrics.Counter.CLUSTERS);
+			}
+			
+			metrics.count(SolverMetrics.Counter.STALE_POPS, pops - before - ((result != null) ? 1 : 0));
+			metrics.time(SolverMetrics.Timer.EXTRACT_CLUSTER, start);
+		}
+	}
+	
+	/**
+	 * Helper method for extractCluster(Budget) that performs the greedy step
+	 * @param budget: the budget checked before every heap pop, or null for no limit
+	 * @return the cluster, or null if there are no more clusters
+	 * @throws TimeoutException if the budget ran out
+	 */
+	private ArrayList<LPoint> extract(Budget budget) throws TimeoutException {
+		if(!resumeBuild(budget)) {
+			throw new TimeoutException("Budget exhausted");
+		}
+		
+		while(remaining() > 0) {
+			if(heap.isEmpty()) {
+				return null;
+			}
+			
+			if(budget != null && budget.isExhausted()) {
+				throw new TimeoutException("Budget exhausted");
+			}
+			
+			Double key = heap.getMinKey();
+			Candidate min = pop();
+			ArrayList<LPoint> cluster = process(min, key);
+			
+			if(cluster != null) {
+				return cluster;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Performs a single step of the greedy algorithm, copying the cluster into a
+	 * caller-owned buffer so that it can be reused from one step to the next
+	 * @param out: the buffer that receives the cluster (cleared first)
+	 * @return true if a cluster was extracted, false if there are no more clusters
+	 */
+	public boolean extractCluster(ArrayList<LPoint> out) {
+		ArrayList<LPoint> cluster = extractCluster();
+		
+		if(cluster == null) {
+			return false;
+		}
+		
+		out.clear();
+		out.addAll(cluster);
+		return true;
+	}
+	
+	/**
+	 * Extracts up to maxClusters clusters by popping several candidates per
+	 * round. A popped candidate joins the round if its members are unassigned
+	 * and disjoint from those of the candidates already picked in the round,
+	 * and the whole round is then committed with one kdTree deletion. A round
+	 * ends at the first candidate that needs the kdTree: a compact entry, a
+	 * stale candidate to repair, or a cluster that leaves out its own center.
+	 * The round is committed before that candidate is handled, so the heap
+	 * sees the same operations as sequential steps and the clusters are those
+	 * of extractCluster, in the same order. With a rebuild threshold set, ties
+	 * can differ: a round deletes more points at once, so subtrees are rebuilt
+	 * at other times and equidistant neighbors may come back in another order
+	 * @param maxClusters: the maximum number of clusters to extract
+	 * @return the clusters in extraction order (empty if there are no more clusters)
+	 */
+	public ArrayList<ArrayList<LPoint>> extractBatch(int maxClusters) {
+		ArrayList<ArrayList<LPoint>> result = new ArrayList<>(maxClusters);
+		ArrayList<LPoint> round = new ArrayList<>(); // members picked in this round, not yet committed
+		BitSet claimed = new BitSet(); // ids of the points in round
+		long before = pops;
+		
+		resumeBuild(null);
+		
+		while(result.size() < maxClusters && remaining() > round.size() && !heap.isEmpty()) {
+			Double key = heap.getMinKey();
+			Candidate min = pop();
+			
+			if(min.version != versions[min.center]) {
+				continue;
+			}
+			
+			if(min.members != null && isFree(min.members, claimed)) {
+				ArrayList<LPoint> cluster = firstCluster(min.members);
+				
+				for(LPoint p: cluster) {
+					claimed.set(ids.get(p));
+				}
 				
-				ArrayList<LPoint> minList = heap.extractMin();
+				round.addAll(cluster);
+				result.add(cluster);
+				commits++;
 				
-				for(LPoint p: minList) {
-					if (kdTree.find(p.getPoint2D()) == null) {
-						allIn = false;
-						break;
-					}
+				if(claimed.get(min.center)) {
+					continue;
 				}
 				
-				if(allIn) {
-					for(LPoint p: minList) {
-						kdTree.delete(p.getPoint2D());
-					}
-					
-					clusterFound = true;
-					result = minList;
-				} else if(kdTree.find(minList.get(0).getPoint2D()) != null) {
-					ArrayList<LPoint> temp = new ArrayList<>();
-					temp = kdTree.kNearestNeighbor(minList.get(0).getPoint2D(), capacity);
-					double distance = temp.get(0).getPoint2D().distanceSq(temp.get(temp.size() - 1).getPoint2D());
-					heap.insert(distance, temp);
+				commit(round);
+				reofferCenter(min.center);
+			} else {
+				commit(round);
+				ArrayList<LPoint> cluster = process(min, key);
+				
+				if(cluster != null) {
+					result.add(cluster);
 				}
-			} catch (Exception e) {
-				System.out.println("Not supposed to be here");
 			}
+			
+			round.clear();
+			claimed.clear();
+		}
+		
+		commit(round);
+		
+		if(metrics != null) {
+			metrics.count(SolverMetrics.Counter.CLUSTERS, result.size());
+			metrics.count(SolverMetrics.Counter.STALE_POPS, pops - before - result.size());
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Runs the greedy algorithm to completion, handing each cluster to the sink
+	 * as soon as it is committed
+	 * @param sink: receives the clusters in extraction order
+	 * @return the number of clusters extracted
+	 */
+	public int extractAll(Consumer<? super ArrayList<LPoint>> sink) {
+		return extractAll(sink, null, null);
+	}
+	
+	/**
+	 * Runs the greedy algorithm to completion, handing each cluster to the sink
+	 * as soon as it is committed
+	 * @param sink: receives the clusters in extraction order
+	 * @param buffer: if not null, every cluster is copied into this buffer before
+	 * it is passed to the sink, so the sink must not keep a reference to it
+	 * @param progress: if not null, notified after every cluster
+	 * @return the number of clusters extracted
+	 */
+	public int extractAll(Consumer<? super ArrayList<LPoint>> sink, ArrayList<LPoint> buffer,
+						  ProgressListener progress) {
+		int clusters = 0;
+		ArrayList<LPoint> cluster;
+		
+		while((cluster = extractCluster()) != null) {
+			if(buffer != null) {
+				buffer.clear();
+				buffer.addAll(cluster);
+				cluster = buffer;
+			}
+			
+			sink.accept(cluster);
+			clusters++;
+			
+			if(progress != null) {
+				progress.clusterExtracted(clusters, remaining());
+			}
+		}
+		
+		return clusters;
+	}
+	
+	/**
+	 * Runs the greedy algorithm until it completes or the budget is exhausted,
+	 * handing each cluster to the sink as soon as it is committed. The clusters
+	 * committed before the budget ran out stay committed, and a later call with
+	 * a fresh budget continues where this one stopped
+	 * @param sink: receives the clusters in extraction order
+	 * @param budget: the budget checked between heap pops
+	 * @return true if every cluster has been extracted, false if the budget ran out
+	 */
+	public boolean extractWithin(Consumer<? super ArrayList<LPoint>> sink, Budget budget) {
+		ArrayList<LPoint> cluster;
+		
+		try {
+			while((cluster = extractCluster(budget)) != null) {
+				sink.accept(cluster);
+			}
+		} catch (TimeoutException e) {
+			return false;
+		}
+		
+		return pending == null && remaining() == 0;
+	}
+	
+	/**
+	 * Gives an iterator that runs the greedy algorithm lazily, extracting the
+	 * next cluster only when it is requested
+	 * @return an iterator over the remaining clusters in extraction order
+	 */
+	public Iterator<ArrayList<LPoint>> clusters() {
+		return new Iterator<ArrayList<LPoint>>() {
+			ArrayList<LPoint> next = null;
+			
+			public boolean hasNext() {
+				if(next == null) {
+					next = extractCluster();
+				}
+				
+				return next != null;
+			}
+			
+			public ArrayList<LPoint> next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				
+				ArrayList<LPoint> result = next;
+				next = null;
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Gives each new demand point the next dense id
+	 * @param pts: the points being added to the structure
+	 */
+	private void assignIds(ArrayList<LPoint> pts) {
+		int n = points.size() + pts.size();
+		
+		if(n > radii.length) {
+			int length = Math.max(n, 2 * radii.length);
+			radii = Arrays.copyOf(radii, length);
+			versions = Arrays.copyOf(versions, length);
+		}
+		
+		for(LPoint p: pts) {
+			versions[points.size()] = 0;
+			ids.put(p, points.size());
+			points.add(p);
+		}
+	}
+	
+	/**
+	 * @return the number of demand points not yet committed to a cluster
+	 */
+	private int remaining() {
+		return kdTree.size();
+	}
+	
+	/**
+	 * @return the number of points in a list of members
+	 */
+	int size(ArrayList<LPoint> members) {
+		return members.size();
+	}
+	
+	/**
+	 * @return the id of the i-th point of a list of members
+	 */
+	int id(ArrayList<LPoint> members, int i) {
+		return ids.get(members.get(i));
+	}
+	
+	/**
+	 * @return the squared distance from a center to the i-th point of a list
+	 * of members
+	 */
+	double distanceSq(int center, ArrayList<LPoint> members, int i) {
+		return points.get(center).getPoint2D().distanceSq(members.get(i).getPoint2D());
+	}
+	
+	/**
+	 * @return the k nearest live points of a center, from one query of the kdTree
+	 */
+	ArrayList<LPoint> nearest(int center, int k) {
+		kdTree.kNearestNeighbor(points.get(center).getPoint2D(), k, query);
+		return query.toList();
+	}
+	
+	/**
+	 * @return a copy of the first n points of a list of members
+	 */
+	ArrayList<LPoint> prefix(ArrayList<LPoint> members, int n) {
+		return new ArrayList<>(members.subList(0, n));
+	}
+	
+	/**
+	 * @return a new list of the live points of a list of members, in order
+	 */
+	ArrayList<LPoint> live(ArrayList<LPoint> members) {
+		ArrayList<LPoint> result = new ArrayList<>(members.size());
+		
+		for(LPoint p: members) {
+			if(isLive(p)) {
+				result.add(p);
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Deletes the points of a committed cluster from the kdTree with one batch
+	 * @throws Exception if a point is not in the kdTree
+	 */
+	void delete(ArrayList<LPoint> members) throws Exception {
+		kdTree.deleteAllPoints(members);
+	}
+	
+	/**
+	 * @return the members of a candidate, or its center if it is compact
+	 */
+	String describe(int center, ArrayList<LPoint> members) {
+		if(members == null) {
+			return points.get(center).toString();
+		}
+		
+		return members.toString();
+	}
+	
+	/**
+	 * Records how far the cache of a new candidate reaches, and queues its
+	 * center for the reach index
+	 * @param center: the id of the center
+	 * @param reach: the squared distance to the last cached neighbor
+	 */
+	void reached(int center, double reach) {
+		radii[center] = reach;
+		
+		if(reachIndex != null && reindexed >= 0) {
+			if(reindexed == points.size()) {
+				reindexed = -1; // rebuilding the index costs no more than replaying the offers
+			} else {
+				if(reindexed == reindex.length) {
+					reindex = Arrays.copyOf(reindex, Math.max(16, 2 * reindex.length));
+				}
+				
+				reindex[reindexed++] = center;
+			}
+		}
+	}
+	
+	/**
+	 * Brings the reach index up to date with the candidates offered since its
+	 * last update, building it on first use. An entry only has to bound the
+	 * reach of its center from above, so a center is moved only when its reach
+	 * outgrows its class: it is then added to the tree of the new class, and
+	 * its old entry is left behind to be skipped by the class check. The index
+	 * is rebuilt once it holds more than twice as many entries as there are
+	 * live points, or once more candidates were offered than there are points
+	 * @throws Exception if a center is outside the bounding box (it cannot be,
+	 * since the centers are demand points)
+	 */
+	private void updateReachIndex() throws Exception {
+		TreeMap<Integer, ArrayList<LPoint>> moved = new TreeMap<>();
+		
+		if(reachIndex == null || reindexed < 0 || indexed > 2 * kdTree.size()) {
+			reachIndex = new TreeMap<>();
+			reachClass = new int[radii.length];
+			Arrays.fill(reachClass, UNINDEXED);
+			indexed = 0;
+			
+			for(int id = 0; id < points.size(); id++) {
+				reclassify(id, moved);
+			}
+		} else {
+			if(reachClass.length < radii.length) {
+				int length = reachClass.length;
+				reachClass = Arrays.copyOf(reachClass, radii.length);
+				Arrays.fill(reachClass, length, radii.length, UNINDEXED);
+			}
+			
+			for(int i = 0; i < reindexed; i++) {
+				reclassify(reindex[i], moved);
+			}
+		}
+		
+		reindexed = 0;
+		
+		for(Map.Entry<Integer, ArrayList<LPoint>> entry: moved.entrySet()) {
+			reachIndex.computeIfAbsent(entry.getKey(), key -> new XkdTree<>(bucketSize, bbox)).bulkInsert(entry.getValue());
+			indexed += entry.getValue().size();
+		}
+	}
+	
+	/**
+	 * Collects a center whose reach has outgrown its class in the reach index
+	 * @param id: the id of the center
+	 * @param moved: receives the center under the exponent of its reach
+	 */
+	private void reclassify(int id, TreeMap<Integer, ArrayList<LPoint>> moved) {
+		// a reach of 0 is never entered, since a new point must be strictly closer
+		int e = (assigned.get(id) || radii[id] == 0) ? UNINDEXED : Math.getExponent(radii[id]);
+		
+		if(e > reachClass[id]) {
+			reachClass[id] = e;
+			moved.computeIfAbsent(e, key -> new ArrayList<>()).add(points.get(id));
+		}
+	}
+	
+	/**
+	 * Finds the live centers whose cached neighbors a new point lands inside.
+	 * Each tree of the reach index holds centers whose squared reach is below
+	 * 2^(e+1) for its key e, so it is searched with the radius sqrt(2^(e+1))
+	 * (rounded up, so points on the boundary are never missed) and every hit
+	 * is then checked against its own reach
+	 * @param p: the newly added demand point
+	 * @param hits: receives the ids of the centers reached by p, possibly repeated
+	 */
+	private void reverseCandidates(LPoint p, ArrayList<Integer> hits) {
+		Point2D q = p.getPoint2D();
+		
+		for(Map.Entry<Integer, XkdTree<LPoint>> entry: reachIndex.entrySet()) {
+			int e = entry.getKey();
+			double radius = Math.nextUp(Math.sqrt(Math.scalb(1.0, e + 1)));
+			
+			for(LPoint c: entry.getValue().withinRadius(q, radius)) {
+				int id = ids.get(c);
+				
+				if(reachClass[id] == e && !assigned.get(id) && c.getPoint2D().distanceSq(q) < radii[id]) {
+					hits.add(id);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether a demand point has not yet been assigned to a cluster
+	 * @param p: the demand point
+	 * @return true if p is still unassigned
+	 */
+	private boolean isLive(LPoint p) {
+		return !assigned.get(ids.get(p));
+	}
+	
+	/**
+	 * @return an array of n null points
+	 */
+	@SuppressWarnings("unchecked")
+	private LPoint[] newPoints(int n) {
+		return (LPoint[]) new LabeledPoint2D[n];
+	}
+	
+	/**
+	 * @return the number of heap entries popped by extraction so far
+	 */
+	public long getPops() {
+		return pops;
+	}
+	
+	/**
+	 * @return the number of popped heap entries that were stale or superseded
+	 * rather than committed
+	 */
+	public long getStalePops() {
+		return pops - commits;
+	}
+	
 	/**
 	 * Invokes list operation on kdTree
 	 * @return list representation of XkdTree
@@ -0,0 +1,279 @@
+/**
+ * @author David Morin
+ * This class is a reproducible scaling benchmark for the facility location
+ * pipeline. It generates synthetic demand, times KCapFL.build and the
+ * extraction loop, and appends one JSON line per run to a results file so
+ * that releases can be compared
+ *
+ * Usage: java cmsc420_f22.KCapFLBenchmark [--sizes=10000,100000] [--capacities=5,20]
+ *        [--buckets=8] [--workloads=uniform,gaussian,roads,duplicates]
+ *        [--parallelism=1] [--repeat=3] [--seed=420] [--out=bench.jsonl]
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+public class KCapFLBenchmark {
+	
+	private static final double SIDE = 1000.0; // demand is generated in [0, SIDE] x [0, SIDE]
+	
+	/**
+	 * A demand point of a generated workload
+	 */
+	static class DemandPoint implements LabeledPoint2D {
+		private String label;
+		private Point2D point;
+		
+		/**
+		 * Constructor
+		 */
+		public DemandPoint(String label, double x, double y) {
+			this.label = label;
+			this.point = new Point2D(x, y);
+		}
+		
+		public double getX() {
+			return point.getX();
+		}
+		
+		public double getY() {
+			return point.getY();
+		}
+		
+		public double get(int i) {
+			return point.get(i);
+		}
+		
+		public Point2D getPoint2D() {
+			return point;
+		}
+		
+		public String getLabel() {
+			return label;
+		}
+		
+		public String toString() {
+			return label;
+		}
+	}
+	
+	/**
+	 * Generates n demand points of the named workload
+	 * @param workload: uniform, gaussian (clustered), roads (points along
+	 * random line segments) or duplicates (few distinct locations)
+	 * @param n: the number of points
+	 * @param seed: the random seed
+	 * @return the demand points
+	 */
+	static ArrayList<DemandPoint> generate(String workload, int n, long seed) {
+		Random random = new Random(seed);
+		ArrayList<DemandPoint> pts = new ArrayList<>(n);
+		
+		switch(workload) {
+			case "uniform":
+				for(int i = 0; i < n; i++) {
+					pts.add(point(i, random.nextDouble() * SIDE, random.nextDouble() * SIDE));
+				}
+				break;
+			
+			case "gaussian": {
+				int hubs = Math.max(1, (int) Math.sqrt(n) / 10);
+				double[][] centers = new double[hubs][2];
+				
+				for(double[] c: centers) {
+					c[0] = random.nextDouble() * SIDE;
+					c[1] = random.nextDouble() * SIDE;
+				}
+				
+				for(int i = 0; i < n; i++) {
+					double[] c = centers[random.nextInt(hubs)];
+					pts.add(point(i, c[0] + random.nextGaussian() * SIDE / 50, c[1] + random.nextGaussian() * SIDE / 50));
+				}
+				break;
+			}
+			
+			case "roads": {
+				int roads = Math.max(1, (int) Math.sqrt(n) / 4);
+				double[][] ends = new double[roads][4];
+				
+				for(double[] r: ends) {
+					for(int j = 0; j < 4; j++) {
+						r[j] = random.nextDouble() * SIDE;
+					}
+				}
+				
+				for(int i = 0; i < n; i++) {
+					double[] r = ends[random.nextInt(roads)];
+					double t = random.nextDouble();
+					
+					pts.add(point(i, r[0] + t * (r[2] - r[0]) + random.nextGaussian() * 0.5,
+								  r[1] + t * (r[3] - r[1]) + random.nextGaussian() * 0.5));
+				}
+				break;
+			}
+			
+			case "duplicates": {
+				int sites = Math.max(1, n / 20);
+				double[][] locations = new double[sites][2];
+				
+				for(double[] s: locations) {
+					s[0] = random.nextDouble() * SIDE;
+					s[1] = random.nextDouble() * SIDE;
+				}
+				
+				for(int i = 0; i < n; i++) {
+					double[] s = locations[random.nextInt(sites)];
+					pts.add(point(i, s[0], s[1]));
+				}
+				break;
+			}
+			
+			default:
+				throw new IllegalArgumentException("Unknown workload " + workload);
+		}
+		
+		return pts;
+	}
+	
+	/**
+	 * Creates a demand point clamped to the generation square
+	 */
+	private static DemandPoint point(int i, double x, double y) {
+		return new DemandPoint("p" + i, Math.max(0, Math.min(SIDE, x)), Math.max(0, Math.min(SIDE, y)));
+	}
+	
+	/**
+	 * Runs one configuration and measures it
+	 * @return the measurements as a JSON object
+	 * @throws Exception if the solver rejects the input
+	 */
+	static String run(String workload, int n, int capacity, int bucketSize, int parallelism, int repeat,
+					  long seed) throws Exception {
+		n -= n % capacity;
+		ArrayList<DemandPoint> pts = generate(workload, n, seed);
+		Rectangle2D bbox = new Rectangle2D(new Point2D(0, 0), new Point2D(SIDE, SIDE));
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		
+		System.gc();
+		resetPeaks();
+		
+		// only the calling thread is measured, not the workers of a parallel build
+		long allocated = threads.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		
+		KCapFL<DemandPoint> solver = new KCapFL<>(capacity, bucketSize, bbox);
+		solver.build(new ArrayList<>(pts), parallelism);
+		
+		long built = System.nanoTime();
+		int clusters = solver.extractAll((cluster) -> { });
+		long done = System.nanoTime();
+		
+		allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+		
+		return String.format(Locale.ROOT, "{\"workload\":\"%s\",\"n\":%d,\"capacity\":%d,\"bucketSize\":%d,\"parallelism\":%d,"
+				+ "\"repeat\":%d,\"seed\":%d,\"buildMs\":%.3f,\"extractMs\":%.3f,\"clusters\":%d,\"pops\":%d,"
+				+ "\"stalePopRatio\":%.5f,\"peakHeapBytes\":%d,\"mainThreadAllocatedBytes\":%d,\"mainThreadAllocationRateMBps\":%.1f}",
+				workload, n, capacity, bucketSize, parallelism, repeat, seed,
+				(built - start) / 1e6, (done - built) / 1e6, clusters, solver.getPops(),
+				(double) solver.getStalePops() / Math.max(1, solver.getPops()), peakHeap(), allocated,
+				allocated / 1048576.0 / ((done - start) / 1e9));
+	}
+	
+	/**
+	 * Resets the peak usage of every heap memory pool
+	 */
+	private static void resetPeaks() {
+		for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+	
+	/**
+	 * @return the sum of the peak usage of the heap memory pools since the last reset
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		
+		for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		
+		return peak;
+	}
+	
+	/**
+	 * Parses a comma separated list of integers
+	 */
+	private static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] result = new int[parts.length];
+		
+		for(int i = 0; i < parts.length; i++) {
+			result[i] = Integer.parseInt(parts[i].trim());
+		}
+		
+		return result;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> options = new HashMap<>();
+		options.put("sizes", "10000,100000,1000000");
+		options.put("capacities", "5,20");
+		options.put("buckets", "8");
+		options.put("workloads", "uniform,gaussian,roads,duplicates");
+		options.put("parallelism", "1");
+		options.put("repeat", "3");
+		options.put("seed", "420");
+		options.put("out", "bench.jsonl");
+		
+		for(String arg: args) {
+			int eq = arg.indexOf('=');
+			
+			if(!arg.startsWith("--") || eq < 0 || !options.containsKey(arg.substring(2, eq))) {
+				System.err.println("Unknown option " + arg);
+				System.exit(1);
+			}
+			
+			options.put(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		
+		long seed = Long.parseLong(options.get("seed"));
+		int parallelism = Integer.parseInt(options.get("parallelism"));
+		int repeat = Integer.parseInt(options.get("repeat"));
+		
+		try(PrintWriter out = new PrintWriter(new FileWriter(options.get("out"), true))) {
+			for(String workload: options.get("workloads").split(",")) {
+				for(int n: ints(options.get("sizes"))) {
+					for(int capacity: ints(options.get("capacities"))) {
+						for(int bucketSize: ints(options.get("buckets"))) {
+							for(int r = 0; r < repeat; r++) {
+								String line = run(workload.trim(), n, capacity, bucketSize, parallelism, r, seed);
+								
+								System.out.println(line);
+								out.println(line);
+								out.flush();
+							}
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot write results: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
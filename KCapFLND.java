@@ -0,0 +1,236 @@
+/**
+ * @author David Morin
+ * This class implements the greedy of KCapFL for demand points of any fixed
+ * number of dimensions, with the same candidate heap, so overfetching and
+ * compact mode work as they do there. The points are given as one flat
+ * coordinate array and are known by their index, so the heap and the
+ * clusters only deal with int ids until a cluster is handed out as the
+ * values of its points
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class KCapFLND<T> extends CandidateHeap<int[]> {
+	
+	private int dims;
+	private int bucketSize;
+	private double[] low, high; // the bounding box
+	private KdTreeND<T> kdTree; // the unassigned points
+	private double[] points; // the coordinates of id are points[id * dims, (id + 1) * dims)
+	private ArrayList<T> values; // the value of each point, indexed by id
+	private int[] treeIds; // the kdTree id of each point
+	private int[] fromTree; // the id of each kdTree id
+	private double[] query; // the coordinates of the point being queried or deleted
+	
+	/**
+	 * Constructor
+	 * @param capacity: Maximum capacity of any service center
+	 * @param bucketSize: the maximum bucket size for the kdTree
+	 * @param low: the lowest coordinate of the bounding box in every dimension
+	 * @param high: the highest coordinate of the bounding box in every dimension
+	 */
+	public KCapFLND(int capacity, int bucketSize, double[] low, double[] high) {
+		super(capacity);
+		this.dims = low.length;
+		this.bucketSize = bucketSize;
+		this.low = low.clone();
+		this.high = high.clone();
+		this.query = new double[dims];
+		clear();
+	}
+	
+	/**
+	 * Clears the data structure
+	 */
+	public void clear() {
+		kdTree = new KdTreeND<>(bucketSize, low, high);
+		heap.clear();
+		assigned.clear();
+		points = new double[0];
+		values = new ArrayList<>();
+		treeIds = new int[0];
+		fromTree = new int[0];
+		versions = new int[0];
+		pops = 0;
+		commits = 0;
+	}
+	
+	/**
+	 * Initializes the structure by building the kdTree and heap, replacing
+	 * any points given before
+	 * @param pts: the coordinates of the points, point i occupying
+	 * pts[i * dims, (i + 1) * dims)
+	 * @param values: the values of the points, in the same order
+	 * @throws Exception if the point set is empty, its size is not evenly
+	 * divisible by the capacity or does not match the coordinates, or a point
+	 * is outside the bounding box
+	 */
+	public void build(double[] pts, List<T> values) throws Exception {
+		if(values.isEmpty() || (values.size() % capacity) != 0 || pts.length != values.size() * dims) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		clear();
+		treeIds = kdTree.bulkInsertIds(pts, values);
+		fromTree = new int[treeIds.length];
+		
+		for(int id = 0; id < treeIds.length; id++) {
+			fromTree[treeIds[id]] = id;
+		}
+		
+		this.points = pts.clone();
+		this.values.addAll(values);
+		this.versions = new int[values.size()];
+		
+		for(int id = 0; id < values.size(); id++) {
+			offer(id, neighbors(id));
+		}
+	}
+	
+	/**
+	 * Performs a single step of the greedy algorithm
+	 * @return the values of the cluster if kdTree is not empty or null if
+	 * there are no more clusters
+	 */
+	public ArrayList<T> extractCluster() {
+		while(kdTree.size() > 0 && !heap.isEmpty()) {
+			Double key = heap.getMinKey();
+			int[] members = process(pop(), key);
+			
+			if(members != null) {
+				ArrayList<T> cluster = new ArrayList<>(members.length);
+				
+				for(int id: members) {
+					cluster.add(values.get(id));
+				}
+				
+				return cluster;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Runs the greedy algorithm to completion, handing each cluster to the sink
+	 * as soon as it is committed
+	 * @param sink: receives the clusters in extraction order
+	 * @return the number of clusters extracted
+	 */
+	public int extractAll(Consumer<? super ArrayList<T>> sink) {
+		int clusters = 0;
+		ArrayList<T> cluster;
+		
+		while((cluster = extractCluster()) != null) {
+			sink.accept(cluster);
+			clusters++;
+		}
+		
+		return clusters;
+	}
+	
+	/**
+	 * @return the number of points in a list of members
+	 */
+	int size(int[] members) {
+		return members.length;
+	}
+	
+	/**
+	 * @return the id of the i-th point of a list of members
+	 */
+	int id(int[] members, int i) {
+		return members[i];
+	}
+	
+	/**
+	 * @return the squared distance from a center to the i-th point of a list
+	 * of members
+	 */
+	double distanceSq(int center, int[] members, int i) {
+		double distance = 0;
+		
+		for(int d = 0; d < dims; d++) {
+			double diff = points[center * dims + d] - points[members[i] * dims + d];
+			distance += diff * diff;
+		}
+		
+		return distance;
+	}
+	
+	/**
+	 * @return the ids of the k nearest unassigned points of a center, in order
+	 */
+	int[] nearest(int center, int k) {
+		int[] found = kdTree.kNearestIds(coordinates(center), k);
+		
+		for(int i = 0; i < found.length; i++) {
+			found[i] = fromTree[found[i]];
+		}
+		
+		return found;
+	}
+	
+	/**
+	 * @return the first n ids of a list of members
+	 */
+	int[] prefix(int[] members, int n) {
+		return Arrays.copyOf(members, n);
+	}
+	
+	/**
+	 * @return the unassigned ids of a list of members, in order
+	 */
+	int[] live(int[] members) {
+		int[] result = new int[members.length];
+		int n = 0;
+		
+		for(int id: members) {
+			if(!assigned.get(id)) {
+				result[n++] = id;
+			}
+		}
+		
+		return Arrays.copyOf(result, n);
+	}
+	
+	/**
+	 * Deletes the points of a committed cluster from the kdTree
+	 * @throws Exception if a point is not in the kdTree
+	 */
+	void delete(int[] members) throws Exception {
+		for(int id: members) {
+			kdTree.deleteId(coordinates(id), treeIds[id]);
+		}
+	}
+	
+	/**
+	 * @return the values of the members of a candidate, or of its center if
+	 * it is compact
+	 */
+	String describe(int center, int[] members) {
+		if(members == null) {
+			return values.get(center).toString();
+		}
+		
+		ArrayList<T> list = new ArrayList<>(members.length);
+		for(int id: members) {
+			list.add(values.get(id));
+		}
+		
+		return list.toString();
+	}
+	
+	/**
+	 * @return the coordinates of a point, copied into the query buffer
+	 */
+	private double[] coordinates(int id) {
+		System.arraycopy(points, id * dims, query, 0, dims);
+		return query;
+	}
+}
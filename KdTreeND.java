@@ -0,0 +1,777 @@
+/**
+ * @author David Morin
+ * This class is an extended kd-tree over points of any fixed number of
+ * dimensions. It has the same design as FlatKdTree: node fields live in
+ * parallel arrays, and every bucket owns a fixed block of bucketSize slots in
+ * one contiguous coordinate array, so a point is a run of dims doubles rather
+ * than an object per coordinate. The values stored with the points are only
+ * referenced by index. Buckets that overflow are split at the median of their
+ * widest dimension, as in XkdTree
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class KdTreeND<T> {
+	
+	private static final int LEAF = -1; // cutDim of an external node
+	private static final int NONE = -1; // null node, block or id
+	
+	private int dims;
+	private int numPoints;
+	private int bucketSize;
+	private double[] low, high; // the bounding box
+	private int root;
+	private ArrayList<String> list;
+	private boolean deleted; // set by a delete traversal that removed a point
+	private double[] offsets; // offsets of a kNN search to its cell, all zero between searches
+	
+	// nodes: an internal node uses all four arrays, an external node stores its
+	// block in left and its number of points in right
+	private int[] cutDim;
+	private double[] cutVal;
+	private int[] left, right;
+	private int nodeCount; // nodes ever allocated
+	private int freeNode; // head of the free node list, chained through left
+	
+	// buckets: block b holds slots [b * bucketSize, (b + 1) * bucketSize), and
+	// the coordinates of slot s are coords[s * dims, (s + 1) * dims)
+	private double[] coords;
+	private int[] slotIds; // id of the point in each slot
+	private int blockCount; // blocks ever allocated
+	private int freeBlock; // head of the free block list, chained through the first slot id
+	
+	// points, indexed by id: the coordinates of id are points[id * dims, (id + 1) * dims)
+	private ArrayList<T> payload;
+	private double[] points;
+	private int[] freeIds; // ids of deleted points, available for reuse
+	private int freeIdCount;
+	
+	/**
+	 * Initializes the tree with an empty external node as the root
+	 * @param bucketSize: the maximum amount of points an external node can store
+	 * @param low: the lowest coordinate of the bounding box in every dimension
+	 * @param high: the highest coordinate of the bounding box in every dimension
+	 */
+	public KdTreeND(int bucketSize, double[] low, double[] high) {
+		this.dims = low.length;
+		this.bucketSize = bucketSize;
+		this.low = low.clone();
+		this.high = high.clone();
+		this.offsets = new double[dims];
+		clear();
+	}
+	
+	/**
+	 * Removes all entries of the tree
+	 */
+	public void clear() {
+		numPoints = 0;
+		cutDim = new int[16];
+		cutVal = new double[16];
+		left = new int[16];
+		right = new int[16];
+		nodeCount = 0;
+		freeNode = NONE;
+		coords = new double[4 * bucketSize * dims];
+		slotIds = new int[4 * bucketSize];
+		blockCount = 0;
+		freeBlock = NONE;
+		payload = new ArrayList<>();
+		points = new double[16 * dims];
+		freeIds = new int[16];
+		freeIdCount = 0;
+		root = newLeaf();
+	}
+	
+	/**
+	 * @return the number of dimensions of the points
+	 */
+	public int dimensions() {
+		return dims;
+	}
+	
+	/**
+	 * @return the number of points in the tree
+	 */
+	public int size() {
+		return numPoints;
+	}
+	
+	/**
+	 * Determines whether a point, q, occurs within the tree
+	 * @param q: the coordinates that are being searched for within the tree
+	 * @return: if the point occurs, the associated value is returned,
+	 * otherwise null is returned
+	 */
+	public T find(double[] q) {
+		int id = find(root, q);
+		
+		return (id == NONE) ? null : payload.get(id);
+	}
+	
+	/**
+	 * Inserts a single point into the tree
+	 * @param pt: the coordinates of the point
+	 * @param value: the value stored with the point
+	 * @throws Exception: thrown when the point is outside the bounding box
+	 */
+	public void insert(double[] pt, T value) throws Exception {
+		ArrayList<T> addedValue = new ArrayList<>();
+		addedValue.add(value);
+		bulkInsert(pt, addedValue);
+	}
+	
+	/**
+	 * Inserts a batch of points into the tree
+	 * @param pts: the coordinates of the points, point i occupying
+	 * pts[i * dimensions(), (i + 1) * dimensions())
+	 * @param values: the values stored with the points, in the same order
+	 * @throws Exception: thrown when the sizes do not match or any point is
+	 * outside the bounding box
+	 */
+	public void bulkInsert(double[] pts, List<T> values) throws Exception {
+		bulkInsertIds(pts, values);
+	}
+	
+	/**
+	 * Inserts a batch of points into the tree, like bulkInsert
+	 * @return the ids given to the points, in the same order
+	 * @throws Exception: thrown when the sizes do not match or any point is
+	 * outside the bounding box
+	 */
+	int[] bulkInsertIds(double[] pts, List<T> values) throws Exception {
+		if(pts.length != values.size() * dims) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		for(int i = 0; i < pts.length; i++) {
+			if(pts[i] < low[i % dims] || pts[i] > high[i % dims]) {
+				throw new Exception("Attempt to insert a point outside bounding box");
+			}
+		}
+		
+		int[] added = new int[values.size()];
+		
+		if(values.isEmpty()) {
+			return added;
+		}
+		
+		for(int i = 0; i < added.length; i++) {
+			added[i] = newId(pts, i, values.get(i));
+		}
+		
+		root = insert(root, added.clone(), 0, added.length, new int[added.length]);
+		numPoints += added.length;
+		return added;
+	}
+	
+	/**
+	 * Builds an ArrayList<String> representation of the tree, in the format of
+	 * XkdTree.list(). Cuts name their dimension x, y or z, or x<dim> beyond three
+	 * dimensions
+	 * @return: an ArrayList<String> representation of the tree
+	 */
+	public ArrayList<String> list() {
+		list = new ArrayList<>();
+		list(root);
+		return list;
+	}
+	
+	/**
+	 * Performs a nearest neighbor search upon a query point
+	 * @param center: the coordinates of the query point
+	 * @return: null if the tree is empty, otherwise returns the value of the
+	 * point closest to center in the tree
+	 */
+	public T nearestNeighbor(double[] center) {
+		ArrayList<T> result = kNearestNeighbor(center, 1);
+		
+		return result.isEmpty() ? null : result.get(0);
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of a query point
+	 * @param center: the coordinates of the query point
+	 * @param k: the number of points being queried upon
+	 * @return: ArrayList of the values of the k nearest neighbors of center in
+	 * sorted order of increasing distance
+	 */
+	public ArrayList<T> kNearestNeighbor(double[] center, int k) {
+		int[] found = kNearestIds(center, k);
+		ArrayList<T> result = new ArrayList<>(found.length);
+		
+		for(int id: found) {
+			result.add(payload.get(id));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of a query point, like kNearestNeighbor
+	 * @return the ids of the neighbors, in order of increasing distance
+	 */
+	int[] kNearestIds(double[] center, int k) {
+		if(numPoints == 0 || k <= 0) {
+			return new int[0];
+		}
+		
+		FlatKdTree.NearestK nearest = new FlatKdTree.NearestK(k);
+		kNearestNeighbor(root, center, offsets, 0, nearest);
+		
+		return nearest.drain();
+	}
+	
+	/**
+	 * Deletes a point at the given coordinates
+	 * @param pt: the coordinates of the point to be deleted
+	 * @Exception: If there is no point at pt, an exception is thrown
+	 */
+	public void delete(double[] pt) throws Exception {
+		deleted = false;
+		root = delete(root, pt, null, NONE);
+		
+		if(!deleted) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+		
+		numPoints--;
+	}
+	
+	/**
+	 * Deletes the point at the given coordinates whose value equals this one.
+	 * Other points at the same coordinates are left in place
+	 * @param pt: the coordinates of the point to be deleted
+	 * @param value: the value stored with the point
+	 * @Exception: If the point is not in the tree, an exception is thrown
+	 */
+	public void delete(double[] pt, T value) throws Exception {
+		deleted = false;
+		root = delete(root, pt, value, NONE);
+		
+		if(!deleted) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+		
+		numPoints--;
+	}
+	
+	/**
+	 * Deletes the point with the given id
+	 * @param pt: the coordinates of the point to be deleted
+	 * @param id: the id of the point, as given by bulkInsertIds
+	 * @Exception: If the point is not in the tree, an exception is thrown
+	 */
+	void deleteId(double[] pt, int id) throws Exception {
+		deleted = false;
+		root = delete(root, pt, null, id);
+		
+		if(!deleted) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+		
+		numPoints--;
+	}
+	
+	/**
+	 * Helper method for find that searches the subtree of a node
+	 * @return the id of a point at q, or NONE
+	 */
+	private int find(int node, double[] q) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			
+			for(int s = start; s < start + right[node]; s++) {
+				if(equals(coords, s * dims, q)) {
+					return slotIds[s];
+				}
+			}
+			
+			return NONE;
+		}
+		
+		double c = q[cutDim[node]];
+		
+		if(c < cutVal[node]) {
+			return find(left[node], q);
+		} else if(c > cutVal[node]) {
+			return find(right[node], q);
+		}
+		
+		int result = find(left[node], q);
+		return (result != NONE) ? result : find(right[node], q);
+	}
+	
+	/**
+	 * Helper method for bulkInsert that adds the points ids[lo, hi) to the
+	 * subtree of a node. An internal node sends the points below its cutting
+	 * value left, and a bucket that overflows is rebuilt as a subtree
+	 * @param temp: scratch space as long as ids
+	 * @return the node that replaces this one
+	 */
+	private int insert(int node, int[] ids, int lo, int hi, int[] temp) {
+		if(cutDim[node] != LEAF) {
+			int split = partition(ids, lo, hi, cutDim[node], cutVal[node], temp);
+			
+			// the children are stored after the call, which may grow the arrays
+			if(split > lo) {
+				int child = insert(left[node], ids, lo, split, temp);
+				left[node] = child;
+			}
+			
+			if(split < hi) {
+				int child = insert(right[node], ids, split, hi, temp);
+				right[node] = child;
+			}
+			
+			return node;
+		}
+		
+		int count = right[node];
+		int start = left[node] * bucketSize;
+		
+		if(count + hi - lo <= bucketSize) {
+			for(int i = lo; i < hi; i++) {
+				place(start + count++, ids[i]);
+			}
+			
+			right[node] = count;
+			return node;
+		}
+		
+		int[] pts = new int[count + hi - lo];
+		System.arraycopy(slotIds, start, pts, 0, count);
+		System.arraycopy(ids, lo, pts, count, hi - lo);
+		
+		freeLeaf(node);
+		return build(pts, 0, pts.length);
+	}
+	
+	/**
+	 * Builds a subtree over the points ids[lo, hi), cutting at the median of
+	 * the widest dimension until every bucket fits. The median is selected
+	 * rather than sorted for, so a build takes O(n log n) time
+	 * @return the root of the subtree
+	 */
+	private int build(int[] ids, int lo, int hi) {
+		if(hi - lo <= bucketSize) {
+			int node = newLeaf();
+			int start = left[node] * bucketSize;
+			
+			for(int i = lo; i < hi; i++) {
+				place(start + i - lo, ids[i]);
+			}
+			
+			right[node] = hi - lo;
+			return node;
+		}
+		
+		int dim = 0;
+		double widest = -1;
+		
+		for(int d = 0; d < dims; d++) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			
+			for(int i = lo; i < hi; i++) {
+				double c = points[ids[i] * dims + d];
+				min = Math.min(min, c);
+				max = Math.max(max, c);
+			}
+			
+			if(max - min > widest) {
+				widest = max - min;
+				dim = d;
+			}
+		}
+		
+		int median = lo + (hi - lo) / 2;
+		select(ids, lo, hi, median, dim);
+		
+		double value = points[ids[median] * dims + dim];
+		if((hi - lo) % 2 == 0) {
+			double below = Double.NEGATIVE_INFINITY;
+			
+			for(int i = lo; i < median; i++) {
+				below = Math.max(below, points[ids[i] * dims + dim]);
+			}
+			
+			value = (value + below) / 2;
+		}
+		
+		int node = newNode();
+		int leftChild = build(ids, lo, median);
+		int rightChild = build(ids, median, hi);
+		
+		cutDim[node] = dim;
+		cutVal[node] = value;
+		left[node] = leftChild;
+		right[node] = rightChild;
+		
+		return node;
+	}
+	
+	/**
+	 * Helper method for list that adds the subtree of a node in preorder,
+	 * right subtree first
+	 */
+	private void list(int node) {
+		if(cutDim[node] == LEAF) {
+			ArrayList<T> values = new ArrayList<>(right[node]);
+			int start = left[node] * bucketSize;
+			
+			for(int s = start; s < start + right[node]; s++) {
+				values.add(payload.get(slotIds[s]));
+			}
+			
+			Collections.sort(values, (v1, v2) -> v1.toString().compareTo(v2.toString()));
+			
+			String added = "[ ";
+			for(T v: values) {
+				added += ("{" + v.toString() + "} ");
+			}
+			
+			list.add(added + "]");
+			return;
+		}
+		
+		String axis = (dims <= 3) ? String.valueOf("xyz".charAt(cutDim[node])) : "x" + cutDim[node];
+		list.add("(" + axis + "=" + cutVal[node] + ")");
+		list(right[node]);
+		list(left[node]);
+	}
+	
+	/**
+	 * Helper method for kNearestNeighbor that searches the subtree of a node.
+	 * Instead of the cell of the node, the search keeps the offset from the
+	 * query point to the cell along every dimension, and the sum of their
+	 * squares, which is the squared distance to the cell. Crossing a cut only
+	 * changes the offset along its dimension
+	 * @param offsets: the offsets to the cell of the node, restored on return
+	 * @param distance: the squared distance from q to the cell of the node
+	 * @param nearest: the closest points found so far
+	 */
+	private void kNearestNeighbor(int node, double[] q, double[] offsets, double distance, FlatKdTree.NearestK nearest) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			int end = start + right[node];
+			
+			if(dims == 2) {
+				double x = q[0], y = q[1];
+				
+				for(int s = start; s < end; s++) {
+					double dx = coords[2 * s] - x;
+					double dy = coords[2 * s + 1] - y;
+					
+					nearest.add(dx * dx + dy * dy, slotIds[s]);
+				}
+			} else {
+				for(int s = start; s < end; s++) {
+					nearest.add(distanceSq(coords, s * dims, q), slotIds[s]);
+				}
+			}
+			
+			return;
+		}
+		
+		int dim = cutDim[node];
+		double diff = q[dim] - cutVal[node];
+		
+		kNearestNeighbor(diff < 0 ? left[node] : right[node], q, offsets, distance, nearest);
+		
+		double old = offsets[dim];
+		double far = distance - old * old + diff * diff;
+		
+		if(far <= nearest.getKth()) {
+			offsets[dim] = diff;
+			kNearestNeighbor(diff < 0 ? right[node] : left[node], q, offsets, far, nearest);
+			offsets[dim] = old;
+		}
+	}
+	
+	/**
+	 * Helper method for delete that removes one point from the subtree of a node.
+	 * An empty bucket is removed and its parent is replaced by the sibling
+	 * @param target: the value of the point to remove, or null to remove any point at pt
+	 * @param targetId: the id of the point to remove, or NONE
+	 * @return the node that replaces this one, or NONE if it became empty
+	 */
+	private int delete(int node, double[] pt, T target, int targetId) {
+		if(cutDim[node] == LEAF) {
+			int start = left[node] * bucketSize;
+			int end = start + right[node];
+			int s = start;
+			
+			while(s < end && (!equals(coords, s * dims, pt) || (target != null && !target.equals(payload.get(slotIds[s])))
+							  || (targetId != NONE && slotIds[s] != targetId))) {
+				s++;
+			}
+			
+			if(s < end) {
+				freeId(slotIds[s]);
+				System.arraycopy(coords, (s + 1) * dims, coords, s * dims, (end - s - 1) * dims);
+				System.arraycopy(slotIds, s + 1, slotIds, s, end - s - 1);
+				right[node]--;
+				deleted = true;
+			}
+			
+			if(right[node] == 0 && node != root) {
+				freeLeaf(node);
+				return NONE;
+			}
+			
+			return node;
+		}
+		
+		double c = pt[cutDim[node]];
+		
+		if(c <= cutVal[node]) {
+			left[node] = delete(left[node], pt, target, targetId);
+			
+			if(left[node] == NONE) {
+				return replaceBy(node, right[node]);
+			}
+		}
+		
+		if(c >= cutVal[node] && !deleted) {
+			right[node] = delete(right[node], pt, target, targetId);
+			
+			if(right[node] == NONE) {
+				return replaceBy(node, left[node]);
+			}
+		}
+		
+		return node;
+	}
+	
+	/**
+	 * Frees an internal node whose child became empty
+	 * @return the remaining child, which takes its place
+	 */
+	private int replaceBy(int node, int child) {
+		left[node] = freeNode;
+		freeNode = node;
+		return child;
+	}
+	
+	/**
+	 * @return the squared distance from q to the point stored at a[offset, offset + dims)
+	 */
+	private double distanceSq(double[] a, int offset, double[] q) {
+		double result = 0;
+		
+		for(int d = 0; d < dims; d++) {
+			double diff = a[offset + d] - q[d];
+			result += diff * diff;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return whether the point stored at a[offset, offset + dims) is q
+	 */
+	private boolean equals(double[] a, int offset, double[] q) {
+		for(int d = 0; d < dims; d++) {
+			if(a[offset + d] != q[d]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Stably moves the points of ids[lo, hi) below value along dim in front of
+	 * the others
+	 * @param temp: scratch space as long as ids
+	 * @return the index of the first point that is not below value
+	 */
+	private int partition(int[] ids, int lo, int hi, int dim, double value, int[] temp) {
+		int split = lo, rest = lo;
+		
+		for(int i = lo; i < hi; i++) {
+			if(points[ids[i] * dims + dim] < value) {
+				ids[split++] = ids[i];
+			} else {
+				temp[rest++] = ids[i];
+			}
+		}
+		
+		System.arraycopy(temp, lo, ids, split, rest - lo);
+		return split;
+	}
+	
+	/**
+	 * Rearranges ids[lo, hi) so that ids[nth] is the point that would be there
+	 * if they were sorted lexicographically, by dim first and the following
+	 * dimensions, cyclically, after it (in two dimensions, the order of
+	 * XkdTree's ByXThenY and ByYThenX), with no greater point before it and no
+	 * smaller point after it. The partitions are three-way, so duplicate points
+	 * do not slow the selection down
+	 */
+	private void select(int[] ids, int lo, int hi, int nth, int dim) {
+		while(hi - lo > 1) {
+			int a = ids[lo], b = ids[(lo + hi) >>> 1], c = ids[hi - 1];
+			int pivot = (compare(a, b, dim) < 0)
+					? ((compare(b, c, dim) < 0) ? b : (compare(a, c, dim) < 0) ? c : a)
+					: ((compare(a, c, dim) < 0) ? a : (compare(b, c, dim) < 0) ? c : b);
+			
+			// [lo, less) is below the pivot, [less, i) equal and [more, hi) above
+			int less = lo, i = lo, more = hi;
+			while(i < more) {
+				int result = compare(ids[i], pivot, dim);
+				
+				if(result < 0) {
+					swap(ids, less++, i++);
+				} else if(result > 0) {
+					swap(ids, i, --more);
+				} else {
+					i++;
+				}
+			}
+			
+			if(nth < less) {
+				hi = less;
+			} else if(nth >= more) {
+				lo = more;
+			} else {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Swaps two entries of an array
+	 */
+	private static void swap(int[] ids, int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+	}
+	
+	/**
+	 * Compares two points by dim first and the following dimensions after it
+	 */
+	private int compare(int a, int b, int dim) {
+		for(int n = 0, d = dim; n < dims; n++, d = (d + 1 == dims) ? 0 : d + 1) {
+			int result = Double.compare(points[a * dims + d], points[b * dims + d]);
+			
+			if(result != 0) {
+				return result;
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Copies a point into a bucket slot
+	 */
+	private void place(int slot, int id) {
+		System.arraycopy(points, id * dims, coords, slot * dims, dims);
+		slotIds[slot] = id;
+	}
+	
+	/**
+	 * Gives a new point an id, reusing the id of a deleted point if possible
+	 * @param pts: the coordinates of a batch of points
+	 * @param i: the index of the point in the batch
+	 */
+	private int newId(double[] pts, int i, T value) {
+		int id;
+		
+		if(freeIdCount > 0) {
+			id = freeIds[--freeIdCount];
+			payload.set(id, value);
+		} else {
+			id = payload.size();
+			payload.add(value);
+			
+			if((id + 1) * dims > points.length) {
+				points = Arrays.copyOf(points, 2 * points.length);
+			}
+		}
+		
+		System.arraycopy(pts, i * dims, points, id * dims, dims);
+		return id;
+	}
+	
+	/**
+	 * Releases the id of a deleted point
+	 */
+	private void freeId(int id) {
+		payload.set(id, null);
+		
+		if(freeIdCount == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+		}
+		
+		freeIds[freeIdCount++] = id;
+	}
+	
+	/**
+	 * Allocates a node, reusing a freed one if possible
+	 */
+	private int newNode() {
+		if(freeNode != NONE) {
+			int node = freeNode;
+			freeNode = left[node];
+			return node;
+		}
+		
+		if(nodeCount == cutDim.length) {
+			int length = 2 * nodeCount;
+			cutDim = Arrays.copyOf(cutDim, length);
+			cutVal = Arrays.copyOf(cutVal, length);
+			left = Arrays.copyOf(left, length);
+			right = Arrays.copyOf(right, length);
+		}
+		
+		return nodeCount++;
+	}
+	
+	/**
+	 * Allocates an empty external node and its block
+	 */
+	private int newLeaf() {
+		int block;
+		
+		if(freeBlock != NONE) {
+			block = freeBlock;
+			freeBlock = slotIds[block * bucketSize];
+		} else {
+			if((blockCount + 1) * bucketSize > slotIds.length) {
+				int length = 2 * Math.max(slotIds.length, bucketSize);
+				coords = Arrays.copyOf(coords, length * dims);
+				slotIds = Arrays.copyOf(slotIds, length);
+			}
+			
+			block = blockCount++;
+		}
+		
+		int node = newNode();
+		cutDim[node] = LEAF;
+		left[node] = block;
+		right[node] = 0;
+		
+		return node;
+	}
+	
+	/**
+	 * Releases an external node and its block
+	 */
+	private void freeLeaf(int node) {
+		int block = left[node];
+		
+		slotIds[block * bucketSize] = freeBlock;
+		freeBlock = block;
+		
+		left[node] = freeNode;
+		freeNode = node;
+	}
+}
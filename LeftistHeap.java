@@ -50,16 +50,36 @@ public class LeftistHeap<Key extends Comparable<Key>, Value> {
 
 	private LHNode root;
 	private ArrayList<String> list;
+	private int size; // number of entries
+	private SolverMetrics metrics; // null unless instrumentation is enabled
 
 	/** 
 	 * Initializes an empty heap by setting the root to null
 	 */
 	public LeftistHeap() { 
 		root = null;
+		size = 0;
 	}
 	
 	public LeftistHeap(LHNode u) { 
 		root = u;
+		size = count(u);
+	}
+	
+	/**
+	 * Attaches a metrics collector that counts inserts and extractions and
+	 * tracks the largest size of the heap
+	 * @param metrics: the collector, or null to disable instrumentation
+	 */
+	public void setMetrics(SolverMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Gives the number of entries in the heap
+	 */
+	public int size() {
+		return size;
 	}
 	
 	/** 
@@ -78,6 +98,7 @@ public class LeftistHeap<Key extends Comparable<Key>, Value> {
 	 */
 	public void clear() { 
 		root = null;
+		size = 0;
 	}
 	
 	/**
@@ -92,6 +113,13 @@ public class LeftistHeap<Key extends Comparable<Key>, Value> {
 			
 			root = merge(this.root, newNode);
 		}
+		
+		size++;
+		
+		if (metrics != null) {
+			metrics.count(SolverMetrics.Counter.HEAP_INSERTS);
+			metrics.heapSize(size);
+		}
 	}
 	
 	/**
@@ -100,7 +128,13 @@ public class LeftistHeap<Key extends Comparable<Key>, Value> {
 	public void mergeWith(LeftistHeap<Key, Value> h2) {
 		if (h2 != null && this != h2) {
 			root = merge(this.root, h2.root);
+			size += h2.size;
 			h2.root = null;
+			h2.size = 0;
+			
+			if (metrics != null) {
+				metrics.heapSize(size);
+			}
 		}
 	}
 	
@@ -126,6 +160,12 @@ public class LeftistHeap<Key extends Comparable<Key>, Value> {
 		} else {
 			LHNode temp = root;
 			root = merge(root.left, root.right);
+			size--;
+			
+			if (metrics != null) {
+				metrics.count(SolverMetrics.Counter.HEAP_EXTRACTS);
+			}
+			
 			return temp.value;
 		}
 	}
@@ -153,6 +193,17 @@ public class LeftistHeap<Key extends Comparable<Key>, Value> {
 		}
 	}
 	
+	/**
+	 * Counts the nodes of the subtree rooted at u
+	 */
+	private int count(LHNode u) {
+		if (u == null) {
+			return 0;
+		}
+		
+		return 1 + count(u.left) + count(u.right);
+	}
+	
 	/**
 	 * Helper method for mergeWith that takes two nodes and merges their contents
 	 */
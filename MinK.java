@@ -50,6 +50,7 @@ public class MinK<Key extends Comparable<Key>, Value> {
 	private Key maxKey;
 	private int size;
 	private ArrayList<Entry> maxHeap;
+	private SolverMetrics metrics; // null unless instrumentation is enabled
 
 	/**
 	 * Constructor
@@ -64,6 +65,14 @@ public class MinK<Key extends Comparable<Key>, Value> {
 		this.size = 0;
 	}
 	
+	/**
+	 * Attaches a metrics collector that counts the offered and accepted entries
+	 * @param metrics: the collector, or null to disable instrumentation
+	 */
+	public void setMetrics(SolverMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
 	/**
 	 * Gives the size in terms of the number of entries in the heap
 	 * @return the size of maxHeap
@@ -100,6 +109,14 @@ public class MinK<Key extends Comparable<Key>, Value> {
 	 * @param v: Value to be added
 	 */
 	public void add(Key x, Value v) {
+		if (metrics != null) {
+			metrics.count(SolverMetrics.Counter.MINK_OFFERS);
+			
+			if (size < k || x.compareTo(getKth()) < 0) {
+				metrics.count(SolverMetrics.Counter.MINK_ACCEPTED);
+			}
+		}
+		
 		if (size < k) {
 			size++;
 			int i = siftUp(x);
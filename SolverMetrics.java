@@ -0,0 +1,301 @@
+/**
+ * @author David Morin
+ * This class collects counters and latency histograms from KCapFL, XkdTree,
+ * LeftistHeap and MinK. A structure only records anything once a SolverMetrics
+ * object has been attached to it with setMetrics; until then every recording
+ * site is skipped by a single null check. The values are reported to
+ * registered listeners and as JDK Flight Recorder events
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+public class SolverMetrics {
+	
+	/**
+	 * The events that are counted
+	 */
+	public enum Counter {
+		HEAP_INSERTS, // entries inserted into a LeftistHeap
+		HEAP_EXTRACTS, // entries removed from a LeftistHeap
+		STALE_POPS, // KCapFL heap entries popped but not committed
+		CLUSTERS, // clusters committed by KCapFL
+		KNN_QUERIES, // k-nearest neighbor queries on an XkdTree
+		KNN_NODES_VISITED, // kdTree nodes entered by k-nearest neighbor queries
+		KNN_NODES_PRUNED, // nodes skipped because their bounding box was too far
+		MINK_OFFERS, // points offered to a MinK
+		MINK_ACCEPTED, // offered points that entered the MinK
+		FINDS, // XkdTree.find calls
+		DELETES // XkdTree.delete calls
+	}
+	
+	/**
+	 * The operations whose latency is recorded
+	 */
+	public enum Timer {
+		BUILD, // KCapFL.build
+		EXTRACT_CLUSTER, // one KCapFL extraction step, stale pops included
+		KNN, // XkdTree.kNearestNeighbor
+		FIND, // XkdTree.find
+		DELETE // XkdTree.delete
+	}
+	
+	/**
+	 * Receives every latency recorded by a SolverMetrics object. Called on the
+	 * thread that performed the operation, so it must be cheap and thread-safe
+	 */
+	public interface Listener {
+		void operationTimed(Timer timer, long nanos);
+	}
+	
+	/**
+	 * The Flight Recorder event committed for every timed operation. It is
+	 * enabled in a recording with the name cmsc420_f22.SolverOperation
+	 */
+	@Name("cmsc420_f22.SolverOperation")
+	@Label("Solver Operation")
+	@Category({"CMSC420", "Facility Location"})
+	@Description("A timed operation of KCapFL or XkdTree")
+	static class OperationEvent extends Event {
+		@Label("Operation")
+		String operation;
+		
+		@Label("Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+	}
+	
+	private static final EventType OPERATION = EventType.getEventType(OperationEvent.class);
+	
+	private static final int BUCKETS = 65; // bucket b counts latencies in [2^(b-1), 2^b) ns
+	
+	private final LongAdder[] counters;
+	private final LongAdder[][] histograms; // [timer][bucket]
+	private final LongAdder[] totalNanos; // summed latency of each timer
+	private final LongAccumulator maxHeapSize; // largest LeftistHeap size seen
+	private final CopyOnWriteArrayList<Listener> listeners;
+	
+	/**
+	 * Constructor
+	 */
+	public SolverMetrics() {
+		counters = new LongAdder[Counter.values().length];
+		for(int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		
+		histograms = new LongAdder[Timer.values().length][BUCKETS];
+		totalNanos = new LongAdder[Timer.values().length];
+		for(int t = 0; t < histograms.length; t++) {
+			totalNanos[t] = new LongAdder();
+			
+			for(int b = 0; b < BUCKETS; b++) {
+				histograms[t][b] = new LongAdder();
+			}
+		}
+		
+		maxHeapSize = new LongAccumulator(Math::max, 0);
+		listeners = new CopyOnWriteArrayList<>();
+	}
+	
+	/**
+	 * Registers a listener for the recorded latencies
+	 * @param listener: the listener to add
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Unregisters a listener
+	 * @param listener: the listener to remove
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Resets every counter and histogram to zero
+	 */
+	public void reset() {
+		for(LongAdder c: counters) {
+			c.reset();
+		}
+		
+		for(int t = 0; t < histograms.length; t++) {
+			totalNanos[t].reset();
+			
+			for(LongAdder b: histograms[t]) {
+				b.reset();
+			}
+		}
+		
+		maxHeapSize.reset();
+	}
+	
+	/**
+	 * Adds one to a counter
+	 * @param counter: the counter
+	 */
+	void count(Counter counter) {
+		counters[counter.ordinal()].increment();
+	}
+	
+	/**
+	 * Adds to a counter
+	 * @param counter: the counter
+	 * @param amount: the amount added
+	 */
+	void count(Counter counter, long amount) {
+		counters[counter.ordinal()].add(amount);
+	}
+	
+	/**
+	 * Records the current size of a LeftistHeap
+	 * @param size: the number of entries in the heap
+	 */
+	void heapSize(int size) {
+		maxHeapSize.accumulate(size);
+	}
+	
+	/**
+	 * Records the latency of an operation, notifies the listeners and commits a
+	 * Flight Recorder event if the event is enabled in a running recording
+	 * @param timer: the operation
+	 * @param start: the System.nanoTime() value when the operation started
+	 */
+	void time(Timer timer, long start) {
+		long nanos = System.nanoTime() - start;
+		
+		histograms[timer.ordinal()][64 - Long.numberOfLeadingZeros(Math.max(0, nanos))].increment();
+		totalNanos[timer.ordinal()].add(nanos);
+		
+		for(Listener listener: listeners) {
+			listener.operationTimed(timer, nanos);
+		}
+		
+		if(OPERATION.isEnabled()) { // no event is allocated unless a recording wants it
+			OperationEvent event = new OperationEvent();
+			event.operation = timer.name();
+			event.latency = nanos;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @param counter: the counter
+	 * @return the current value of the counter
+	 */
+	public long getCount(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+	
+	/**
+	 * @return the largest number of entries any observed LeftistHeap held
+	 */
+	public long getMaxHeapSize() {
+		return maxHeapSize.get();
+	}
+	
+	/**
+	 * @param timer: the operation
+	 * @return the number of times the operation was timed
+	 */
+	public long getTimedCount(Timer timer) {
+		long count = 0;
+		
+		for(LongAdder b: histograms[timer.ordinal()]) {
+			count += b.sum();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @param timer: the operation
+	 * @return the total time spent in the operation, in nanoseconds
+	 */
+	public long getTotalNanos(Timer timer) {
+		return totalNanos[timer.ordinal()].sum();
+	}
+	
+	/**
+	 * Gives the latency histogram of an operation. Entry b counts the latencies
+	 * of at least 2^(b-1) and less than 2^b nanoseconds (entry 0 counts zeros)
+	 * @param timer: the operation
+	 * @return the bucket counts
+	 */
+	public long[] getHistogram(Timer timer) {
+		long[] result = new long[BUCKETS];
+		
+		for(int b = 0; b < BUCKETS; b++) {
+			result[b] = histograms[timer.ordinal()][b].sum();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Estimates a latency percentile from the histogram
+	 * @param timer: the operation
+	 * @param q: the quantile, between 0 and 1
+	 * @return an upper bound on the q-quantile latency in nanoseconds, or 0 if
+	 * the operation was never timed
+	 */
+	public long getPercentile(Timer timer, double q) {
+		long[] histogram = getHistogram(timer);
+		long count = 0;
+		
+		for(long c: histogram) {
+			count += c;
+		}
+		
+		long rank = (long) Math.ceil(q * count);
+		long seen = 0;
+		
+		for(int b = 0; b < BUCKETS; b++) {
+			seen += histogram[b];
+			
+			if(seen >= rank && seen > 0) {
+				return (b == 0) ? 0 : (b >= 63) ? Long.MAX_VALUE : (1L << b) - 1;
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * @return a one-line summary of the counters and the median and 99th
+	 * percentile latency of every operation that was timed
+	 */
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		
+		for(Counter c: Counter.values()) {
+			result.append(c.name()).append('=').append(getCount(c)).append(' ');
+		}
+		
+		result.append("MAX_HEAP_SIZE=").append(getMaxHeapSize());
+		
+		for(Timer t: Timer.values()) {
+			if(getTimedCount(t) > 0) {
+				result.append(' ').append(t.name()).append("=[n=").append(getTimedCount(t))
+					  .append(" p50<=").append(getPercentile(t, 0.5))
+					  .append("ns p99<=").append(getPercentile(t, 0.99)).append("ns]");
+			}
+		}
+		
+		return result.toString();
+	}
+}
@@ -0,0 +1,301 @@
+/**
+ * @author David Morin
+ * This class solves the k-capacitated facility location problem by splitting
+ * the bounding box into tiles, running an independent KCapFL on every tile in
+ * parallel, and reconciling the leftover and boundary points in a final pass
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class TiledKCapFL<LPoint extends LabeledPoint2D> {
+	
+	/**
+	 * The outcome of a tiled solve
+	 */
+	public static class Result<LPoint> {
+		ArrayList<ArrayList<LPoint>> clusters; // tile clusters first, then the final pass
+		int reconciledPoints; // points handed to the final pass
+		double cost; // sum of the cluster radii
+		double baselineCost; // cost of the single-tree greedy, or NaN if not computed
+		
+		/**
+		 * Constructor
+		 */
+		public Result(ArrayList<ArrayList<LPoint>> clusters, int reconciledPoints, double cost, double baselineCost) {
+			this.clusters = clusters;
+			this.reconciledPoints = reconciledPoints;
+			this.cost = cost;
+			this.baselineCost = baselineCost;
+		}
+		
+		public ArrayList<ArrayList<LPoint>> getClusters() {
+			return clusters;
+		}
+		
+		public int getReconciledPoints() {
+			return reconciledPoints;
+		}
+		
+		public double getCost() {
+			return cost;
+		}
+		
+		public double getBaselineCost() {
+			return baselineCost;
+		}
+		
+		/**
+		 * @return the relative cost added by tiling (0.05 means 5% more than the
+		 * single-tree greedy), or NaN if the baseline was not computed
+		 */
+		public double getOverhead() {
+			return (cost - baselineCost) / baselineCost;
+		}
+	}
+	
+	private int capacity;
+	private int bucketSize;
+	private Rectangle2D bbox;
+	private int tilesX, tilesY;
+	private int parallelism;
+	
+	/**
+	 * Constructor
+	 * @param capacity: Maximum capacity of any service center
+	 * @param bucketSize: the maximum bucket size for the kdTrees
+	 * @param bbox: the bounding box of all points
+	 * @param tilesX: the number of tile columns
+	 * @param tilesY: the number of tile rows
+	 * @param parallelism: the number of tiles solved at the same time
+	 */
+	public TiledKCapFL(int capacity, int bucketSize, Rectangle2D bbox, int tilesX, int tilesY, int parallelism) {
+		this.capacity = capacity;
+		this.bucketSize = bucketSize;
+		this.bbox = bbox;
+		this.tilesX = Math.max(1, tilesX);
+		this.tilesY = Math.max(1, tilesY);
+		this.parallelism = Math.max(1, parallelism);
+	}
+	
+	/**
+	 * Solves the problem tile by tile. Every tile commits as many full clusters
+	 * as it can, except those whose disc reaches past an inner tile edge, since
+	 * a neighboring tile might have served them better. The released and
+	 * leftover points are then clustered together by one global KCapFL
+	 * @param pts: the demand points
+	 * @param compare: if true, also runs the single-tree greedy to measure the
+	 * cost added by tiling
+	 * @return the clusters and their cost
+	 * @throws Exception if the points ArrayList is empty or its size is not
+	 * evenly divisible by the capacity
+	 */
+	public Result<LPoint> solve(ArrayList<LPoint> pts, boolean compare) throws Exception {
+		if(pts.isEmpty() || (pts.size() % capacity) != 0) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		ArrayList<ArrayList<LPoint>> tiles = new ArrayList<>(tilesX * tilesY);
+		for(int i = 0; i < tilesX * tilesY; i++) {
+			tiles.add(new ArrayList<>());
+		}
+		
+		for(LPoint p: pts) {
+			tiles.get(tileOf(p.getPoint2D())).add(p);
+		}
+		
+		ArrayList<Callable<ArrayList<ArrayList<LPoint>>>> tasks = new ArrayList<>();
+		for(int i = 0; i < tiles.size(); i++) {
+			final int tile = i;
+			
+			if(tiles.get(tile).size() >= capacity) {
+				tasks.add(() -> solveTile(tile, tiles.get(tile)));
+			}
+		}
+		
+		ArrayList<ArrayList<LPoint>> clusters = new ArrayList<>(pts.size() / capacity);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for(Future<ArrayList<ArrayList<LPoint>>> f: pool.invokeAll(tasks)) {
+				clusters.addAll(f.get());
+			}
+		} catch (ExecutionException e) {
+			throw new Exception("Tile solve failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		
+		Set<LPoint> committed = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(ArrayList<LPoint> cluster: clusters) {
+			committed.addAll(cluster);
+		}
+		
+		ArrayList<LPoint> leftovers = new ArrayList<>();
+		for(LPoint p: pts) {
+			if(!committed.contains(p)) {
+				leftovers.add(p);
+			}
+		}
+		
+		if(!leftovers.isEmpty()) {
+			KCapFL<LPoint> reconcile = new KCapFL<>(capacity, bucketSize, bbox);
+			reconcile.build(leftovers);
+			reconcile.extractAll(clusters::add);
+		}
+		
+		double baselineCost = Double.NaN;
+		
+		if(compare) {
+			KCapFL<LPoint> global = new KCapFL<>(capacity, bucketSize, bbox);
+			ArrayList<ArrayList<LPoint>> baseline = new ArrayList<>(pts.size() / capacity);
+			
+			global.build(pts);
+			global.extractAll(baseline::add);
+			baselineCost = cost(baseline);
+		}
+		
+		return new Result<>(clusters, leftovers.size(), cost(clusters), baselineCost);
+	}
+	
+	/**
+	 * Runs the greedy algorithm on a single tile
+	 * @param tile: the index of the tile
+	 * @param pts: the points inside the tile
+	 * @return the clusters that lie entirely inside the tile
+	 * @throws Exception if a point is outside the tile
+	 */
+	private ArrayList<ArrayList<LPoint>> solveTile(int tile, ArrayList<LPoint> pts) throws Exception {
+		Rectangle2D cell = tileBox(tile);
+		KCapFL<LPoint> solver = new KCapFL<>(capacity, bucketSize, cell);
+		ArrayList<ArrayList<LPoint>> result = new ArrayList<>();
+		
+		solver.load(pts);
+		
+		for(int i = pts.size() / capacity; i > 0; i--) {
+			ArrayList<LPoint> cluster = solver.extractCluster();
+			
+			if(insideTile(cluster, cell, bbox)) {
+				result.add(cluster);
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Checks whether the disc of a cluster stays clear of the inner tile edges
+	 * @param cluster: a cluster whose first point is its center
+	 * @param cell: the tile the cluster was formed in
+	 * @param bbox: the bounding box of all tiles
+	 * @return true if the disc does not cross an edge shared with another tile
+	 */
+	static <LPoint extends LabeledPoint2D> boolean insideTile(ArrayList<LPoint> cluster, Rectangle2D cell,
+															  Rectangle2D bbox) {
+		Point2D center = cluster.get(0).getPoint2D();
+		double radius = radius(cluster);
+		
+		for(int dim = 0; dim < 2; dim++) {
+			if(center.get(dim) - radius < cell.getLow().get(dim) && cell.getLow().get(dim) > bbox.getLow().get(dim)) {
+				return false;
+			}
+			
+			if(center.get(dim) + radius > cell.getHigh().get(dim) && cell.getHigh().get(dim) < bbox.getHigh().get(dim)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Finds the tile that contains a point
+	 * @param pt: a point inside the bounding box
+	 * @return the index of its tile (row-major)
+	 */
+	private int tileOf(Point2D pt) {
+		return cell(1, pt.getY(), tilesY) * tilesX + cell(0, pt.getX(), tilesX);
+	}
+	
+	/**
+	 * Finds the tile column (or row) of a coordinate: the last one whose lower
+	 * edge is at most v. Searching the values of edge() rather than dividing by
+	 * the tile width keeps rounding from putting a point just outside its tile
+	 */
+	private int cell(int dim, double v, int tiles) {
+		int lo = 0;
+		int hi = tiles - 1;
+		
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			
+			if(edge(dim, mid, tiles) <= v) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		
+		return lo;
+	}
+	
+	/**
+	 * Gives the rectangle covered by a tile. Its edges are the ones tileOf
+	 * searches, so every point lies inside the box of its own tile
+	 * @param tile: the index of the tile
+	 * @return the bounding box of the tile
+	 */
+	private Rectangle2D tileBox(int tile) {
+		int col = tile % tilesX;
+		int row = tile / tilesX;
+		
+		return new Rectangle2D(new Point2D(edge(0, col, tilesX), edge(1, row, tilesY)),
+							   new Point2D(edge(0, col + 1, tilesX), edge(1, row + 1, tilesY)));
+	}
+	
+	/**
+	 * Computes the coordinate of the i-th tile edge along a dimension
+	 */
+	private double edge(int dim, int i, int tiles) {
+		if(i == tiles) {
+			return bbox.getHigh().get(dim);
+		}
+		
+		return bbox.getLow().get(dim) + bbox.getWidth(dim) * i / tiles;
+	}
+	
+	/**
+	 * @return the distance from the center (first point) of a cluster to its
+	 * farthest member
+	 */
+	static <LPoint extends LabeledPoint2D> double radius(ArrayList<LPoint> cluster) {
+		Point2D center = cluster.get(0).getPoint2D();
+		double radiusSq = 0;
+		
+		for(LPoint p: cluster) {
+			radiusSq = Math.max(radiusSq, center.distanceSq(p.getPoint2D()));
+		}
+		
+		return Math.sqrt(radiusSq);
+	}
+	
+	/**
+	 * @return the sum of the radii of the clusters
+	 */
+	private static <LPoint extends LabeledPoint2D> double cost(ArrayList<ArrayList<LPoint>> clusters) {
+		double total = 0;
+		
+		for(ArrayList<LPoint> cluster: clusters) {
+			total += radius(cluster);
+		}
+		
+		return total;
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * @author David Morin
+ * This class implements the k-capacitated facility location problem for demand
+ * with many co-located points. Points at the same location are merged into one
+ * weighted site, so the kdTree, the k-nearest neighbor queries and the heap
+ * only deal with distinct locations, and the capacity is counted in demand units
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+public class WeightedKCapFL<LPoint extends LabeledPoint2D> {
+	
+	private int capacity;
+	private double resolution; // locations closer than this (per coordinate cell) are merged
+	private XkdTree<LPoint> kdTree; // one representative point per live site
+	private LeftistHeap<Double, Candidate> heap;
+	private ArrayList<LPoint> sites; // representative point of each site, indexed by id
+	private IdentityHashMap<LPoint, Integer> siteIds; // id of the site of each representative
+	private ArrayList<ArrayList<LPoint>> demand; // unassigned demand points of each site
+	private ArrayList<Integer> stamps; // bumped whenever the demand of a site changes
+	private int remaining; // unassigned demand units
+	
+	/**
+	 * A candidate cluster stored in the heap: the nearest sites of a center that
+	 * together hold at least capacity demand units
+	 */
+	private class Candidate {
+		int center; // id of the center site
+		int[] members; // ids of the sites, nearest first
+		int[] memberStamps; // stamps of the sites when the candidate was computed
+		
+		/**
+		 * Constructor
+		 */
+		public Candidate(int center, int[] members) {
+			this.center = center;
+			this.members = members;
+			this.memberStamps = new int[members.length];
+			
+			for(int i = 0; i < members.length; i++) {
+				memberStamps[i] = stamps.get(members[i]);
+			}
+		}
+		
+		public String toString() {
+			ArrayList<LPoint> reps = new ArrayList<>(members.length);
+			
+			for(int id: members) {
+				reps.add(sites.get(id));
+			}
+			
+			return reps.toString();
+		}
+	}
+	
+	/**
+	 * Constructor
+	 * @param capacity: Maximum capacity (in demand units) of any service center
+	 * @param bucketSize: the maximum bucket size for the kdTree
+	 * @param bbox: the bounding box for the kdTree
+	 * @param resolution: points in the same resolution-sized grid cell are merged
+	 * into one site (0 merges exact duplicates only)
+	 */
+	public WeightedKCapFL(int capacity, int bucketSize, Rectangle2D bbox, double resolution) {
+		this.capacity = capacity;
+		this.resolution = resolution;
+		this.kdTree = new XkdTree<>(bucketSize, bbox);
+		this.heap = new LeftistHeap<>();
+		this.sites = new ArrayList<>();
+		this.siteIds = new IdentityHashMap<>();
+		this.demand = new ArrayList<>();
+		this.stamps = new ArrayList<>();
+		this.remaining = 0;
+	}
+	
+	/**
+	 * Clears the data structure
+	 */
+	public void clear() {
+		kdTree.clear();
+		heap.clear();
+		sites.clear();
+		siteIds.clear();
+		demand.clear();
+		stamps.clear();
+		remaining = 0;
+	}
+	
+	/**
+	 * @return the number of distinct sites the demand points were merged into
+	 */
+	public int siteCount() {
+		return sites.size();
+	}
+	
+	/**
+	 * Initializes the structure by merging co-located points into sites and
+	 * building the kdTree and heap over the sites
+	 * @param pts: the demand points, one per demand unit
+	 * @throws Exception if the points ArrayList is empty or its size is not
+	 * evenly divisible by the capacity, or if a point is outside the bounding
+	 * box (the structure is then left unchanged)
+	 */
+	public void build(ArrayList<LPoint> pts) throws Exception {
+		if(pts.isEmpty() || (pts.size() % capacity) != 0) {
+			throw new Exception("Invalid point set size");
+		}
+		
+		ArrayList<LPoint> sorted = new ArrayList<>(pts);
+		Collections.sort(sorted, (p1, p2) -> {
+			int result = Double.compare(cell(p1.getX()), cell(p2.getX()));
+			return (result != 0) ? result : Double.compare(cell(p1.getY()), cell(p2.getY()));
+		});
+		
+		// the sort is stable, so a site is represented by its first point in pts
+		IdentityHashMap<LPoint, ArrayList<LPoint>> units = new IdentityHashMap<>(); // demand of each new site, by representative
+		ArrayList<LPoint> last = null;
+		
+		for(LPoint p: sorted) {
+			LPoint rep = (last == null) ? null : last.get(0);
+			
+			if(rep == null || cell(rep.getX()) != cell(p.getX()) || cell(rep.getY()) != cell(p.getY())) {
+				last = new ArrayList<>();
+				units.put(p, last);
+			}
+			
+			last.add(p);
+		}
+		
+		// the sites are numbered, inserted and offered in the order of pts, so
+		// that without co-located points the heap sees the operations of KCapFL
+		ArrayList<LPoint> reps = new ArrayList<>(units.size());
+		for(LPoint p: pts) {
+			if(units.containsKey(p)) {
+				reps.add(p);
+			}
+		}
+		
+		// checks the bounding box before any site is recorded
+		kdTree.bulkInsert(reps);
+		
+		int first = sites.size();
+		for(int i = 0; i < reps.size(); i++) {
+			siteIds.put(reps.get(i), sites.size());
+			sites.add(reps.get(i));
+			demand.add(units.get(reps.get(i)));
+			stamps.add(0);
+		}
+		
+		remaining += pts.size();
+		
+		for(int id = first; id < sites.size(); id++) {
+			offer(id);
+		}
+	}
+	
+	/**
+	 * Performs a single step of the greedy algorithm
+	 * @return the cluster (capacity demand points) or null if there are no more
+	 * clusters
+	 */
+	public ArrayList<LPoint> extractCluster() {
+		while(remaining > 0 && !heap.isEmpty()) {
+			Candidate min;
+			
+			try {
+				min = heap.extractMin();
+			} catch (Exception e) {
+				// the loop checks that the heap is not empty
+				throw new IllegalStateException("Heap is empty", e);
+			}
+			
+			if(demand.get(min.center).isEmpty()) {
+				continue;
+			}
+			
+			boolean valid = true;
+			
+			for(int i = 0; i < min.members.length; i++) {
+				if(stamps.get(min.members[i]) != min.memberStamps[i]) {
+					valid = false;
+					break;
+				}
+			}
+			
+			if(valid) {
+				ArrayList<LPoint> cluster = commit(min);
+				
+				if(!demand.get(min.center).isEmpty()) {
+					offer(min.center); // a heavy center can serve several clusters
+				}
+				
+				return cluster;
+			}
+			
+			offer(min.center);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Assigns the demand of a valid candidate to a new cluster: every site but
+	 * the last gives all its demand, the last gives only what is still needed
+	 * @param cand: the candidate being committed
+	 * @return the demand points of the cluster
+	 */
+	private ArrayList<LPoint> commit(Candidate cand) {
+		ArrayList<LPoint> cluster = new ArrayList<>(capacity);
+		
+		for(int id: cand.members) {
+			ArrayList<LPoint> units = demand.get(id);
+			
+			while(!units.isEmpty() && cluster.size() < capacity) {
+				cluster.add(units.remove(units.size() - 1));
+			}
+			
+			stamps.set(id, stamps.get(id) + 1);
+			
+			if(units.isEmpty()) {
+				try {
+					kdTree.delete(sites.get(id));
+				} catch (Exception e) {
+					// a site with demand left is always in the kdTree
+					throw new IllegalStateException("kdTree and heap out of sync", e);
+				}
+			}
+		}
+		
+		remaining -= cluster.size();
+		return cluster;
+	}
+	
+	/**
+	 * Computes the candidate of a center site and inserts it into the heap,
+	 * keyed by the squared distance to the farthest site it draws demand from.
+	 * The query starts small and widens until the sites found hold capacity units
+	 * @param center: the id of the center site
+	 */
+	private void offer(int center) {
+		Point2D c = sites.get(center).getPoint2D();
+		int k = Math.min(capacity, 8);
+		ArrayList<LPoint> near;
+		int count, units;
+		
+		while(true) {
+			near = kdTree.kNearestNeighbor(c, k);
+			count = 0;
+			units = 0;
+			
+			while(count < near.size() && units < capacity) {
+				units += demand.get(siteIds.get(near.get(count))).size();
+				count++;
+			}
+			
+			if(units >= capacity || near.size() < k || k >= capacity) {
+				break;
+			}
+			
+			k = Math.min(capacity, 2 * k);
+		}
+		
+		int[] members = new int[count];
+		for(int i = 0; i < count; i++) {
+			members[i] = siteIds.get(near.get(i));
+		}
+		
+		double distance = c.distanceSq(near.get(count - 1).getPoint2D());
+		heap.insert(distance, new Candidate(center, members));
+	}
+	
+	/**
+	 * @return the grid cell of a coordinate, or the coordinate itself if
+	 * only exact duplicates are merged
+	 */
+	private double cell(double v) {
+		return (resolution > 0) ? Math.floor(v / resolution) : v;
+	}
+}
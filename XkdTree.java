@@ -6,8 +6,13 @@
 package cmsc420_f22; // Do not delete this line
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class XkdTree<LPoint extends LabeledPoint2D> {
 	
@@ -15,265 +20,1662 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 	private int bucketSize;
 	private Rectangle2D bbox;
 	private Node root;
-	private ArrayList<String> list;
+	private boolean deleted; // set by a delete traversal that removed a point
+	private SolverMetrics metrics; // null unless instrumentation is enabled
+	private double rebuildThreshold; // live fraction below which a subtree is rebuilt (0 = never)
+	private int epoch; // bumped by snapshot(); older nodes may be shared and are copied before a change
+	
+	private static final int QUERY_GRAIN = 256; // queries per leaf task of a batched k-nearest neighbor search
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8; // largest array length the JVMs allow
+	private static final double[] NO_COORDINATES = new double[0]; // shared by the buckets that were never filled
+	private static final int MORTON_BITS = 15; // bits per coordinate of the Morton keys of a query batch (keys stay positive)
 	
 	/**
-	 * Comparator class of type LPoint to sort the points by X value,
-	 * followed by the Y value
+	 * Comparator class of type LPoint to sort the points by
+	 * alphabetical order
 	 */
-	private class ByXThenY implements Comparator<LPoint> {
+	private class Lexicographical implements Comparator<LPoint> {
 		public int compare(LPoint pt1, LPoint pt2) {
 			/* compare pt1 and pt2 lexicographically by x then y */
-			if(pt1.getPoint2D().getX() < pt2.getPoint2D().getX()) {
-				return -1;
-			}
-			else if (pt1.getPoint2D().getX() > pt2.getPoint2D().getX()) {
+			if(pt1.getLabel().compareTo(pt2.getLabel()) > 0) {
 				return 1;
 			}
-			else if (pt1.getPoint2D().getY() < pt2.getPoint2D().getY()) {
+			else if (pt1.getLabel().compareTo(pt2.getLabel()) < 0) {
 				return -1;
 			}
-			else if (pt1.getPoint2D().getY() > pt2.getPoint2D().getY()) {
-				return 1;
-			}
 			else {
 				return 0;
 			}
 		}
 	}
-
+	
 	/**
-	 * Comparator class of type LPoint to sort the points by Y value,
-	 * followed by the X value
+	 * The points of a bulk insertion, presorted once per dimension. Both orders
+	 * are index arrays into the points, and every subtree works on the same
+	 * range [lo, hi) of the two arrays, which always holds the same points.
+	 * Splitting a range keeps both halves sorted: the array of the cutting
+	 * dimension is already split, and the other one is stably partitioned. Points
+	 * with equal coordinates stay in their original order, as they did with the
+	 * stable sorts this replaces
 	 */
-	private class ByYThenX implements Comparator<LPoint> {
-		public int compare(LPoint pt1, LPoint pt2) {
-			/* compare pt1 and pt2 lexicographically by y then x */
-			if(pt1.getPoint2D().getY() < pt2.getPoint2D().getY()) {
-				return -1;
+	private class BulkLoad {
+		ArrayList<LPoint> pts; // the points, in their original order
+		double[][] coords; // coords[dim][i] is coordinate dim of point i
+		int[][] sorted; // sorted[0] by x then y, sorted[1] by y then x
+		boolean[] leftSide; // marks the points that go left in a partition
+		int[] temp; // scratch space for sorting and partitioning
+		
+		/**
+		 * Constructor that sorts the points along both dimensions
+		 * @param pts: the points being inserted
+		 */
+		public BulkLoad(ArrayList<LPoint> pts) {
+			int n = pts.size();
+			
+			this.pts = pts;
+			this.coords = new double[2][n];
+			this.sorted = new int[2][n];
+			this.leftSide = new boolean[n];
+			this.temp = new int[n];
+			
+			for(int i = 0; i < n; i++) {
+				coords[0][i] = pts.get(i).getX();
+				coords[1][i] = pts.get(i).getY();
+				sorted[0][i] = i;
+				sorted[1][i] = i;
 			}
-			else if (pt1.getPoint2D().getY() > pt2.getPoint2D().getY()) {
-				return 1;
+			
+			sort(sorted[0], 0, n, 0);
+			sort(sorted[1], 0, n, 1);
+		}
+		
+		/**
+		 * @return the point at position i of the order of dim, or of the original
+		 * order if dim is -1
+		 */
+		LPoint get(int dim, int i) {
+			return pts.get((dim < 0) ? i : sorted[dim][i]);
+		}
+		
+		/**
+		 * @return coordinate c of the point at position i of the order of dim
+		 */
+		double coordinate(int dim, int i, int c) {
+			return coords[c][sorted[dim][i]];
+		}
+		
+		/**
+		 * Stably partitions the order of the other dimension so that the points
+		 * at positions [lo, mid) of the order of dim come first
+		 */
+		void partition(int dim, int lo, int mid, int hi) {
+			int[] other = sorted[1 - dim];
+			
+			for(int i = lo; i < mid; i++) {
+				leftSide[sorted[dim][i]] = true;
 			}
-			else if (pt1.getPoint2D().getX() < pt2.getPoint2D().getX()) {
-				return -1;
+			
+			int l = lo, r = mid;
+			for(int i = lo; i < hi; i++) {
+				if(leftSide[other[i]]) {
+					temp[l++] = other[i];
+				} else {
+					temp[r++] = other[i];
+				}
 			}
-			else if (pt1.getPoint2D().getX() > pt2.getPoint2D().getX()) {
-				return 1;
+			
+			System.arraycopy(temp, lo, other, lo, hi - lo);
+			
+			for(int i = lo; i < mid; i++) {
+				leftSide[sorted[dim][i]] = false;
 			}
-			else {
-				return 0;
+		}
+		
+		/**
+		 * Stably merge sorts a range of indices by dim, then by the other coordinate
+		 */
+		void sort(int[] order, int lo, int hi, int dim) {
+			if(hi - lo < 2) {
+				return;
+			}
+			
+			int mid = (lo + hi) >>> 1;
+			sort(order, lo, mid, dim);
+			sort(order, mid, hi, dim);
+			
+			if(compare(order[mid - 1], order[mid], dim) <= 0) {
+				return;
+			}
+			
+			System.arraycopy(order, lo, temp, lo, hi - lo);
+			
+			int i = lo, j = mid;
+			for(int n = lo; n < hi; n++) {
+				if(j >= hi || (i < mid && compare(temp[i], temp[j], dim) <= 0)) {
+					order[n] = temp[i++];
+				} else {
+					order[n] = temp[j++];
+				}
 			}
+		}
+		
+		/**
+		 * Compares two points lexicographically by dim, then by the other coordinate
+		 */
+		int compare(int a, int b, int dim) {
+			int result = Double.compare(coords[dim][a], coords[dim][b]);
 			
+			return (result != 0) ? result : Double.compare(coords[1 - dim][a], coords[1 - dim][b]);
 		}
 	}
 	
 	/**
-	 * Comparator class of type LPoint to sort the points by
-	 * alphabetical order
+	 * A caller-owned result buffer for k-nearest neighbor queries. It keeps the
+	 * candidates in a max heap of primitive distances (the same heap MinK
+	 * uses, so ties come out in the same order) and is sorted in place when the
+	 * query ends. Its arrays only grow, so once they are large enough a query
+	 * allocates nothing. A buffer must not be shared between threads
 	 */
-	private class Lexicographical implements Comparator<LPoint> {
-		public int compare(LPoint pt1, LPoint pt2) {
-			/* compare pt1 and pt2 lexicographically by x then y */
-			if(pt1.getLabel().compareTo(pt2.getLabel()) > 0) {
-				return 1;
+	public static class NeighborBuffer<LPoint> {
+		private int k; // the number of neighbors requested
+		private int size; // number of entries, stored at positions 1..size
+		private double[] keys; // squared distances
+		private Object[] values; // the points
+		private double[] tempKeys; // scratch space for sorting
+		private Object[] tempValues;
+		private double[] distances; // scratch space for the distances of a bucket
+		
+		/**
+		 * Constructor
+		 */
+		public NeighborBuffer() {
+			this.keys = new double[1];
+			this.values = new Object[1];
+			this.tempKeys = new double[1];
+			this.tempValues = new Object[1];
+			this.distances = new double[1];
+		}
+		
+		/**
+		 * @return the number of neighbors found by the last query
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * @param i: the rank of a neighbor, 0 being the nearest
+		 * @return the i-th nearest neighbor found by the last query
+		 */
+		@SuppressWarnings("unchecked")
+		public LPoint get(int i) {
+			return (LPoint) values[i + 1];
+		}
+		
+		/**
+		 * @param i: the rank of a neighbor, 0 being the nearest
+		 * @return the squared distance from the query point to the i-th nearest neighbor
+		 */
+		public double distanceSq(int i) {
+			return keys[i + 1];
+		}
+		
+		/**
+		 * Copies the neighbors found by the last query into a new list
+		 * @return the neighbors in order of increasing distance
+		 */
+		public ArrayList<LPoint> toList() {
+			ArrayList<LPoint> result = new ArrayList<>(size);
+			
+			for(int i = 0; i < size; i++) {
+				result.add(get(i));
 			}
-			else if (pt1.getLabel().compareTo(pt2.getLabel()) < 0) {
-				return -1;
+			
+			return result;
+		}
+		
+		/**
+		 * Empties the buffer for a query of k neighbors, growing it if needed
+		 */
+		void reset(int k) {
+			if(keys.length < k + 1) {
+				keys = new double[k + 1];
+				values = new Object[k + 1];
+				tempKeys = new double[k + 1];
+				tempValues = new Object[k + 1];
 			}
-			else {
+			
+			Arrays.fill(values, 1, size + 1, null);
+			this.k = k;
+			this.size = 0;
+		}
+		
+		/**
+		 * @return the k-th smallest distance seen, or Double.MAX_VALUE while fewer
+		 * than k points have been seen
+		 */
+		double getKth() {
+			return (size == k) ? keys[1] : Double.MAX_VALUE;
+		}
+		
+		/**
+		 * Offers a point to the buffer, as MinK.add does
+		 * @param x: the squared distance of the point
+		 * @param v: the point
+		 */
+		void add(double x, Object v) {
+			int i;
+			
+			if(size < k) {
+				i = ++size;
+				
+				while(i > 1 && x > keys[i / 2]) {
+					keys[i] = keys[i / 2];
+					values[i] = values[i / 2];
+					i /= 2;
+				}
+			} else if(x < getKth()) {
+				i = 1;
+				
+				while(2 * i <= size) {
+					int u = 2 * i;
+					
+					if(u + 1 <= size && keys[u + 1] > keys[u]) {
+						u++;
+					}
+					
+					if(keys[u] > x) {
+						keys[i] = keys[u];
+						values[i] = values[u];
+						i = u;
+					} else {
+						break;
+					}
+				}
+			} else {
+				return;
+			}
+			
+			keys[i] = x;
+			values[i] = v;
+		}
+		
+		/**
+		 * @return scratch space for the distances of n points
+		 */
+		double[] scratch(int n) {
+			if(distances.length < n) {
+				distances = new double[n];
+			}
+			
+			return distances;
+		}
+		
+		/**
+		 * Offers the first n points of a bucket whose distances were computed
+		 * together. Only the points closer than the current k-th distance reach
+		 * the heap, in bucket order, so the result is the same as offering the
+		 * points one at a time
+		 * @param d: the squared distances of the points
+		 * @param pts: the points
+		 * @param n: the number of points
+		 */
+		void addAll(double[] d, ArrayList<?> pts, int n) {
+			for(int i = 0; i < n; i++) {
+				if(size < k || d[i] < keys[1]) {
+					add(d[i], pts.get(i));
+				}
+			}
+		}
+		
+		/**
+		 * Sorts the entries by increasing distance with a stable merge sort, so
+		 * equal distances keep their heap order as in MinK.list()
+		 */
+		void sort() {
+			for(int width = 1; width < size; width *= 2) {
+				for(int lo = 1; lo + width <= size; lo += 2 * width) {
+					int mid = lo + width;
+					int hi = Math.min(lo + 2 * width, size + 1);
+					
+					if(keys[mid - 1] <= keys[mid]) {
+						continue;
+					}
+					
+					System.arraycopy(keys, lo, tempKeys, lo, hi - lo);
+					System.arraycopy(values, lo, tempValues, lo, hi - lo);
+					
+					int i = lo, j = mid;
+					for(int n = lo; n < hi; n++) {
+						if(j >= hi || (i < mid && tempKeys[i] <= tempKeys[j])) {
+							keys[n] = tempKeys[i];
+							values[n] = tempValues[i++];
+						} else {
+							keys[n] = tempKeys[j];
+							values[n] = tempValues[j++];
+						}
+					}
+				}
+			}
+			
+			Arrays.fill(tempValues, 1, size + 1, null);
+		}
+	}
+	
+	/**
+	 * The k nearest neighbors of every point of an XkdTree, as computed by
+	 * allKNearestNeighbors. The points are numbered from 0 in the left to right
+	 * order of the tree, and the neighbors are kept as point numbers in one flat
+	 * table whose row i lists the neighbors of point i by increasing distance
+	 * (equidistant neighbors by increasing number)
+	 */
+	public static class NeighborTable<LPoint> {
+		private Object[] points; // the points, by number
+		private int k; // the length of a row
+		private int[] neighbors; // entry i * k + j is the j-th nearest neighbor of point i, or -1
+		private double[] distances; // the squared distances of the neighbors
+		
+		/**
+		 * Constructor
+		 */
+		NeighborTable(Object[] points, int k, int[] neighbors, double[] distances) {
+			this.points = points;
+			this.k = k;
+			this.neighbors = neighbors;
+			this.distances = distances;
+		}
+		
+		/**
+		 * @return the number of points
+		 */
+		public int size() {
+			return points.length;
+		}
+		
+		/**
+		 * @return the number of neighbors computed for each point
+		 */
+		public int getK() {
+			return k;
+		}
+		
+		/**
+		 * @param i: the number of a point
+		 * @return the point
+		 */
+		@SuppressWarnings("unchecked")
+		public LPoint getPoint(int i) {
+			return (LPoint) points[i];
+		}
+		
+		/**
+		 * @param i: the number of a point
+		 * @param j: the rank of a neighbor, 0 being the nearest (the point itself)
+		 * @return the number of the j-th nearest neighbor of point i, or -1 if
+		 * the tree holds fewer than j + 1 points
+		 */
+		public int getNeighbor(int i, int j) {
+			return neighbors[i * k + j];
+		}
+		
+		/**
+		 * @param i: the number of a point
+		 * @param j: the rank of a neighbor, 0 being the nearest
+		 * @return the squared distance from point i to its j-th nearest neighbor,
+		 * or infinity if there is none
+		 */
+		public double getDistanceSq(int i, int j) {
+			return distances[i * k + j];
+		}
+		
+		/**
+		 * @param i: the number of a point
+		 * @return a new list of the neighbors of point i in order of increasing distance
+		 */
+		public ArrayList<LPoint> getNeighbors(int i) {
+			ArrayList<LPoint> result = new ArrayList<>(k);
+			
+			for(int j = 0; j < k && neighbors[i * k + j] >= 0; j++) {
+				result.add(getPoint(neighbors[i * k + j]));
+			}
+			
+			return result;
+		}
+	}
+	
+	/**
+	 * Fork-join task that answers the queries of a batch whose positions in the
+	 * Morton order are in [lo, hi). Each leaf task reuses one NeighborBuffer for
+	 * all its queries and copies every answer to the row of its query
+	 */
+	private class QueryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		Point2D[] centers;
+		int[] order; // query indices in Morton order
+		int k;
+		LPoint[] result;
+		double[] distances;
+		int lo, hi;
+		
+		/**
+		 * Constructor
+		 */
+		public QueryTask(Point2D[] centers, int[] order, int k, LPoint[] result, double[] distances, int lo, int hi) {
+			this.centers = centers;
+			this.order = order;
+			this.k = k;
+			this.result = result;
+			this.distances = distances;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		protected void compute() {
+			if(hi - lo <= QUERY_GRAIN) {
+				NeighborBuffer<LPoint> buffer = new NeighborBuffer<>();
+				
+				for(int i = lo; i < hi; i++) {
+					int q = order[i];
+					int found = kNearestNeighbor(centers[q], k, buffer);
+					
+					for(int j = 0; j < k; j++) {
+						result[q * k + j] = (j < found) ? buffer.get(j) : null;
+						
+						if(distances != null) {
+							distances[q * k + j] = (j < found) ? buffer.distanceSq(j) : Double.POSITIVE_INFINITY;
+						}
+					}
+				}
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new QueryTask(centers, order, k, result, distances, lo, mid),
+						  new QueryTask(centers, order, k, result, distances, mid, hi));
+			}
+		}
+	}
+	
+	/**
+	 * A flat copy of the tree made for one allKNearestNeighbors call, together
+	 * with a bounded max heap of candidates for every point. The copy leaves out
+	 * empty subtrees, so every leaf holds points and every node owns the
+	 * contiguous range [first, last) of the point numbers
+	 */
+	private class AllNeighbors {
+		int k;
+		Object[] points; // the points, numbered in left to right order
+		double[] xs, ys; // their coordinates
+		int numPoints, numNodes;
+		int[] left, right; // children of a node (-1 for a leaf)
+		int[] first, last; // the point numbers of the subtree of a node
+		double[] lowX, lowY, highX, highY; // bounding box of a node
+		double[] bound; // the largest k-th distance of the points of a node
+		double[] keys; // row i holds the heap of point i at positions i * k .. i * k + k - 1
+		int[] values; // point numbers of the heap entries
+		int[] sizes; // number of entries in the heap of each point
+		
+		/**
+		 * Constructor
+		 * @param n: the number of points in the tree
+		 * @param k: the number of neighbors of each point
+		 * @throws Exception: if the heaps of the points or the nodes of the
+		 * tree do not fit in an array
+		 */
+		public AllNeighbors(int n, int k) throws Exception {
+			if((long) n * k > MAX_ARRAY || 2L * n > MAX_ARRAY) {
+				throw new Exception("Neighbor table too large");
+			}
+			
+			this.k = k;
+			points = new Object[n];
+			xs = new double[n];
+			ys = new double[n];
+			left = new int[2 * n];
+			right = new int[2 * n];
+			first = new int[2 * n];
+			last = new int[2 * n];
+			lowX = new double[2 * n];
+			lowY = new double[2 * n];
+			highX = new double[2 * n];
+			highY = new double[2 * n];
+			bound = new double[2 * n];
+			keys = new double[n * k];
+			values = new int[n * k];
+			sizes = new int[n];
+		}
+		
+		/**
+		 * Adds a leaf holding the points of a bucket
+		 * @return the index of the new node
+		 */
+		int addLeaf(ArrayList<LPoint> pts, Node node) {
+			int v = addNode(-1, -1, node);
+			
+			first[v] = numPoints;
+			for(LPoint p: pts) {
+				points[numPoints] = p;
+				xs[numPoints] = p.getX();
+				ys[numPoints] = p.getY();
+				numPoints++;
+			}
+			last[v] = numPoints;
+			
+			return v;
+		}
+		
+		/**
+		 * Adds an internal node above two nodes already added
+		 * @return the index of the new node
+		 */
+		int addInternal(int l, int r, Node node) {
+			int v = addNode(l, r, node);
+			
+			first[v] = first[l];
+			last[v] = last[r];
+			return v;
+		}
+		
+		/**
+		 * Adds a node with the bounding box of a node of the tree
+		 */
+		private int addNode(int l, int r, Node node) {
+			int v = numNodes++;
+			
+			left[v] = l;
+			right[v] = r;
+			lowX[v] = node.lowX;
+			lowY[v] = node.lowY;
+			highX[v] = node.highX;
+			highY[v] = node.highY;
+			bound[v] = Double.POSITIVE_INFINITY;
+			return v;
+		}
+		
+		/**
+		 * @return the squared distance between the bounding boxes of two nodes
+		 */
+		double gapSq(int a, int b) {
+			double dx = Math.max(0, Math.max(lowX[a] - highX[b], lowX[b] - highX[a]));
+			double dy = Math.max(0, Math.max(lowY[a] - highY[b], lowY[b] - highY[a]));
+			
+			return dx * dx + dy * dy;
+		}
+		
+		/**
+		 * @return the squared distance from point i to the bounding box of node v
+		 */
+		double pointGapSq(int i, int v) {
+			double dx = Math.max(0, Math.max(lowX[v] - xs[i], xs[i] - highX[v]));
+			double dy = Math.max(0, Math.max(lowY[v] - ys[i], ys[i] - highY[v]));
+			
+			return dx * dx + dy * dy;
+		}
+		
+		/**
+		 * @return the k-th smallest distance seen by point i, or infinity while
+		 * it has seen fewer than k points
+		 */
+		double getKth(int i) {
+			return (sizes[i] == k) ? keys[i * k] : Double.POSITIVE_INFINITY;
+		}
+		
+		/**
+		 * Searches the points of node r for neighbors of the points of node q.
+		 * The pair is skipped if the boxes are farther apart than the k-th
+		 * distance of every point of q. Otherwise q is split down to its leaves
+		 * first, and then r, nearest child first so the bounds shrink early.
+		 * (Splitting the larger node of the pair instead compares several times
+		 * more leaf pairs when points are repeated, because a bucket only gets
+		 * a tight bound once it has seen all the copies of its points)
+		 * @param q: the query node
+		 * @param r: the reference node
+		 * @param fork: true to search the two halves of a large query node as
+		 * parallel tasks (the call must run in a ForkJoinPool)
+		 */
+		void search(int q, int r, boolean fork) {
+			if(gapSq(q, r) > bound[q]) {
+				return;
+			}
+			
+			if(left[q] >= 0) {
+				if(fork && last[q] - first[q] > QUERY_GRAIN) {
+					ForkJoinTask.invokeAll(new DualTask(this, left[q], r), new DualTask(this, right[q], r));
+				} else {
+					search(left[q], r, fork);
+					search(right[q], r, fork);
+				}
+				
+				bound[q] = Math.max(bound[left[q]], bound[right[q]]);
+			} else if(left[r] >= 0) {
+				int near = left[r], far = right[r];
+				
+				if(gapSq(q, far) < gapSq(q, near)) {
+					near = right[r];
+					far = left[r];
+				}
+				
+				search(q, near, fork);
+				search(q, far, fork);
+			} else {
+				compare(q, r);
+			}
+		}
+		
+		/**
+		 * Offers every point of leaf r to the heap of every point of leaf q
+		 */
+		private void compare(int q, int r) {
+			double b = 0;
+			
+			for(int i = first[q]; i < last[q]; i++) {
+				if(pointGapSq(i, r) <= getKth(i)) {
+					for(int j = first[r]; j < last[r]; j++) {
+						double dx = xs[i] - xs[j];
+						double dy = ys[i] - ys[j];
+						
+						add(i, dx * dx + dy * dy, j);
+					}
+				}
+				
+				b = Math.max(b, getKth(i));
+			}
+			
+			bound[q] = b;
+		}
+		
+		/**
+		 * Offers point j at squared distance d to the heap of point i. Entries are
+		 * ordered by distance and then by point number, so the heap keeps the k
+		 * smallest pairs whatever the order of the offers
+		 */
+		private void add(int i, double d, int j) {
+			int base = i * k - 1; // position p of the heap is at base + p
+			int p;
+			
+			if(sizes[i] < k) {
+				p = ++sizes[i];
+				
+				while(p > 1 && after(d, j, base + p / 2)) {
+					keys[base + p] = keys[base + p / 2];
+					values[base + p] = values[base + p / 2];
+					p /= 2;
+				}
+				
+				keys[base + p] = d;
+				values[base + p] = j;
+			} else if(after(keys[base + 1], values[base + 1], d, j)) {
+				siftDown(base, sizes[i], d, j);
+			}
+		}
+		
+		/**
+		 * Replaces the largest entry of a heap and restores the heap order
+		 * @param base: the offset of the heap
+		 * @param size: the number of entries of the heap
+		 * @param d: the distance of the new entry
+		 * @param j: the point number of the new entry
+		 */
+		private void siftDown(int base, int size, double d, int j) {
+			int p = 1;
+			
+			while(2 * p <= size) {
+				int u = 2 * p;
+				
+				if(u + 1 <= size && after(base + u + 1, base + u)) {
+					u++;
+				}
+				
+				if(after(keys[base + u], values[base + u], d, j)) {
+					keys[base + p] = keys[base + u];
+					values[base + p] = values[base + u];
+					p = u;
+				} else {
+					break;
+				}
+			}
+			
+			keys[base + p] = d;
+			values[base + p] = j;
+		}
+		
+		/**
+		 * @return true if entry (d1, j1) comes after entry (d2, j2)
+		 */
+		private boolean after(double d1, int j1, double d2, int j2) {
+			return d1 > d2 || (d1 == d2 && j1 > j2);
+		}
+		
+		/**
+		 * @return true if the new entry (d, j) comes after the heap entry at index e
+		 */
+		private boolean after(double d, int j, int e) {
+			return after(d, j, keys[e], values[e]);
+		}
+		
+		/**
+		 * @return true if the heap entry at index a comes after the one at index b
+		 */
+		private boolean after(int a, int b) {
+			return after(keys[a], values[a], keys[b], values[b]);
+		}
+		
+		/**
+		 * Sorts every heap in place (a heap sort) and copies the rows to a table
+		 * @return the table of the neighbors
+		 */
+		NeighborTable<LPoint> table() {
+			int[] neighbors = new int[numPoints * k];
+			double[] distances = new double[numPoints * k];
+			
+			for(int i = 0; i < numPoints; i++) {
+				int base = i * k - 1;
+				
+				for(int size = sizes[i]; size > 1; size--) {
+					double d = keys[base + size];
+					int j = values[base + size];
+					
+					keys[base + size] = keys[base + 1];
+					values[base + size] = values[base + 1];
+					siftDown(base, size - 1, d, j);
+				}
+				
+				for(int p = 0; p < k; p++) {
+					neighbors[i * k + p] = (p < sizes[i]) ? values[i * k + p] : -1;
+					distances[i * k + p] = (p < sizes[i]) ? keys[i * k + p] : Double.POSITIVE_INFINITY;
+				}
+			}
+			
+			return new NeighborTable<>(points, k, neighbors, distances);
+		}
+	}
+	
+	/**
+	 * Fork-join task that runs one branch of a parallel all-k-nearest neighbors search
+	 */
+	private class DualTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		AllNeighbors all;
+		int q, r;
+		
+		/**
+		 * Constructor
+		 */
+		public DualTask(AllNeighbors all, int q, int r) {
+			this.all = all;
+			this.q = q;
+			this.r = r;
+		}
+		
+		protected void compute() {
+			all.search(q, r, true);
+		}
+	}
+	
+	/**
+	 * A read-only version of the tree, taken by snapshot(). Later changes to the
+	 * tree copy the nodes they modify instead of changing them in place, so a
+	 * snapshot keeps answering queries on the points it was taken with, and
+	 * any number of threads may query it while the tree is being changed
+	 */
+	public class Snapshot {
+		private final Node root;
+		private final int numPoints;
+		private final int version; // the epoch of the tree when the snapshot was taken
+		
+		/**
+		 * Constructor
+		 */
+		Snapshot(Node root, int numPoints, int version) {
+			this.root = root;
+			this.numPoints = numPoints;
+			this.version = version;
+		}
+		
+		/**
+		 * @return the number of the snapshot, which grows with every snapshot
+		 * taken of the same tree
+		 */
+		public int getVersion() {
+			return version;
+		}
+		
+		/**
+		 * @return the number of points in the snapshot
+		 */
+		public int size() {
+			return numPoints;
+		}
+		
+		/**
+		 * Determines whether a point occurs within the snapshot
+		 * @param q: the point that is being searched for
+		 * @return the associated LPoint if the point occurs, otherwise null
+		 */
+		public LPoint find(Point2D q) {
+			return root.find(q);
+		}
+		
+		/**
+		 * Finds the point of the snapshot closest to a query point
+		 * @param center: the query point
+		 * @return the closest LPoint, or null if the snapshot is empty
+		 */
+		public LPoint nearestNeighbor(Point2D center) {
+			return (numPoints == 0) ? null : root.nearestNeighbor(center, null);
+		}
+		
+		/**
+		 * Computes the k nearest neighbors of a point, as XkdTree.kNearestNeighbor
+		 * @param center: the query point
+		 * @param k: the number of neighbors
+		 * @return the k nearest neighbors of center in order of increasing distance
+		 */
+		public ArrayList<LPoint> kNearestNeighbor(Point2D center, int k) {
+			NeighborBuffer<LPoint> buffer = new NeighborBuffer<>();
+			
+			kNearestNeighbor(center, k, buffer);
+			return buffer.toList();
+		}
+		
+		/**
+		 * Computes the k nearest neighbors of a point into a caller-owned buffer
+		 * @param center: the query point
+		 * @param k: the number of neighbors
+		 * @param result: receives the neighbors in order of increasing distance
+		 * @return the number of neighbors found
+		 */
+		public int kNearestNeighbor(Point2D center, int k, NeighborBuffer<LPoint> result) {
+			long start = (metrics == null) ? 0 : System.nanoTime();
+			
+			result.reset(k);
+			
+			if(numPoints > 0 && k > 0) {
+				root.kNearestNeighbor(center, result);
+				result.sort();
+			}
+			
+			if(metrics != null) {
+				metrics.count(SolverMetrics.Counter.KNN_QUERIES);
+				metrics.time(SolverMetrics.Timer.KNN, start);
+			}
+			
+			return result.size();
+		}
+		
+		/**
+		 * @return the points within radius of center, as XkdTree.withinRadius
+		 */
+		public ArrayList<LPoint> withinRadius(Point2D center, double radius) {
+			ArrayList<LPoint> result = new ArrayList<>();
+			
+			if(numPoints > 0 && radius >= 0) {
+				root.withinRadius(center, radius * radius, result);
+			}
+			
+			return result;
+		}
+		
+		/**
+		 * @return the number of points within radius of center
+		 */
+		public int countWithinRadius(Point2D center, double radius) {
+			return (numPoints == 0 || radius < 0) ? 0 : root.countWithinRadius(center, radius * radius);
+		}
+		
+		/**
+		 * @return the points in the rectangle, as XkdTree.inRectangle
+		 */
+		public ArrayList<LPoint> inRectangle(Rectangle2D rect) {
+			ArrayList<LPoint> result = new ArrayList<>();
+			
+			if(numPoints > 0) {
+				root.inRectangle(rect, result);
+			}
+			
+			return result;
+		}
+		
+		/**
+		 * @return the number of points in the rectangle
+		 */
+		public int countInRectangle(Rectangle2D rect) {
+			return (numPoints == 0) ? 0 : root.countInRectangle(rect);
+		}
+		
+		/**
+		 * Lists the snapshot like XkdTree.list, without reordering its buckets
+		 * @return an ArrayList<String> representation of the snapshot
+		 */
+		public ArrayList<String> list() {
+			ArrayList<String> list = new ArrayList<>();
+			root.list(list);
+			return list;
+		}
+	}
+	
+	/**
+	 * The points removed by one batch deletion
+	 */
+	private class DeleteBatch {
+		Point2D[] pts; // coordinates of the points to delete
+		LPoint[] targets; // the exact points to delete, or null for any point at pts[i]
+		boolean[] found; // set once the i-th point has been deleted
+		int removed; // number of points deleted so far
+		
+		/**
+		 * Constructor
+		 */
+		public DeleteBatch(Point2D[] pts, LPoint[] targets) {
+			this.pts = pts;
+			this.targets = targets;
+			this.found = new boolean[pts.length];
+			this.removed = 0;
+		}
+		
+		/**
+		 * Selects the members not yet deleted that lie on one side of a cut
+		 * (those on the cut belong to both sides)
+		 * @param members: the indices of the batch reaching a node
+		 * @param low: true for the side below the cut, false for the side above
+		 * @return the selected indices
+		 */
+		int[] select(int[] members, int cutDim, double cutVal, boolean low) {
+			int[] result = new int[members.length];
+			int count = 0;
+			
+			for(int i: members) {
+				double v = pts[i].get(cutDim);
+				
+				if(!found[i] && (low ? v <= cutVal : v >= cutVal)) {
+					result[count++] = i;
+				}
+			}
+			
+			return (count == result.length) ? result : Arrays.copyOf(result, count);
+		}
+	}
+	
+	private abstract class Node { // generic node
+		// bounding box of the points in the subtree (empty while there are none)
+		double lowX = Double.POSITIVE_INFINITY, lowY = Double.POSITIVE_INFINITY;
+		double highX = Double.NEGATIVE_INFINITY, highY = Double.NEGATIVE_INFINITY;
+		int epoch = XkdTree.this.epoch; // the epoch in which the node was created or copied
+		
+		abstract LPoint find(Point2D pt); // find helper - abstract
+		abstract Node bulkInsert(BulkLoad load, int lo, int hi, int order);
+		abstract void list(ArrayList<String> list);
+		abstract LPoint nearestNeighbor(Point2D center, LPoint best);
+		abstract Node delete(Point2D pt, LPoint target);
+		abstract Node deleteAll(DeleteBatch batch, int[] members);
+		abstract void collect(ArrayList<LPoint> pts);
+		abstract int size();
+		abstract void kNearestNeighbor(Point2D center, int k, MinK<Double, LPoint> minK);
+		abstract void kNearestNeighbor(Point2D center, NeighborBuffer<LPoint> buffer);
+		abstract void shrink(); // recomputes the bounding box
+		abstract int flatten(AllNeighbors all); // copies a nonempty subtree, returns its node index
+		abstract void withinRadius(Point2D center, double radiusSq, ArrayList<LPoint> result);
+		abstract int countWithinRadius(Point2D center, double radiusSq);
+		abstract void inRectangle(Rectangle2D rect, ArrayList<LPoint> result);
+		abstract int countInRectangle(Rectangle2D rect);
+		abstract Node copy(); // a modifiable copy of the node in the current epoch
+		abstract boolean countsConsistent(); // checks the live and built counts of the subtree
+		abstract boolean coordinatesConsistent(); // checks the bucket coordinates of the subtree
+		
+		/**
+		 * @return true if the node predates the last snapshot, so that it may be
+		 * part of a snapshot and must be copied before it is modified
+		 */
+		boolean shared() {
+			return epoch != XkdTree.this.epoch;
+		}
+		
+		/**
+		 * @return the squared distance from q to the bounding box of the subtree
+		 */
+		double distanceSq(Point2D q) {
+			double dx = (q.getX() < lowX) ? lowX - q.getX() : (q.getX() > highX) ? q.getX() - highX : 0;
+			double dy = (q.getY() < lowY) ? lowY - q.getY() : (q.getY() > highY) ? q.getY() - highY : 0;
+			
+			return dx * dx + dy * dy;
+		}
+		
+		/**
+		 * @return the squared distance from q to the farthest corner of the
+		 * bounding box of the subtree
+		 */
+		double farthestSq(Point2D q) {
+			double dx = Math.max(q.getX() - lowX, highX - q.getX());
+			double dy = Math.max(q.getY() - lowY, highY - q.getY());
+			
+			return dx * dx + dy * dy;
+		}
+		
+		/**
+		 * @return true if no point of the subtree can lie in the rectangle
+		 */
+		boolean disjoint(Rectangle2D rect) {
+			return lowX > rect.getHigh().getX() || highX < rect.getLow().getX()
+				|| lowY > rect.getHigh().getY() || highY < rect.getLow().getY();
+		}
+		
+		/**
+		 * @return true if every point of the subtree lies in the rectangle
+		 */
+		boolean inside(Rectangle2D rect) {
+			return lowX >= rect.getLow().getX() && highX <= rect.getHigh().getX()
+				&& lowY >= rect.getLow().getY() && highY <= rect.getHigh().getY();
+		}
+	}
+	
+	/**
+	 * Represents an internal node of the extended kd-tree
+	 */
+	private class InternalNode extends Node {
+		int cutDim; // the cutting dimension (0 = x, 1 = y)
+		double cutVal; // the cutting value
+		Node left, right; // children
+		int live; // number of points in the subtree
+		int built; // live points plus those deleted since the subtree was built
+		
+		/**
+		 * Constructor
+		 */
+		public InternalNode(int cutDim, double cutVal, Node left, Node right) {
+			this.cutDim = cutDim;
+			this.cutVal = cutVal;
+			this.left = left;
+			this.right = right;
+		}
+		
+		/**
+		 * Helper method for find(Point2D q) that traverses an internalNode to find
+		 * if q occurs within the tree
+		 * @param q: the point that is being searched for within the tree
+		 */
+		LPoint find(Point2D q) { 
+			
+			if(q.get(cutDim) < cutVal) {
+				return left.find(q);
+			} 
+			else if(q.get(cutDim) > cutVal) {
+				return right.find(q);
+			} 
+			else {
+				LPoint result;
+				
+				result = left.find(q);
+				
+				if(result != null) {
+					return result;
+				} 
+				else {
+					result = right.find(q);
+					
+					if(result != null) {
+						return result;
+					}
+				}
+				
+				return null;
+			}
+		}
+		
+		/**
+		 * Helper method for inserting a range of presorted points into an internal
+		 * node of an XkdTree. The points below the cutting value form a prefix of
+		 * the order of cutDim, so the range is split without sorting
+		 * @param load: the presorted points being added into the XkdTree
+		 * @param lo: the first position of the range
+		 * @param hi: the position after the range
+		 * @param order: the order in which the points reach this node (unused here)
+		 * @return: method returns the updated Node once the insertion is completed
+		 */
+		Node bulkInsert(BulkLoad load, int lo, int hi, int order) {
+			if(shared()) {
+				return copy().bulkInsert(load, lo, hi, order);
+			}
+			
+			int index = lo;
+			
+			while(index < hi && load.coordinate(cutDim, index, cutDim) < cutVal) {
+				index++;
+			}
+			
+			load.partition(cutDim, lo, index, hi);
+			live += hi - lo;
+			built += hi - lo;
+			
+			if(index > lo) {
+				left = left.bulkInsert(load, lo, index, cutDim);
+			}
+			
+			if(index < hi) {
+				right = right.bulkInsert(load, index, hi, cutDim);
+			}
+			
+			shrink();
+			return this;
+		}
+		
+		/**
+		 * Helper method for adding internal nodes to the list 
+		 * representation of the xKD tree. 
+		 */
+		void list(ArrayList<String> list) {
+			
+			String added;
+			
+			if(cutDim == 0) {
+				added = "(x=" + cutVal + ")";
+			} 
+			else {
+				added = "(y=" + cutVal + ")";
+			}
+			
+			list.add(added);
+			
+			right.list(list);
+			left.list(list);	
+		}
+		
+		/**
+		 * Helper method for nearestNeighbor that traverses the internal node 
+		 * and recursively examines the relevant subtrees, starting with the side
+		 * of the cut that holds the query point. A subtree is skipped if its
+		 * bounding box is no closer than the current best
+		 * @param center: the query point of the nearest neighbor search
+		 * @param best: the current closest LPoint in the xKDtree to center
+		 * @return: method returns the LPoint in the xKDtree closest in
+		 * squared Euclidean distance to the query point (center)
+		 */
+		LPoint nearestNeighbor(Point2D center, LPoint best) {
+			
+			Node near = (center.get(cutDim) < cutVal) ? left : right;
+			Node far = (near == left) ? right : left;
+			
+			if(near.distanceSq(center) < bestDistance(center, best)) {
+				best = near.nearestNeighbor(center, best);
+			}
+			
+			if(far.distanceSq(center) < bestDistance(center, best)) {
+				best = far.nearestNeighbor(center, best);
+			}
+			
+			return best;
+		}
+		
+		/**
+		 * Helper method for deleting points by traversing through internal nodes
+		 * @param pt: pt being deleted
+		 * @param target: the exact LPoint to remove, or null to remove any point at pt
+		 * @return the updated internal node after deletion
+		 */
+		Node delete(Point2D pt, LPoint target) {
+			if(shared()) {
+				return copy().delete(pt, target);
+			}
+			
+			if (pt.get(cutDim) <= cutVal) {
+				left = left.delete(pt, target);
+				
+				if (left == null) {
+					return right;
+				}
+			}
+			
+			if (pt.get(cutDim) >= cutVal && !deleted) {
+				right = right.delete(pt, target);
+				
+				if (right == null) {
+					return left;
+				}
+			}
+			
+			if (deleted) {
+				live--;
+				shrink();
+				return rebuildIfSparse();
+			}
+			
+			return this;
+		}
+		
+		/**
+		 * Helper method for deleteAll that sends every point of the batch down the
+		 * side(s) of the cut it lies on. A point on the cut that was not found on
+		 * the left is looked for on the right
+		 * @param batch: the batch being deleted
+		 * @param members: the indices of the batch points that may be in this subtree
+		 * @return the updated node, or null if the subtree became empty
+		 */
+		Node deleteAll(DeleteBatch batch, int[] members) {
+			if(shared()) {
+				return copy().deleteAll(batch, members);
+			}
+			
+			int before = batch.removed;
+			int[] low = batch.select(members, cutDim, cutVal, true);
+			
+			if(low.length > 0) {
+				left = left.deleteAll(batch, low);
+			}
+			
+			int[] high = batch.select(members, cutDim, cutVal, false);
+			
+			if(high.length > 0) {
+				right = right.deleteAll(batch, high);
+			}
+			
+			live -= batch.removed - before;
+			
+			if(left == null || right == null) {
+				return (left == null) ? right : left;
+			}
+			
+			if(batch.removed == before) {
+				return this;
+			}
+			
+			shrink();
+			return rebuildIfSparse();
+		}
+		
+		/**
+		 * Rebuilds the subtree from its live points if deletions have left less
+		 * than rebuildThreshold of the points it was built for, so that sparse
+		 * paths do not slow down later searches
+		 * @return this node, or the root of the rebuilt subtree
+		 */
+		Node rebuildIfSparse() {
+			if(live >= rebuildThreshold * built) {
+				return this;
+			}
+			
+			ArrayList<LPoint> pts = new ArrayList<>(live);
+			collect(pts);
+			
+			ExternalNode leaf = new ExternalNode();
+			
+			if(pts.size() <= bucketSize) {
+				leaf.points.addAll(pts);
+				leaf.shrink();
+				return leaf;
+			}
+			
+			return leaf.build(new BulkLoad(pts), 0, pts.size());
+		}
+		
+		/**
+		 * Adds the points of the subtree to a list, left to right
+		 */
+		void collect(ArrayList<LPoint> pts) {
+			left.collect(pts);
+			right.collect(pts);
+		}
+		
+		/**
+		 * @return the number of points in the subtree
+		 */
+		int size() {
+			return live;
+		}
+		
+		/**
+		 * @return true if every internal node of the subtree counts the points
+		 * below it, was built for at least as many, and has at least
+		 * rebuildThreshold of them left
+		 */
+		boolean countsConsistent() {
+			return live == left.size() + right.size() && built >= live && live >= rebuildThreshold * built
+				   && left.countsConsistent() && right.countsConsistent();
+		}
+		
+		/**
+		 * @return true if the buckets of both subtrees hold the coordinates of
+		 * their points
+		 */
+		boolean coordinatesConsistent() {
+			return left.coordinatesConsistent() && right.coordinatesConsistent();
+		}
+		
+		/**
+		 * Helper method for k-NN search in internal nodes. The subtree is pruned
+		 * if its bounding box is farther than the current k-th nearest point
+		 * @param center:the point being queried upon
+		 * @param k: the number of points in the k-NN search
+		 * @param minK: the current result for the k-NN stored in the minK data structure  
+		 */
+		void kNearestNeighbor(Point2D center, int k, MinK<Double, LPoint> minK) {
+			
+			if(distanceSq(center) > minK.getKth()) {
+				if(metrics != null) {
+					metrics.count(SolverMetrics.Counter.KNN_NODES_PRUNED);
+				}
+				
+				return;
+			}
+			
+			if(metrics != null) {
+				metrics.count(SolverMetrics.Counter.KNN_NODES_VISITED);
+			}
+			
+			if(center.get(cutDim) < cutVal) {
+				left.kNearestNeighbor(center, k, minK);
+				right.kNearestNeighbor(center, k, minK);
+			} else {
+				right.kNearestNeighbor(center, k, minK);
+				left.kNearestNeighbor(center, k, minK);
+			}
+		}
+		
+		/**
+		 * Helper method for the buffered k-NN search in internal nodes, pruning
+		 * against the bounding boxes like the MinK search
+		 * @param center: the point being queried upon
+		 * @param buffer: the current result of the search
+		 */
+		void kNearestNeighbor(Point2D center, NeighborBuffer<LPoint> buffer) {
+			
+			if(distanceSq(center) > buffer.getKth()) {
+				if(metrics != null) {
+					metrics.count(SolverMetrics.Counter.KNN_NODES_PRUNED);
+				}
+				
+				return;
+			}
+			
+			if(metrics != null) {
+				metrics.count(SolverMetrics.Counter.KNN_NODES_VISITED);
+			}
+			
+			if(center.get(cutDim) < cutVal) {
+				left.kNearestNeighbor(center, buffer);
+				right.kNearestNeighbor(center, buffer);
+			} else {
+				right.kNearestNeighbor(center, buffer);
+				left.kNearestNeighbor(center, buffer);
+			}
+		}
+		
+		/**
+		 * Helper method for withinRadius. A subtree whose box lies inside the
+		 * disc is added without testing its points
+		 * @param center: the center of the disc
+		 * @param radiusSq: the squared radius of the disc
+		 * @param result: receives the points found
+		 */
+		void withinRadius(Point2D center, double radiusSq, ArrayList<LPoint> result) {
+			if(distanceSq(center) > radiusSq) {
+				return;
+			}
+			
+			if(farthestSq(center) <= radiusSq) {
+				collect(result);
+			} else {
+				left.withinRadius(center, radiusSq, result);
+				right.withinRadius(center, radiusSq, result);
+			}
+		}
+		
+		/**
+		 * Helper method for countWithinRadius. A subtree whose box lies inside
+		 * the disc is counted in constant time from its point count
+		 * @param center: the center of the disc
+		 * @param radiusSq: the squared radius of the disc
+		 * @return the number of points of the subtree in the disc
+		 */
+		int countWithinRadius(Point2D center, double radiusSq) {
+			if(distanceSq(center) > radiusSq) {
+				return 0;
+			}
+			
+			if(farthestSq(center) <= radiusSq) {
+				return live;
+			}
+			
+			return left.countWithinRadius(center, radiusSq) + right.countWithinRadius(center, radiusSq);
+		}
+		
+		/**
+		 * Helper method for inRectangle
+		 * @param rect: the query rectangle
+		 * @param result: receives the points found
+		 */
+		void inRectangle(Rectangle2D rect, ArrayList<LPoint> result) {
+			if(disjoint(rect)) {
+				return;
+			}
+			
+			if(inside(rect)) {
+				collect(result);
+			} else {
+				left.inRectangle(rect, result);
+				right.inRectangle(rect, result);
+			}
+		}
+		
+		/**
+		 * Helper method for countInRectangle
+		 * @param rect: the query rectangle
+		 * @return the number of points of the subtree in the rectangle
+		 */
+		int countInRectangle(Rectangle2D rect) {
+			if(disjoint(rect)) {
 				return 0;
 			}
+			
+			if(inside(rect)) {
+				return live;
+			}
+			
+			return left.countInRectangle(rect) + right.countInRectangle(rect);
 		}
-	}
-	
-	private abstract class Node { // generic node (purely abstract)
-		abstract LPoint find(Point2D pt); // find helper - abstract
-		abstract Node bulkInsert(ArrayList<LPoint> pts);
-		abstract void list();
-		abstract LPoint nearestNeighbor(Point2D center, LPoint best, Rectangle2D cell);
-		abstract Node delete(Point2D pt);
-		abstract void kNearestNeighbor(Point2D center, int k, Rectangle2D cell, MinK<Double, LPoint> minK);
+		
+		/**
+		 * Copies the subtree for an all-k-nearest neighbors search, skipping an
+		 * empty child
+		 */
+		int flatten(AllNeighbors all) {
+			if(left.size() == 0) {
+				return right.flatten(all);
+			} else if(right.size() == 0) {
+				return left.flatten(all);
+			}
+			
+			int l = left.flatten(all);
+			int r = right.flatten(all);
+			return all.addInternal(l, r, this);
+		}
+		
+		/**
+		 * Copies the node, sharing its children
+		 */
+		Node copy() {
+			InternalNode node = new InternalNode(cutDim, cutVal, left, right);
+			
+			node.live = live;
+			node.built = built;
+			node.lowX = lowX;
+			node.lowY = lowY;
+			node.highX = highX;
+			node.highY = highY;
+			return node;
+		}
+		
+		/**
+		 * Recomputes the bounding box as the union of the boxes of the children
+		 */
+		void shrink() {
+			lowX = Math.min(left.lowX, right.lowX);
+			lowY = Math.min(left.lowY, right.lowY);
+			highX = Math.max(left.highX, right.highX);
+			highY = Math.max(left.highY, right.highY);
+		}
+		
 	}
 	
 	/**
 	 * Represents an internal node of the extended kd-tree
 	 */
-	private class InternalNode extends Node {
-		int cutDim; // the cutting dimension (0 = x, 1 = y)
-		double cutVal; // the cutting value
-		Node left, right; // children
+	private class ExternalNode extends Node {
+		ArrayList<LPoint> points; // the bucket
+		double[] xs, ys; // the coordinates of the points, in the same order
 		
 		/**
 		 * Constructor
 		 */
-		public InternalNode(int cutDim, double cutVal, Node left, Node right) {
-			this.cutDim = cutDim;
-			this.cutVal = cutVal;
-			this.left = left;
-			this.right = right;
+		public ExternalNode() {
+			points = new ArrayList<>(bucketSize);
+			xs = NO_COORDINATES;
+			ys = NO_COORDINATES;
 		}
 		
 		/**
-		 * Helper method for find(Point2D q) that traverses an internalNode to find
-		 * if q occurs within the tree
+		 * Helper method for find(Point2D q) that searches for a point in a external node
+		 * and returns the associated LPoint if found and null otherwise
 		 * @param q: the point that is being searched for within the tree
 		 */
-		LPoint find(Point2D q) { 
+		LPoint find(Point2D pt) { 
 			
-			if(q.get(cutDim) < cutVal) {
-				return left.find(q);
-			} 
-			else if(q.get(cutDim) > cutVal) {
-				return right.find(q);
-			} 
-			else {
-				LPoint result;
-				
-				result = left.find(q);
-				
-				if(result != null) {
-					return result;
-				} 
-				else {
-					result = right.find(q);
-					
-					if(result != null) {
-						return result;
-					}
+			for(LPoint point: points) {
+				if(point.getPoint2D().equals(pt)) {
+					return point;
 				}
-				
-				return null;
 			}
+			
+			return null;
 		}
 		
 		/**
-		 * Helper method for inserting a list of points into an internal
-		 * node of an XkdTree. 
-		 * @param pts: the ArrayList of LPoints being added into the XkdTree
+		 * Helper method for inserting a range of presorted points into an external
+		 * node of an XkdTree. If the bucket overflows, it is replaced by a subtree
+		 * built from the presorted orders
+		 * @param load: the presorted points being added into the XkdTree
+		 * @param lo: the first position of the range
+		 * @param hi: the position after the range
+		 * @param order: the dimension whose order the points arrive in (sorted by
+		 * the cutting dimension of the parent), or -1 for their original order
 		 * @return: method returns the updated Node once the insertion is completed
 		 */
-		Node bulkInsert(ArrayList<LPoint> pts) {
-			if(cutDim == 0) {
-				Collections.sort(pts, new ByXThenY());
+		Node bulkInsert(BulkLoad load, int lo, int hi, int order) {
+			if(shared()) {
+				return copy().bulkInsert(load, lo, hi, order);
 			}
-			else {
-				Collections.sort(pts, new ByYThenX());
+			
+			if(points.size() + hi - lo <= bucketSize) {
+				for(int i = lo; i < hi; i++) {
+					points.add(load.get(order, i));
+				}
+				
+				shrink();
+				return this;
 			}
 			
-			int index = pts.size() - 1;
+			if(points.isEmpty()) {
+				return build(load, lo, hi);
+			}
 			
-			for(int i = 0; i < pts.size(); i++) {
-				if(pts.get(i).getPoint2D().get(cutDim) >= cutVal) {
-					index = i;
-					break;
-				}
+			ArrayList<LPoint> combined = new ArrayList<>(points.size() + hi - lo);
+			combined.addAll(points);
+			
+			for(int i = lo; i < hi; i++) {
+				combined.add(load.get(order, i));
 			}
 			
-			if(index == pts.size() - 1) {
-				if (pts.get(index).getPoint2D().get(cutDim) < cutVal) {
-					left = left.bulkInsert(pts);
-				} 
-				else {
-					ArrayList<LPoint> leftList =  new ArrayList<>(pts.subList(0, index));
-					ArrayList<LPoint> rightList = new ArrayList<>(pts.subList(index, pts.size()));
-					
-					if(!leftList.isEmpty()) {
-						left = left.bulkInsert(leftList);
-					}
-						
-					
-					if(!rightList.isEmpty()) {
-						right = right.bulkInsert(rightList);
-					}
-						
-				}
+			return build(new BulkLoad(combined), 0, combined.size());
+		}
+		
+		/**
+		 * Builds the subtree of a range of presorted points: the widest dimension
+		 * is cut at the median, as in a bucket split, until every bucket fits
+		 * @param load: the presorted points
+		 * @param lo: the first position of the range
+		 * @param hi: the position after the range
+		 * @return the root of the new subtree
+		 */
+		Node build(BulkLoad load, int lo, int hi) {
+			int cutDimension, median;
+			double cutValue;
+			
+			if(load.coordinate(0, hi - 1, 0) - load.coordinate(0, lo, 0) 
+			   >= load.coordinate(1, hi - 1, 1) - load.coordinate(1, lo, 1)) {
+				cutDimension = 0;
 			} 
 			else {
-				ArrayList<LPoint> leftList =  new ArrayList<>(pts.subList(0, index));
-				ArrayList<LPoint> rightList = new ArrayList<>(pts.subList(index, pts.size()));
-				
-				if(!leftList.isEmpty()) {
-					left = left.bulkInsert(leftList);
-				}
-					
-				
-				if(!rightList.isEmpty()) {
-					right = right.bulkInsert(rightList);
-				}
+				cutDimension = 1;
 			}
 			
-			return this;
+			median = lo + (hi - lo) / 2;
+			
+			if((hi - lo) % 2 == 0) {
+				cutValue = (load.coordinate(cutDimension, median, cutDimension) 
+						   + load.coordinate(cutDimension, median - 1, cutDimension)) / 2;
+			}
+			else {
+				cutValue = load.coordinate(cutDimension, median, cutDimension);
+			}
+			
+			load.partition(cutDimension, lo, median, hi);
+			
+			InternalNode newInternal = new InternalNode(cutDimension, cutValue, 
+									   new ExternalNode(), new ExternalNode());
+			
+			newInternal.left = newInternal.left.bulkInsert(load, lo, median, cutDimension);
+			newInternal.right = newInternal.right.bulkInsert(load, median, hi, cutDimension);
+			newInternal.live = hi - lo;
+			newInternal.built = hi - lo;
+			newInternal.shrink();
+			
+			return newInternal;
 		}
 		
 		/**
-		 * Helper method for adding internal nodes to the list 
+		 * Helper method for adding external nodes to list 
 		 * representation of the xKD tree. 
 		 */
-		void list() {
+		void list(ArrayList<String> list) {
+			ArrayList<LPoint> sorted = shared() ? new ArrayList<>(points) : points; // a snapshot is never reordered
+			Collections.sort(sorted, new Lexicographical());
 			
-			String added;
+			if(sorted == points) {
+				shrink();
+			}
 			
-			if(cutDim == 0) {
-				added = "(x=" + cutVal + ")";
-			} 
-			else {
-				added = "(y=" + cutVal + ")";
+			String added = "[ ";
+			
+			for(LPoint p: sorted) {
+				added += ("{" + p.toString() + "} ");
 			}
 			
-			list.add(added);
+			added += "]";
 			
-			right.list();
-			left.list();	
+			list.add(added);
 		}
 		
 		/**
-		 * Helper method for nearestNeighbor that traverses the internal node 
-		 * and recursively examines the relevant subtrees
+		 * Helper method for nearestNeighbor that traverses the points in the
+		 * external node to determine if any are closer than the current best,
+		 * updating the best variable if so
 		 * @param center: the query point of the nearest neighbor search
 		 * @param best: the current closest LPoint in the xKDtree to center
-		 * @param: cell: the corresponding bounding box of the current node
 		 * @return: method returns the LPoint in the xKDtree closest in
-		 * squared Euclidean distance to the query point (center)
-		 */
-		LPoint nearestNeighbor(Point2D center, LPoint best, Rectangle2D cell) {
+		 */ 
+		LPoint nearestNeighbor(Point2D center, LPoint best) {
 			
-			double cellDistance, bestDistance;
+			double bestDistance, tempDistance;
+			double x = center.getX(), y = center.getY();
 			
-			Rectangle2D leftCell = cell.leftPart(cutDim, cutVal);
-			Rectangle2D rightCell = cell.rightPart(cutDim, cutVal);
+			bestDistance = bestDistance(center, best);
 			
-			if(center.get(cutDim) < cutVal) {
-				best = left.nearestNeighbor(center, best, leftCell);
-				
-				if(best == null) {
-					bestDistance = Double.POSITIVE_INFINITY;
-				} 
-				else {
-					bestDistance = center.distanceSq(best.getPoint2D());
-				}
-				
-				cellDistance = rightCell.distanceSq(center);
-				
-				if(cellDistance < bestDistance) {
-					best = right.nearestNeighbor(center, best, rightCell);
-				}
-				
-			}
-			else {
-				best = right.nearestNeighbor(center, best, rightCell);
-				
-				if(best == null) {
-					bestDistance = Double.POSITIVE_INFINITY;
-				} 
-				else {
-					bestDistance = center.distanceSq(best.getPoint2D());
-				}
-				
-				cellDistance = leftCell.distanceSq(center);
+			for(int i = 0; i < points.size(); i++) {
+				double dx = xs[i] - x;
+				double dy = ys[i] - y;
+				tempDistance = dx * dx + dy * dy;
 				
-				if(cellDistance < bestDistance) {
-					best = left.nearestNeighbor(center, best, leftCell);
+				if (tempDistance < bestDistance) {
+					best = points.get(i);
+					bestDistance = tempDistance;
 				}
 			}
 			
@@ -281,261 +1683,287 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 		}
 		
 		/**
-		 * Helper method for deleting points by traversing through internal nodes
-		 * @param pt: pt being deleted
-		 * @return the updated internal node after deletion
+		 * Helper function for the delete function in external nodes
+		 * @param pt: the coordinates of the point being deleted
+		 * @param target: the exact LPoint to remove, or null to remove any point at pt
+		 * @return this node, or null if it became empty
 		 */
-		Node delete(Point2D pt) {
+		Node delete(Point2D pt, LPoint target) {
+			if(shared()) {
+				return copy().delete(pt, target);
+			}
 			
-			if (pt.get(cutDim) < cutVal) {
-				left = left.delete(pt);
-				
-				if (left == null) {
-					return right;
-				}
-			} else if(pt.get(cutDim) > cutVal) {
-				right = right.delete(pt);
-				
-				if (right == null) {
-					return left;
-				}
-			} else {
-				left = left.delete(pt);
-				
-				if (left == null) {
-					return right;
+			int counter = 0;
+			
+			for(LPoint point: points) {
+				if(target == null ? point.getPoint2D().equals(pt) : point == target) {
+					break;
 				}
 				
-				right = right.delete(pt);
-				
-				if (right == null) {
-					return left;
-				}
+				counter += 1;
+			}
+			
+			if(counter < points.size()) {
+				points.remove(counter);
+				deleted = true;
+				shrink();
+			}
+					
+			
+			if(points.isEmpty() && this != root) { //or numPoints != 1
 				
+				return null;
 			}
 			
 			return this;
-		
 		}
 		
 		/**
-		 * Helper method for k-NN search in internal nodes
-		 * @param center:the point being queried upon
-		 * @param k: the number of points in the k-NN search
-		 * @param cell:the current cell for the internal node
-		 * @param minK: the current result for the k-NN stored in the minK data structure  
+		 * Helper method for deleteAll that removes the batch points found in the
+		 * bucket
+		 * @param batch: the batch being deleted
+		 * @param members: the indices of the batch points that may be in this bucket
+		 * @return this node, or null if it became empty
 		 */
-		void kNearestNeighbor(Point2D center, int k, Rectangle2D cell, MinK<Double, LPoint> minK) {
+		Node deleteAll(DeleteBatch batch, int[] members) {
+			if(shared()) {
+				return copy().deleteAll(batch, members);
+			}
 			
-			if(cell.distanceSq(center) > minK.getKth()) {
-				return;
+			int before = batch.removed;
+			
+			for(int i: members) {
+				for(int j = 0; j < points.size(); j++) {
+					LPoint point = points.get(j);
+					
+					if(batch.targets[i] == null ? point.getPoint2D().equals(batch.pts[i]) : point == batch.targets[i]) {
+						points.remove(j);
+						batch.found[i] = true;
+						batch.removed++;
+						break;
+					}
+				}
 			}
 			
-			Rectangle2D leftCell = cell.leftPart(cutDim, cutVal);
-			Rectangle2D rightCell = cell.rightPart(cutDim, cutVal);
+			if(batch.removed > before) {
+				shrink();
+			}
 			
-			if(center.get(cutDim) < cutVal) {
-				left.kNearestNeighbor(center, k, leftCell, minK);
-				right.kNearestNeighbor(center, k, rightCell, minK);
-			} else {
-				right.kNearestNeighbor(center, k, rightCell, minK);
-				left.kNearestNeighbor(center, k, leftCell, minK);
+			if(points.isEmpty() && this != root) {
+				return null;
 			}
+			
+			return this;
 		}
 		
-	}
-	
-	/**
-	 * Represents an internal node of the extended kd-tree
-	 */
-	private class ExternalNode extends Node {
-		ArrayList<LPoint> points; // the bucket
+		/**
+		 * Adds the points of the bucket to a list
+		 */
+		void collect(ArrayList<LPoint> pts) {
+			pts.addAll(points);
+		}
 		
 		/**
-		 * Constructor
+		 * @return the number of points in the bucket
 		 */
-		public ExternalNode() {
-			points = new ArrayList<>(bucketSize);
+		int size() {
+			return points.size();
 		}
 		
 		/**
-		 * Helper method for find(Point2D q) that searches for a point in a external node
-		 * and returns the associated LPoint if found and null otherwise
-		 * @param q: the point that is being searched for within the tree
+		 * @return true, as a bucket counts its points by their list
 		 */
-		LPoint find(Point2D pt) { 
+		boolean countsConsistent() {
+			return true;
+		}
+		
+		/**
+		 * @return true if xs and ys hold the coordinates of the points of the
+		 * bucket, in the same order
+		 */
+		boolean coordinatesConsistent() {
+			if(xs.length < points.size() || ys.length != xs.length) {
+				return false;
+			}
 			
-			for(LPoint point: points) {
-				if(point.getPoint2D().equals(pt)) {
-					return point;
+			for(int i = 0; i < points.size(); i++) {
+				if(xs[i] != points.get(i).getX() || ys[i] != points.get(i).getY()) {
+					return false;
 				}
 			}
 			
-			return null;
+			return true;
 		}
 		
+		
 		/**
-		 * Helper method for inserting a list of points into an external
-		 * node of an XkdTree. 
-		 * @param pts: the ArrayList of LPoints being added into the XkdTree
-		 * @return: method returns the updated Node once the insertion is completed
+		 * Helper function for k-NN in external nodes by adding all the points to the minK data
+		 * structure, unless the bounding box of the bucket is farther than the
+		 * current k-th nearest point
+		 * @param center: point being queried upon
+		 * @param minK: the data structure which stores the current result for the k-NN
 		 */
-		Node bulkInsert(ArrayList<LPoint> pts) {
-			int cutDimension, median;
-			double cutValue;
+		void kNearestNeighbor(Point2D center, int k, MinK<Double, LPoint> minK) {
 			
-			points.addAll(pts);
-			
-			if(points.size() > bucketSize) {
-				Rectangle2D newBox = new Rectangle2D();
-				
-				for(LPoint p: points) {
-					newBox.expand(p.getPoint2D());
-				}
-				
-				if(newBox.getWidth(0) >= newBox.getWidth(1)) {
-					cutDimension = 0;
-				} 
-				else {
-					cutDimension = 1;
-				}
-				
-				if(cutDimension == 0) {
-					Collections.sort(points, new ByXThenY());
+			if(distanceSq(center) > minK.getKth()) {
+				if(metrics != null) {
+					metrics.count(SolverMetrics.Counter.KNN_NODES_PRUNED);
 				}
-				else {
-					Collections.sort(points, new ByYThenX());
-				}
-				
-				median = (points.size())/2;
-				
-				if(points.size() % 2 == 0) {
-					if(cutDimension == 0) {
-						cutValue = (points.get(median).getX() 
-								   + points.get(median - 1).getX()) / 2;
-					} 
-					else {
-						cutValue = (points.get(median).getY() 
-								   + points.get(median - 1).getY()) / 2;
-					}
-				}
-				else {
-					if(cutDimension == 0) {
-						cutValue = points.get(median).getX();
-					} 
-					else {
-						cutValue = points.get(median).getY();
-					}
-				}
-				
-				ArrayList<LPoint> leftList = new ArrayList<>(points.subList(0, median));
-				ArrayList<LPoint> rightList = new ArrayList<>(points.subList(median, points.size()));
-				
-				InternalNode newInternal = new InternalNode(cutDimension, cutValue, 
-										   new ExternalNode(), new ExternalNode());
-				
-				newInternal.left = newInternal.left.bulkInsert(leftList);
-				newInternal.right = newInternal.right.bulkInsert(rightList);
 				
-				return newInternal;
+				return;
+			}
+			
+			if(metrics != null) {
+				metrics.count(SolverMetrics.Counter.KNN_NODES_VISITED);
 			}
 			
-			return this;
+			double x = center.getX(), y = center.getY();
+			
+			for(int i = 0; i < points.size(); i++) {
+				double dx = xs[i] - x;
+				double dy = ys[i] - y;
+				minK.add(dx * dx + dy * dy, points.get(i));
+			}
 		}
 		
 		/**
-		 * Helper method for adding external nodes to list 
-		 * representation of the xKD tree. 
+		 * Helper method for the buffered k-NN search in external nodes
+		 * @param center: the point being queried upon
+		 * @param buffer: the current result of the search
 		 */
-		void list() {
-			Collections.sort(points, new Lexicographical());
+		void kNearestNeighbor(Point2D center, NeighborBuffer<LPoint> buffer) {
 			
-			String added = "[ ";
+			if(distanceSq(center) > buffer.getKth()) {
+				if(metrics != null) {
+					metrics.count(SolverMetrics.Counter.KNN_NODES_PRUNED);
+				}
+				
+				return;
+			}
 			
-			for(LPoint p: points) {
-				added += ("{" + p.toString() + "} ");
+			if(metrics != null) {
+				metrics.count(SolverMetrics.Counter.KNN_NODES_VISITED);
 			}
 			
-			added += "]";
+			int n = points.size();
+			double[] distances = buffer.scratch(n);
 			
-			list.add(added);
+			distancesSq(xs, ys, n, center.getX(), center.getY(), distances);
+			buffer.addAll(distances, points, n);
 		}
 		
 		/**
-		 * Helper method for nearestNeighbor that traverses the points in the
-		 * external node to determine if any are closer than the current best,
-		 * updating the best variable if so
-		 * @param center: the query point of the nearest neighbor search
-		 * @param best: the current closest LPoint in the xKDtree to center
-		 * @param: cell: the corresponding bounding box of the current node
-		 * @return: method returns the LPoint in the xKDtree closest in
-		 */ 
-		LPoint nearestNeighbor(Point2D center, LPoint best, Rectangle2D cell) {
-			
-			double bestDistance, tempDistance;
-			
-			if(best == null) {
-				bestDistance = Double.POSITIVE_INFINITY;
-			} 
-			else {
-				bestDistance = center.distanceSq(best.getPoint2D());
-			}
-			
-			for(LPoint p: points) {
-				tempDistance = center.distanceSq(p.getPoint2D());
-				
-				if (tempDistance < bestDistance) {
-					best = p;
-					bestDistance = tempDistance;
+		 * Helper method for withinRadius that tests the points of the bucket
+		 */
+		void withinRadius(Point2D center, double radiusSq, ArrayList<LPoint> result) {
+			for(LPoint point: points) {
+				if(point.getPoint2D().distanceSq(center) <= radiusSq) {
+					result.add(point);
 				}
 			}
-			
-			return best;
 		}
 		
 		/**
-		 * Helper function for the delete function in external nodes
-		 * @param:
-		 * @param:
-		 * @param
+		 * Helper method for countWithinRadius that tests the points of the bucket
 		 */
-		Node delete(Point2D pt) {
-			
-			int counter = 0;
+		int countWithinRadius(Point2D center, double radiusSq) {
+			int count = 0;
 			
 			for(LPoint point: points) {
-				if(point.getPoint2D().equals(pt)) {
-					break;
+				if(point.getPoint2D().distanceSq(center) <= radiusSq) {
+					count++;
 				}
-				
-				counter += 1;
 			}
 			
-			if(counter < points.size()) {
-				points.remove(counter);
+			return count;
+		}
+		
+		/**
+		 * Helper method for inRectangle that tests the points of the bucket
+		 */
+		void inRectangle(Rectangle2D rect, ArrayList<LPoint> result) {
+			for(LPoint point: points) {
+				if(inRectangle(rect, point)) {
+					result.add(point);
+				}
 			}
-					
+		}
+		
+		/**
+		 * Helper method for countInRectangle that tests the points of the bucket
+		 */
+		int countInRectangle(Rectangle2D rect) {
+			int count = 0;
 			
-			if(points.isEmpty() && this != root) { //or numPoints != 1
-				
-				return null;
+			for(LPoint point: points) {
+				if(inRectangle(rect, point)) {
+					count++;
+				}
 			}
 			
-			return this;
+			return count;
 		}
 		
+		/**
+		 * @return true if the point lies in the closed rectangle
+		 */
+		private boolean inRectangle(Rectangle2D rect, LPoint point) {
+			return point.getX() >= rect.getLow().getX() && point.getX() <= rect.getHigh().getX()
+				&& point.getY() >= rect.getLow().getY() && point.getY() <= rect.getHigh().getY();
+		}
 		
 		/**
-		 * Helper function for k-NN in external nodes by adding all the points to the minK data
-		 * structure
-		 * @param center: point being queried upon
-		 * @param cell: the cell of the current region of the external node
-		 * @param minK: the data structure which stores the current result for the k-NN
+		 * Copies the bucket for an all-k-nearest neighbors search
+		 */
+		int flatten(AllNeighbors all) {
+			return all.addLeaf(points, this);
+		}
+		
+		/**
+		 * Copies the bucket
 		 */
-		void kNearestNeighbor(Point2D center, int k, Rectangle2D cell, MinK<Double, LPoint> minK) {
+		Node copy() {
+			ExternalNode node = new ExternalNode();
 			
-			for(LPoint point: points) {
-				minK.add(point.getPoint2D().distanceSq(center), point);
+			node.points.addAll(points);
+			node.xs = xs.clone();
+			node.ys = ys.clone();
+			node.lowX = lowX;
+			node.lowY = lowY;
+			node.highX = highX;
+			node.highY = highY;
+			return node;
+		}
+		
+		/**
+		 * Recomputes the bounding box and the coordinate arrays of the points in
+		 * the bucket. Called whenever the points change. The arrays are sized to
+		 * the points on first use and grow by doubling up to the bucket size, so
+		 * the many small buckets left by splits stay small
+		 */
+		void shrink() {
+			lowX = Double.POSITIVE_INFINITY;
+			lowY = Double.POSITIVE_INFINITY;
+			highX = Double.NEGATIVE_INFINITY;
+			highY = Double.NEGATIVE_INFINITY;
+			
+			int n = points.size();
+			
+			if(xs.length < n) {
+				int length = Math.max(n, Math.min(bucketSize, 2 * xs.length));
+				xs = new double[length];
+				ys = new double[length];
+			}
+			
+			for(int i = 0; i < n; i++) {
+				LPoint p = points.get(i);
+				
+				xs[i] = p.getX();
+				ys[i] = p.getY();
+				lowX = Math.min(lowX, xs[i]);
+				lowY = Math.min(lowY, ys[i]);
+				highX = Math.max(highX, xs[i]);
+				highY = Math.max(highY, ys[i]);
 			}
 		}
 		
@@ -557,6 +1985,88 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 		root = new ExternalNode();
 	}
 	
+	/**
+	 * Attaches a metrics collector that counts the nodes visited and pruned by
+	 * k-nearest neighbor queries and times the queries, finds and deletes
+	 * @param metrics: the collector, or null to disable instrumentation
+	 */
+	public void setMetrics(SolverMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Enables partial rebuilds under deletions. When a subtree has lost so many
+	 * points that less than the given fraction of the points it was built for
+	 * are left, it is rebuilt from its live points with the bulk-load rules, so
+	 * the cost of a search depends on the live points rather than on the
+	 * points ever inserted. Rebuilding changes the shape shown by list()
+	 * @param fraction: the live fraction below which a subtree is rebuilt, or 0
+	 * (the default) to keep the shape produced by the insertions
+	 */
+	public void setRebuildThreshold(double fraction) {
+		this.rebuildThreshold = fraction;
+	}
+	
+	/**
+	 * Computes the squared distances from (x, y) to the first n points of a pair
+	 * of coordinate arrays. The loop has no calls and no branches, so HotSpot's
+	 * auto-vectorizer compiles it to SIMD instructions on hardware that has them
+	 * @param result: receives the distances
+	 */
+	private static void distancesSq(double[] xs, double[] ys, int n, double x, double y, double[] result) {
+		for(int i = 0; i < n; i++) {
+			double dx = xs[i] - x;
+			double dy = ys[i] - y;
+			result[i] = dx * dx + dy * dy;
+		}
+	}
+	
+	/**
+	 * @return the squared distance from center to best, or infinity if there is
+	 * no best point yet
+	 */
+	private double bestDistance(Point2D center, LPoint best) {
+		return (best == null) ? Double.POSITIVE_INFINITY : center.distanceSq(best.getPoint2D());
+	}
+	
+	/**
+	 * Takes a read-only snapshot of the current points. The snapshot shares
+	 * its nodes with the tree, and from then on the tree copies a node before
+	 * changing it, so a change costs copies of the nodes on its paths only
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(root, numPoints, epoch++);
+	}
+	
+	/**
+	 * Puts the tree back to the points of a snapshot taken of it. The nodes of
+	 * the snapshot are older than the current epoch, so the next changes copy
+	 * them and the snapshot itself is left intact
+	 * @param s: a snapshot of this tree
+	 */
+	void restore(Snapshot s) {
+		root = s.root;
+		numPoints = s.numPoints;
+	}
+	
+	/**
+	 * Checks the point counts that the internal nodes keep for rebuilding
+	 * @return true if they match the points of the tree and no subtree is
+	 * sparser than the rebuild threshold
+	 */
+	boolean countsConsistent() {
+		return root.size() == numPoints && root.countsConsistent();
+	}
+	
+	/**
+	 * Checks the coordinate arrays that the buckets keep for scanning
+	 * @return true if every bucket holds the coordinates of its points
+	 */
+	boolean coordinatesConsistent() {
+		return root.coordinatesConsistent();
+	}
+	
 	/**
 	 * Removes all entries of the xkdTree
 	 */
@@ -580,7 +2090,16 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 	 * otherwise null is returned
 	 */
 	public LPoint find(Point2D q) { 
-		return root.find(q);
+		if(metrics == null) {
+			return root.find(q);
+		}
+		
+		long start = System.nanoTime();
+		LPoint result = root.find(q);
+		
+		metrics.count(SolverMetrics.Counter.FINDS);
+		metrics.time(SolverMetrics.Timer.FIND, start);
+		return result;
 	}
 	
 	/**
@@ -607,7 +2126,9 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 			}
 		}
 			
-		root = root.bulkInsert(pts);
+		if(!pts.isEmpty()) {
+			root = root.bulkInsert(new BulkLoad(pts), 0, pts.size(), -1);
+		}
 		numPoints += pts.size();
 	}
 	
@@ -616,8 +2137,8 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 	 * @return: an ArrayList<String> representation of the XkdTree
 	 */
 	public ArrayList<String> list() {
-		list = new ArrayList<>();
-		root.list(); 
+		ArrayList<String> list = new ArrayList<>();
+		root.list(list); 
 		return list;
 	}
 	
@@ -634,7 +2155,7 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 			return null;
 		} 
 		else {
-			return root.nearestNeighbor(center, null, bbox); 
+			return root.nearestNeighbor(center, null); 
 		}
 		
 	}
@@ -646,12 +2167,128 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 	 * center in the XkdTree
 	 */
 	public void delete(Point2D pt) throws Exception {
-		if(find(pt) == null) {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		
+		deleted = false;
+		root = root.delete(pt, null);
+		
+		if(root == null) { // an emptied root bucket that was copied from a snapshot
+			root = new ExternalNode();
+		}
+		
+		if(!deleted) {
 			throw new Exception("Deletion of nonexistent point");
-		} else {
-			root = root.delete(pt);
-			numPoints--;
 		}
+		
+		numPoints--;
+		
+		if(metrics != null) {
+			metrics.count(SolverMetrics.Counter.DELETES);
+			metrics.time(SolverMetrics.Timer.DELETE, start);
+		}
+	}
+	
+	/**
+	 * Deletes this particular LPoint from the kd tree. Unlike delete(Point2D),
+	 * other points stored at the same coordinates are left in place
+	 * @param pt: the point to be deleted
+	 * @Exception: If the point is not in the kd-tree, and exception is thrown
+	 */
+	public void delete(LPoint pt) throws Exception {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		
+		deleted = false;
+		root = root.delete(pt.getPoint2D(), pt);
+		
+		if(root == null) { // an emptied root bucket that was copied from a snapshot
+			root = new ExternalNode();
+		}
+		
+		if(!deleted) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+		
+		numPoints--;
+		
+		if(metrics != null) {
+			metrics.count(SolverMetrics.Counter.DELETES);
+			metrics.time(SolverMetrics.Timer.DELETE, start);
+		}
+	}
+	
+	/**
+	 * Deletes one point at each of the given coordinates in a single traversal
+	 * of the tree. The points that exist are deleted even if some do not
+	 * @param pts: the coordinates of the points to be deleted
+	 * @throws Exception: if some coordinates have no point left in the kd-tree
+	 */
+	public void deleteAll(Collection<Point2D> pts) throws Exception {
+		deleteBatch(pts.toArray(new Point2D[0]), null);
+	}
+	
+	/**
+	 * Deletes these particular LPoints in a single traversal of the tree.
+	 * Other points stored at the same coordinates are left in place
+	 * @param pts: the points to be deleted
+	 * @throws Exception: if some of the points are not in the kd-tree (the
+	 * others are deleted anyway)
+	 */
+	public void deleteAllPoints(Collection<? extends LPoint> pts) throws Exception {
+		@SuppressWarnings("unchecked")
+		LPoint[] targets = (LPoint[]) pts.toArray(new LabeledPoint2D[0]);
+		Point2D[] coords = new Point2D[targets.length];
+		
+		for(int i = 0; i < targets.length; i++) {
+			coords[i] = targets[i].getPoint2D();
+		}
+		
+		deleteBatch(coords, targets);
+	}
+	
+	/**
+	 * Helper method for deleteAll and deleteAllPoints
+	 * @param pts: the coordinates of the points to be deleted
+	 * @param targets: the exact points to be deleted, or null to delete any
+	 * point at the coordinates
+	 * @throws Exception: if some of the points were not found
+	 */
+	private void deleteBatch(Point2D[] pts, LPoint[] targets) throws Exception {
+		if(pts.length == 0) {
+			return;
+		}
+		
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		int[] members = new int[pts.length];
+		
+		for(int i = 0; i < members.length; i++) {
+			members[i] = i;
+		}
+		
+		DeleteBatch batch = new DeleteBatch(pts, (targets != null) ? targets : newTargets(pts.length));
+		root = root.deleteAll(batch, members);
+		
+		if(root == null) {
+			root = new ExternalNode();
+		}
+		
+		numPoints -= batch.removed;
+		
+		if(metrics != null) {
+			metrics.count(SolverMetrics.Counter.DELETES, batch.removed);
+			metrics.time(SolverMetrics.Timer.DELETE, start);
+		}
+		
+		if(batch.removed < pts.length) {
+			throw new Exception("Deletion of nonexistent point");
+		}
+	}
+	
+	/**
+	 * @return an array of n null targets
+	 */
+	@SuppressWarnings("unchecked")
+	private LPoint[] newTargets(int n) {
+		return (LPoint[]) new LabeledPoint2D[n];
 	}
 	
 	/**
@@ -668,10 +2305,238 @@ public class XkdTree<LPoint extends LabeledPoint2D> {
 		} 
 		else {
 			MinK<Double, LPoint> minK = new MinK<>(k, Double.MAX_VALUE);
-			root.kNearestNeighbor(center, k, bbox, minK); 
 			
-			return minK.list();
+			if(metrics == null) {
+				root.kNearestNeighbor(center, k, minK); 
+				
+				return minK.list();
+			}
+			
+			long start = System.nanoTime();
+			minK.setMetrics(metrics);
+			root.kNearestNeighbor(center, k, minK);
+			
+			ArrayList<LPoint> result = minK.list();
+			metrics.count(SolverMetrics.Counter.KNN_QUERIES);
+			metrics.time(SolverMetrics.Timer.KNN, start);
+			return result;
+		}
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of a batch of points. The queries are run
+	 * in Morton (Z-order) order of their centers, so consecutive queries of a
+	 * worker descend to the same leaves, and are split into tasks on the given
+	 * pool. The tree is only read, so it must not be modified until the call
+	 * returns. Each answer is the same as that of kNearestNeighbor(center, k)
+	 * @param centers: the points being queried upon
+	 * @param k: the number of neighbors of each query
+	 * @param result: a flat array of at least centers.length * k entries. Entry
+	 * i * k + j receives the j-th nearest neighbor of centers[i], or null if the
+	 * tree holds fewer than j + 1 points
+	 * @param distances: if not null, an array of the same size as result that
+	 * receives the squared distances of the neighbors (infinity for null entries)
+	 * @param pool: the pool that runs the queries, or null to run them on the
+	 * calling thread
+	 * @throws Exception if the result or distances array is too small
+	 */
+	public void kNearestNeighbors(Point2D[] centers, int k, LPoint[] result, double[] distances,
+								  ForkJoinPool pool) throws Exception {
+		if(result.length < (long) centers.length * k || (distances != null && distances.length < result.length)) {
+			throw new Exception("Invalid result array size");
+		}
+		
+		if(centers.length == 0 || k <= 0) {
+			return;
+		}
+		
+		QueryTask task = new QueryTask(centers, mortonOrder(centers), k, result, distances, 0, centers.length);
+		
+		if(pool == null) {
+			task.compute();
+		} else {
+			pool.invoke(task);
+		}
+	}
+	
+	/**
+	 * Finds the points within a distance of a point. Subtrees whose bounding
+	 * box lies inside the disc are reported without testing their points
+	 * @param center: the center of the query disc
+	 * @param radius: the radius of the disc
+	 * @return the points at distance at most radius from center, in the left
+	 * to right order of the tree
+	 */
+	public ArrayList<LPoint> withinRadius(Point2D center, double radius) {
+		ArrayList<LPoint> result = new ArrayList<>();
+		
+		if(numPoints > 0 && radius >= 0) {
+			root.withinRadius(center, radius * radius, result);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Counts the points within a distance of a point. The point counts kept
+	 * by the internal nodes answer every subtree whose bounding box lies
+	 * inside the disc, so only the buckets along the circle are scanned
+	 * @param center: the center of the query disc
+	 * @param radius: the radius of the disc
+	 * @return the number of points at distance at most radius from center
+	 */
+	public int countWithinRadius(Point2D center, double radius) {
+		if(numPoints == 0 || radius < 0) {
+			return 0;
+		}
+		
+		return root.countWithinRadius(center, radius * radius);
+	}
+	
+	/**
+	 * Finds the points in a rectangle
+	 * @param rect: the query rectangle, boundary included
+	 * @return the points in the rectangle, in the left to right order of the tree
+	 */
+	public ArrayList<LPoint> inRectangle(Rectangle2D rect) {
+		ArrayList<LPoint> result = new ArrayList<>();
+		
+		if(numPoints > 0) {
+			root.inRectangle(rect, result);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Counts the points in a rectangle, answering every subtree whose
+	 * bounding box lies inside the rectangle from its point count
+	 * @param rect: the query rectangle, boundary included
+	 * @return the number of points in the rectangle
+	 */
+	public int countInRectangle(Rectangle2D rect) {
+		return (numPoints == 0) ? 0 : root.countInRectangle(rect);
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of every point of the tree, as one
+	 * dual-tree search on the calling thread
+	 * @param k: the number of neighbors of each point (the point itself included)
+	 * @return the table of the neighbors
+	 * @throws Exception: if size() * k entries do not fit in an array
+	 */
+	public NeighborTable<LPoint> allKNearestNeighbors(int k) throws Exception {
+		return allKNearestNeighbors(k, null);
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of every point of the tree. Rather than
+	 * searching from the root once per point, the search pairs a node of
+	 * query points with a node of candidate points, and drops the pair as soon
+	 * as the boxes are farther apart than the k-th distance of every query
+	 * point, so nearby points share their pruning. Subtrees of query points are
+	 * searched as parallel tasks. The tree must not be modified until the call
+	 * returns. Each row holds the same distances as kNearestNeighbor(point, k),
+	 * but equidistant points are ordered (and cut off at the k-th) by number
+	 * rather than by search order
+	 * @param k: the number of neighbors of each point (the point itself included)
+	 * @param pool: the pool that runs the search, or null to run it on the
+	 * calling thread
+	 * @return the table of the neighbors
+	 * @throws Exception: if size() * k entries do not fit in an array
+	 */
+	public NeighborTable<LPoint> allKNearestNeighbors(int k, ForkJoinPool pool) throws Exception {
+		k = Math.max(k, 0);
+		AllNeighbors all = new AllNeighbors(numPoints, k);
+		
+		if(numPoints > 0) {
+			int top = root.flatten(all);
+			
+			if(k == 0) {
+				return all.table();
+			} else if(pool == null) {
+				all.search(top, top, false);
+			} else {
+				pool.invoke(new DualTask(all, top, top));
+			}
+		}
+		
+		return all.table();
+	}
+	
+	/**
+	 * Sorts the indices of a set of points by the Morton keys of their positions
+	 * in the bounding box, which interleave the bits of the two coordinates
+	 * @param centers: the points
+	 * @return the indices of the points in Morton order (ties in index order)
+	 */
+	private int[] mortonOrder(Point2D[] centers) {
+		long[] keys = new long[centers.length];
+		
+		for(int i = 0; i < centers.length; i++) {
+			long code = spread(cell(centers[i], 0)) | (spread(cell(centers[i], 1)) << 1);
+			keys[i] = (code << 32) | i;
+		}
+		
+		Arrays.sort(keys);
+		
+		int[] order = new int[centers.length];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = (int) keys[i];
+		}
+		
+		return order;
+	}
+	
+	/**
+	 * @return the coordinate of a point along a dimension, scaled to the grid of
+	 * the Morton keys and clamped to the bounding box
+	 */
+	private long cell(Point2D pt, int dim) {
+		double width = bbox.getHigh().get(dim) - bbox.getLow().get(dim);
+		double v = (width > 0) ? (pt.get(dim) - bbox.getLow().get(dim)) / width : 0;
+		
+		return (long) Math.max(0, Math.min((1 << MORTON_BITS) - 1, v * (1 << MORTON_BITS)));
+	}
+	
+	/**
+	 * @return the bits of a grid coordinate moved to the even bit positions
+	 */
+	private static long spread(long v) {
+		v = (v | (v << 8)) & 0x00FF00FFL;
+		v = (v | (v << 4)) & 0x0F0F0F0FL;
+		v = (v | (v << 2)) & 0x33333333L;
+		v = (v | (v << 1)) & 0x55555555L;
+		
+		return v;
+	}
+	
+	/**
+	 * Computes the k nearest neighbors of a point into a caller-owned buffer.
+	 * Gives the same neighbors in the same order as kNearestNeighbor(center, k),
+	 * but reusing the buffer from one query to the next avoids allocating a
+	 * MinK, its entries, boxed distances and the result list
+	 * @param center: the point being queried upon in the k nearest neighbor search
+	 * @param k: the number of points being queried upon
+	 * @param result: receives the neighbors in order of increasing distance
+	 * @return the number of neighbors found (k, or fewer if the tree is smaller)
+	 */
+	public int kNearestNeighbor(Point2D center, int k, NeighborBuffer<LPoint> result) {
+		long start = (metrics == null) ? 0 : System.nanoTime();
+		
+		result.reset(k);
+		
+		if(numPoints > 0 && k > 0) {
+			root.kNearestNeighbor(center, result);
+			result.sort();
+		}
+		
+		if(metrics != null) {
+			metrics.count(SolverMetrics.Counter.KNN_QUERIES);
+			metrics.time(SolverMetrics.Timer.KNN, start);
 		}
+		
+		return result.size();
 	}
 }
 
@@ -0,0 +1,126 @@
+/**
+ * @author David Morin
+ * Tests for ConcurrentXkdTree, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentXkdTreeTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		failedUpdateRolledBack();
+		snapshotsIsolatedFromWriter();
+		
+		System.out.println("ConcurrentXkdTreeTest passed");
+	}
+	
+	/**
+	 * An update that throws halfway publishes nothing, and the tree goes on
+	 * from the version before it
+	 */
+	static void failedUpdateRolledBack() throws Exception {
+		ArrayList<KCapFLTest.Demand> pts = KCapFLTest.uniform(new Random(2), 400);
+		ConcurrentXkdTree<KCapFLTest.Demand> tree = new ConcurrentXkdTree<>(4, BBOX);
+		XkdTree<KCapFLTest.Demand> reference = new XkdTree<>(4, BBOX);
+		
+		tree.bulkInsert(new ArrayList<>(pts.subList(0, 300)));
+		reference.bulkInsert(new ArrayList<>(pts.subList(0, 300)));
+		ArrayList<String> before = tree.list();
+		
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.update((t) -> {
+			t.bulkInsert(new ArrayList<>(pts.subList(300, 400)));
+			t.delete(pts.get(0));
+			t.insert(new KCapFLTest.Demand("outside", 2000, 2000));
+		})), "update outside the bounding box accepted");
+		
+		ArrayList<KCapFLTest.Demand> missing = new ArrayList<>(pts.subList(1, 5));
+		missing.add(pts.get(350));
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.deleteAllPoints(missing)), "deletion of a missing point accepted");
+		
+		KCapFLTest.check(tree.size() == 300, "failed updates changed the size to " + tree.size());
+		KCapFLTest.check(tree.list().equals(before), "failed updates were published");
+		
+		// the working tree was rolled back too, so later updates start from it
+		tree.delete(pts.get(7));
+		reference.delete(pts.get(7));
+		KCapFLTest.check(tree.size() == 299, "size " + tree.size() + " after a rollback and a delete");
+		KCapFLTest.check(tree.list().equals(reference.list()), "rolled back tree differs");
+		KCapFLTest.check(tree.find(pts.get(0).getPoint2D()) == pts.get(0), "rolled back delete lost a point");
+		KCapFLTest.check(tree.find(pts.get(350).getPoint2D()) == null, "rolled back insert kept a point");
+	}
+	
+	/**
+	 * While a writer inserts and deletes points in pairs, every snapshot a
+	 * reader takes holds both points of a pair or neither, and keeps giving
+	 * the same answers however far the writer has gone
+	 */
+	static void snapshotsIsolatedFromWriter() throws Exception {
+		ArrayList<KCapFLTest.Demand> pts = KCapFLTest.uniform(new Random(8), 4000);
+		ConcurrentXkdTree<KCapFLTest.Demand> tree = new ConcurrentXkdTree<>(4, BBOX);
+		tree.setRebuildThreshold(0.5);
+		tree.bulkInsert(new ArrayList<>(pts.subList(0, 2000)));
+		
+		XkdTree<KCapFLTest.Demand>.Snapshot first = tree.snapshot();
+		ArrayList<String> firstList = first.list();
+		
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		
+		Thread reader = new Thread(() -> {
+			Random random = new Random(1);
+			
+			try {
+				while(!stop.get()) {
+					XkdTree<KCapFLTest.Demand>.Snapshot s = tree.snapshot();
+					int i = 2000 + 2 * random.nextInt(1000);
+					boolean a = s.find(pts.get(i).getPoint2D()) != null;
+					boolean b = s.find(pts.get(i + 1).getPoint2D()) != null;
+					Point2D q = new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble());
+					
+					KCapFLTest.check(a == b, "snapshot holds half of a pair");
+					KCapFLTest.check(s.size() % 2 == 0, "snapshot of " + s.size() + " points");
+					KCapFLTest.check(s.countInRectangle(BBOX) == s.size(), "snapshot count differs from its size");
+					KCapFLTest.check(s.kNearestNeighbor(q, 5).equals(s.kNearestNeighbor(q, 5)), "snapshot changed between queries");
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		reader.start();
+		
+		try {
+			for(int round = 0; round < 3; round++) {
+				for(int i = 2000; i < 4000; i += 2) {
+					int j = i;
+					tree.update((t) -> {
+						t.insert(pts.get(j));
+						t.insert(pts.get(j + 1));
+					});
+				}
+				
+				for(int i = 2000; i < 4000; i += 2) {
+					ArrayList<KCapFLTest.Demand> pair = new ArrayList<>();
+					pair.add(pts.get(i));
+					pair.add(pts.get(i + 1));
+					tree.deleteAllPoints(pair);
+				}
+			}
+		} finally {
+			stop.set(true);
+			reader.join();
+		}
+		
+		if(failure.get() != null) {
+			throw new AssertionError("reader failed", failure.get());
+		}
+		
+		KCapFLTest.check(first.size() == 2000 && first.list().equals(firstList), "first snapshot changed by the writer");
+	}
+}
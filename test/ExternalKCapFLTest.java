@@ -0,0 +1,85 @@
+/**
+ * @author David Morin
+ * Tests for ExternalKCapFL, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class ExternalKCapFLTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(5);
+		double[][] uniform = new double[8000][];
+		double[][] stacked = new double[8000][];
+		double[][] corner = new double[8000][];
+		
+		for(int i = 0; i < 8000; i++) {
+			uniform[i] = new double[] {1000 * random.nextDouble(), 1000 * random.nextDouble()};
+			
+			// most points on one site, the rest spread around it
+			stacked[i] = (i % 5 == 0) ? new double[] {1000 * random.nextDouble(), 1000 * random.nextDouble()}
+									  : new double[] {250, 750};
+			
+			// every point inside one tile of any grid the solver can use
+			corner[i] = new double[] {0.01 * random.nextDouble(), 0.01 * random.nextDouble()};
+		}
+		
+		solve(uniform, "uniform");
+		solve(stacked, "coincident");
+		solve(corner, "concentrated");
+		
+		System.out.println("ExternalKCapFLTest passed");
+	}
+	
+	/**
+	 * Solves a point file with a memory budget well below its size and checks
+	 * that every point ends up in exactly one full cluster and that no spill
+	 * file is left behind
+	 */
+	static void solve(double[][] coords, String test) throws Exception {
+		Path dir = Files.createTempDirectory("kcapfl-test");
+		Path file = dir.resolve("points.bin");
+		
+		try {
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+				for(double[] c: coords) {
+					out.writeDouble(c[0]);
+					out.writeDouble(c[1]);
+				}
+			}
+			
+			ExternalKCapFL<KCapFLTest.Demand> solver = new ExternalKCapFL<>(4, 8, BBOX, 1000,
+					(index, x, y) -> new KCapFLTest.Demand("p" + index, x, y), dir);
+			HashSet<String> seen = new HashSet<>();
+			
+			long clusters = solver.solve(file, cluster -> {
+				KCapFLTest.check(cluster.size() == 4, test + ": cluster of " + cluster.size() + " points");
+				
+				for(KCapFLTest.Demand p: cluster) {
+					KCapFLTest.check(seen.add(p.getLabel()), test + ": " + p + " is in two clusters");
+				}
+			});
+			
+			KCapFLTest.check(clusters == coords.length / 4, test + ": " + clusters + " clusters");
+			KCapFLTest.check(seen.size() == coords.length, test + ": " + (coords.length - seen.size()) + " points left unassigned");
+			
+			try(Stream<Path> files = Files.list(dir)) {
+				KCapFLTest.check(files.count() == 1, test + ": spill files left behind");
+			}
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(dir);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * @author David Morin
+ * Tests for FlatKdTree against XkdTree, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class FlatKdTreeTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		matchesXkdTree();
+		deleteMatchesXkdTree();
+		nonexistentDeleteRejected();
+		
+		System.out.println("FlatKdTreeTest passed");
+	}
+	
+	/**
+	 * Built by the same bulk and single insertions, both trees have the same
+	 * shape and answer find, nearestNeighbor and kNearestNeighbor with the
+	 * same points, ties included
+	 */
+	static void matchesXkdTree() throws Exception {
+		for(long seed = 0; seed < 12; seed++) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+				ArrayList<KCapFLTest.Demand> pts = points(seed, stacked);
+				int bucketSize = 1 + (int) (seed % 5);
+				
+				XkdTree<KCapFLTest.Demand> reference = new XkdTree<>(bucketSize, BBOX);
+				FlatKdTree<KCapFLTest.Demand> tree = new FlatKdTree<>(bucketSize, BBOX);
+				insert(pts, reference, tree);
+				
+				check(reference, tree, new Random(seed), pts, test);
+			}
+		}
+	}
+	
+	/**
+	 * Deleting by coordinates and by LPoint removes the same points from both
+	 * trees and leaves them with the same shape and answers
+	 */
+	static void deleteMatchesXkdTree() throws Exception {
+		for(long seed = 0; seed < 12; seed++) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+				ArrayList<KCapFLTest.Demand> pts = points(seed, stacked);
+				int bucketSize = 1 + (int) (seed % 5);
+				
+				XkdTree<KCapFLTest.Demand> reference = new XkdTree<>(bucketSize, BBOX);
+				FlatKdTree<KCapFLTest.Demand> tree = new FlatKdTree<>(bucketSize, BBOX);
+				insert(pts, reference, tree);
+				
+				Random random = new Random(seed);
+				
+				for(int i = 0; i < pts.size() * 3 / 4; i++) {
+					KCapFLTest.Demand p = pts.get(i);
+					
+					if(random.nextBoolean()) {
+						reference.delete(p.getPoint2D());
+						tree.delete(p.getPoint2D());
+					} else if(reference.find(p.getPoint2D()) == p) {
+						reference.delete(p);
+						tree.delete(p);
+					}
+					
+					if(i % 50 == 0) {
+						check(reference, tree, random, pts, test + ", " + i + " deletes");
+					}
+				}
+				
+				check(reference, tree, random, pts, test + ", after deletes");
+			}
+		}
+	}
+	
+	/**
+	 * Deleting a point that is not in the tree throws and leaves the tree as it was
+	 */
+	static void nonexistentDeleteRejected() throws Exception {
+		ArrayList<KCapFLTest.Demand> pts = points(4, true);
+		FlatKdTree<KCapFLTest.Demand> tree = new FlatKdTree<>(3, BBOX);
+		tree.bulkInsert(pts);
+		
+		ArrayList<String> before = tree.list();
+		
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.delete(new Point2D(-1, -1))), "deleted a point outside the tree");
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.delete(new KCapFLTest.Demand("other", 0.5, 0.5))),
+				"deleted an LPoint outside the tree");
+		KCapFLTest.check(tree.size() == pts.size() && tree.list().equals(before), "rejected delete changed the tree");
+		
+		for(KCapFLTest.Demand p: pts) {
+			tree.delete(p);
+		}
+		
+		KCapFLTest.check(tree.size() == 0, "points left after deleting all");
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.delete(pts.get(0))), "deleted a point twice");
+	}
+	
+	/**
+	 * @return 400 points, uniform or stacked on a few sites
+	 */
+	static ArrayList<KCapFLTest.Demand> points(long seed, boolean stacked) {
+		return stacked ? KCapFLTest.coincident(new Random(seed), 400, 4) : KCapFLTest.uniform(new Random(seed), 400);
+	}
+	
+	/**
+	 * Inserts the points into both trees, in bulk batches of varying size
+	 * and one at a time
+	 */
+	static void insert(ArrayList<KCapFLTest.Demand> pts, XkdTree<KCapFLTest.Demand> reference,
+					   FlatKdTree<KCapFLTest.Demand> tree) throws Exception {
+		int i = 0;
+		
+		for(int batch = 1; i < pts.size(); batch *= 3) {
+			ArrayList<KCapFLTest.Demand> next = new ArrayList<>(pts.subList(i, Math.min(pts.size(), i + batch)));
+			
+			if(next.size() == 1) {
+				reference.insert(next.get(0));
+				tree.insert(next.get(0));
+			} else {
+				reference.bulkInsert(next);
+				tree.bulkInsert(next);
+			}
+			
+			i += next.size();
+		}
+	}
+	
+	/**
+	 * Compares the shape and the queries of both trees, at random points and
+	 * at the points themselves
+	 */
+	static void check(XkdTree<KCapFLTest.Demand> reference, FlatKdTree<KCapFLTest.Demand> tree, Random random,
+					  ArrayList<KCapFLTest.Demand> pts, String test) {
+		KCapFLTest.check(tree.size() == reference.size(), test + ": " + tree.size() + " points instead of " + reference.size());
+		KCapFLTest.check(tree.list().equals(reference.list()), test + ": list differs");
+		
+		for(int i = 0; i < 60; i++) {
+			Point2D q = (i % 2 == 0) ? new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble())
+					: pts.get(random.nextInt(pts.size())).getPoint2D();
+			
+			KCapFLTest.check(tree.find(q) == reference.find(q), test + ": find " + q + " differs");
+			KCapFLTest.check(tree.nearestNeighbor(q) == reference.nearestNeighbor(q), test + ": nearest neighbor of " + q + " differs");
+			
+			for(int k: new int[] {1, 3, 8, 25}) {
+				ArrayList<KCapFLTest.Demand> expected = reference.kNearestNeighbor(q, k);
+				ArrayList<KCapFLTest.Demand> found = tree.kNearestNeighbor(q, k);
+				
+				KCapFLTest.check(sameOrder(expected, found), test + ": " + k + " nearest neighbors of " + q + " differ");
+			}
+		}
+	}
+	
+	/**
+	 * @return true if both lists hold the same points in the same order
+	 */
+	static boolean sameOrder(ArrayList<KCapFLTest.Demand> expected, ArrayList<KCapFLTest.Demand> found) {
+		if(expected.size() != found.size()) {
+			return false;
+		}
+		
+		for(int i = 0; i < expected.size(); i++) {
+			if(expected.get(i) != found.get(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * @author David Morin
+ * Tests for KCapFLND, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class KCapFLNDTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		matchesKCapFLInTwoDimensions();
+		matchesKCapFLWithOverfetchAndCompact();
+		coincidentPoints();
+		threeDimensions();
+		
+		System.out.println("KCapFLNDTest passed");
+	}
+	
+	/**
+	 * In two dimensions, points in general position give the clusters of
+	 * KCapFL, in the same order
+	 */
+	static void matchesKCapFLInTwoDimensions() throws Exception {
+		for(long seed = 0; seed < 6; seed++) {
+			int capacity = 2 + (int) seed;
+			ArrayList<KCapFLTest.Demand> pts = KCapFLTest.uniform(new Random(seed), capacity * 200);
+			
+			KCapFL<KCapFLTest.Demand> reference = new KCapFL<>(capacity, 4, BBOX);
+			reference.build(pts);
+			
+			KCapFLND<KCapFLTest.Demand> solver = new KCapFLND<>(capacity, 4, new double[] {0, 0}, new double[] {1000, 1000});
+			solver.build(flatten(pts), pts);
+			
+			ArrayList<ArrayList<KCapFLTest.Demand>> clusters = new ArrayList<>();
+			solver.extractAll(clusters::add);
+			
+			KCapFLTest.check(clusters.equals(KCapFLTest.extractAll(reference)), "clusters differ from KCapFL, seed " + seed);
+		}
+	}
+	
+	/**
+	 * The shared candidate heap makes overfetching and compact mode give the
+	 * clusters of KCapFL with the same setting
+	 */
+	static void matchesKCapFLWithOverfetchAndCompact() throws Exception {
+		for(long seed = 0; seed < 4; seed++) {
+			int capacity = 2 + (int) seed;
+			ArrayList<KCapFLTest.Demand> pts = KCapFLTest.uniform(new Random(seed + 100), capacity * 150);
+			
+			for(int mode = 0; mode < 2; mode++) {
+				KCapFL<KCapFLTest.Demand> reference = new KCapFL<>(capacity, 4, BBOX);
+				KCapFLND<KCapFLTest.Demand> solver = new KCapFLND<>(capacity, 4, new double[] {0, 0}, new double[] {1000, 1000});
+				
+				if(mode == 0) {
+					reference.setOverfetch(3);
+					solver.setOverfetch(3);
+				} else {
+					reference.setCompact(true);
+					solver.setCompact(true);
+				}
+				
+				reference.build(pts);
+				solver.build(flatten(pts), pts);
+				
+				ArrayList<ArrayList<KCapFLTest.Demand>> clusters = new ArrayList<>();
+				solver.extractAll(clusters::add);
+				
+				String setting = (mode == 0) ? "overfetch" : "compact";
+				KCapFLTest.check(clusters.equals(KCapFLTest.extractAll(reference)), "clusters differ from KCapFL with " + setting + ", seed " + seed);
+			}
+		}
+	}
+	
+	/**
+	 * More than capacity points at the same location still end up in full,
+	 * disjoint clusters
+	 */
+	static void coincidentPoints() throws Exception {
+		for(int capacity = 2; capacity <= 5; capacity++) {
+			ArrayList<KCapFLTest.Demand> pts = KCapFLTest.coincident(new Random(capacity), capacity * 40, capacity);
+			
+			KCapFLND<KCapFLTest.Demand> solver = new KCapFLND<>(capacity, 4, new double[] {0, 0}, new double[] {1000, 1000});
+			solver.build(flatten(pts), pts);
+			
+			ArrayList<ArrayList<KCapFLTest.Demand>> clusters = new ArrayList<>();
+			solver.extractAll(clusters::add);
+			
+			KCapFLTest.checkPartition(pts, clusters, capacity, "coincident points, capacity " + capacity);
+		}
+	}
+	
+	/**
+	 * In three dimensions every point ends up in exactly one full cluster
+	 */
+	static void threeDimensions() throws Exception {
+		Random random = new Random(11);
+		int capacity = 4, n = 1200;
+		double[] coords = new double[3 * n];
+		ArrayList<Integer> ids = new ArrayList<>(n);
+		
+		for(int i = 0; i < n; i++) {
+			ids.add(i);
+			
+			for(int d = 0; d < 3; d++) {
+				coords[3 * i + d] = 100 * random.nextDouble();
+			}
+		}
+		
+		KCapFLND<Integer> solver = new KCapFLND<>(capacity, 6, new double[] {0, 0, 0}, new double[] {100, 100, 100});
+		solver.build(coords, ids);
+		
+		boolean[] seen = new boolean[n];
+		int count = solver.extractAll(cluster -> {
+			KCapFLTest.check(cluster.size() == capacity, "3-d cluster of " + cluster.size() + " points");
+			
+			for(int id: cluster) {
+				KCapFLTest.check(!seen[id], "3-d point " + id + " is in two clusters");
+				seen[id] = true;
+			}
+		});
+		
+		KCapFLTest.check(count == n / capacity, "3-d extraction gave " + count + " clusters");
+	}
+	
+	/**
+	 * @return the coordinates of the points as one flat array
+	 */
+	static double[] flatten(ArrayList<KCapFLTest.Demand> pts) {
+		double[] coords = new double[2 * pts.size()];
+		
+		for(int i = 0; i < pts.size(); i++) {
+			coords[2 * i] = pts.get(i).getX();
+			coords[2 * i + 1] = pts.get(i).getY();
+		}
+		
+		return coords;
+	}
+}
@@ -0,0 +1,468 @@
+/**
+ * @author David Morin
+ * Tests for KCapFL. There is no test framework in this project, so main runs
+ * every test and throws an AssertionError at the first failed check. Compile
+ * the sources and the tests together with the course framework classes
+ * (Point2D, Rectangle2D, LabeledPoint2D), then run cmsc420_f22.KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+
+public class KCapFLTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	/**
+	 * A labeled demand point
+	 */
+	static class Demand implements LabeledPoint2D {
+		private String label;
+		private Point2D point;
+		
+		/**
+		 * Constructor
+		 */
+		public Demand(String label, double x, double y) {
+			this.label = label;
+			this.point = new Point2D(x, y);
+		}
+		
+		public double getX() {
+			return point.getX();
+		}
+		
+		public double getY() {
+			return point.getY();
+		}
+		
+		public double get(int i) {
+			return point.get(i);
+		}
+		
+		public Point2D getPoint2D() {
+			return point;
+		}
+		
+		public String getLabel() {
+			return label;
+		}
+		
+		public String toString() {
+			return label;
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		coincidentPoints();
+		batchMatchesSequential();
+		parallelBuildMatchesSerial();
+		addDemandMatchesBuild();
+		removeDemandMatchesBuild();
+		sweepMatchesSeparateRuns();
+		budgetRunsOutAndResumes();
+		duplicateDemandRejected();
+		listKeepsInsertionShape();
+		
+		System.out.println("KCapFLTest passed");
+	}
+	
+	/**
+	 * More than capacity points at the same location: a center's candidate can
+	 * then be a cluster of its copies that leaves the center out, and the
+	 * center must still end up in a later cluster
+	 */
+	static void coincidentPoints() throws Exception {
+		for(int capacity = 2; capacity <= 5; capacity++) {
+			for(long seed = 0; seed < 20; seed++) {
+				Random random = new Random(seed);
+				ArrayList<Demand> pts = coincident(random, capacity * (10 + random.nextInt(30)), capacity);
+				
+				KCapFL<Demand> solver = new KCapFL<>(capacity, 4, BBOX);
+				solver.build(pts);
+				
+				checkPartition(pts, extractAll(solver), capacity, "coincident points, capacity " + capacity + ", seed " + seed);
+			}
+		}
+	}
+	
+	/**
+	 * extractBatch gives the clusters of sequential extractCluster calls, in the
+	 * same order, whatever the batch size and whether heap entries are compact.
+	 * With subtree rebuilds, coincident points can break ties differently, so
+	 * there only the partition is checked
+	 */
+	static void batchMatchesSequential() throws Exception {
+		for(long seed = 0; seed < 10; seed++) {
+			Random random = new Random(seed);
+			ArrayList<Demand> pts = (seed % 2 == 0) ? uniform(random, 600) : coincident(random, 600, 3);
+			
+			for(int mode = 0; mode < 4; mode++) {
+				boolean compact = (mode & 1) != 0;
+				double threshold = ((mode & 2) != 0) ? 0.5 : 0;
+				KCapFL<Demand> serial = new KCapFL<>(3, 4, BBOX);
+				serial.setCompact(compact);
+				serial.setRebuildThreshold(threshold);
+				serial.build(pts);
+				ArrayList<ArrayList<Demand>> expected = extractAll(serial);
+				
+				for(int batch: new int[] {1, 4, 64}) {
+					String test = "batch of " + batch + ", compact " + compact + ", rebuild " + threshold + ", seed " + seed;
+					KCapFL<Demand> solver = new KCapFL<>(3, 4, BBOX);
+					solver.setCompact(compact);
+					solver.setRebuildThreshold(threshold);
+					solver.build(pts);
+					
+					ArrayList<ArrayList<Demand>> clusters = new ArrayList<>();
+					ArrayList<ArrayList<Demand>> round;
+					
+					while(!(round = solver.extractBatch(batch)).isEmpty()) {
+						check(round.size() <= batch, test + ": " + round.size() + " clusters returned");
+						clusters.addAll(round);
+					}
+					
+					if(seed % 2 == 0 || threshold == 0) {
+						check(clusters.equals(expected), test + ": clusters differ from sequential extraction");
+					} else {
+						checkPartition(pts, clusters, 3, test);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A parallel build inserts the candidates in the order of the serial build,
+	 * so extraction gives the same clusters in the same order
+	 */
+	static void parallelBuildMatchesSerial() throws Exception {
+		for(long seed = 0; seed < 6; seed++) {
+			Random random = new Random(seed);
+			ArrayList<Demand> pts = (seed % 2 == 0) ? uniform(random, 900) : coincident(random, 900, 3);
+			
+			KCapFL<Demand> serial = new KCapFL<>(3, 4, BBOX);
+			serial.build(pts);
+			
+			KCapFL<Demand> parallel = new KCapFL<>(3, 4, BBOX);
+			parallel.build(pts, 4);
+			
+			check(extractAll(parallel).equals(extractAll(serial)), "parallel build differs from serial, seed " + seed);
+		}
+	}
+	
+	/**
+	 * Adding demand to a built structure, in batches and one point at a time,
+	 * gives the clusters of building the whole point set at once
+	 */
+	static void addDemandMatchesBuild() throws Exception {
+		for(long seed = 0; seed < 6; seed++) {
+			Random random = new Random(seed);
+			int capacity = 2 + (int) seed;
+			ArrayList<Demand> pts = uniform(random, capacity * 150);
+			
+			KCapFL<Demand> full = new KCapFL<>(capacity, 4, BBOX);
+			full.build(pts);
+			ArrayList<ArrayList<Demand>> expected = extractAll(full);
+			
+			for(int overfetch = 1; overfetch <= 3; overfetch += 2) {
+				String test = "addDemand, overfetch " + overfetch + ", seed " + seed;
+				int split = capacity * 100;
+				KCapFL<Demand> solver = new KCapFL<>(capacity, 4, BBOX);
+				solver.setOverfetch(overfetch);
+				solver.build(new ArrayList<>(pts.subList(0, split)));
+				
+				solver.addDemand(new ArrayList<>(pts.subList(split, split + capacity * 30)));
+				for(Demand p: pts.subList(split + capacity * 30, pts.size())) {
+					solver.addDemand(p);
+				}
+				
+				ArrayList<ArrayList<Demand>> clusters = extractAll(solver);
+				
+				checkSameUntilTie(expected, clusters, test);
+				checkPartition(pts, clusters, capacity, test);
+			}
+		}
+	}
+	
+	/**
+	 * Removing demand from a built structure gives the clusters of building
+	 * without the removed points, although the candidates that held them are
+	 * only repaired once they are popped
+	 */
+	static void removeDemandMatchesBuild() throws Exception {
+		for(long seed = 0; seed < 6; seed++) {
+			Random random = new Random(seed);
+			ArrayList<Demand> pts = uniform(random, 900);
+			ArrayList<Demand> kept = new ArrayList<>(pts);
+			ArrayList<Demand> removed = new ArrayList<>();
+			
+			while(removed.size() < 150) {
+				removed.add(kept.remove(random.nextInt(kept.size())));
+			}
+			
+			KCapFL<Demand> full = new KCapFL<>(3, 4, BBOX);
+			full.build(kept);
+			ArrayList<ArrayList<Demand>> expected = extractAll(full);
+			
+			KCapFL<Demand> solver = new KCapFL<>(3, 4, BBOX);
+			solver.build(pts);
+			for(Demand p: removed) {
+				solver.removeDemand(p);
+			}
+			
+			ArrayList<ArrayList<Demand>> clusters = extractAll(solver);
+			String test = "removeDemand, seed " + seed;
+			
+			checkSameUntilTie(expected, clusters, test);
+			checkPartition(kept, clusters, 3, test);
+			check(throwsException(() -> solver.removeDemand(removed.get(0))), test + ": removed point removed twice");
+		}
+	}
+	
+	/**
+	 * A sweep gives, for every capacity, the clusters of a solver built for
+	 * that capacity alone, although it queries the neighbors only once. On
+	 * coincident points, equidistant neighbors come back from the larger query
+	 * in another order, so there the clusters only agree up to the first tie
+	 */
+	static void sweepMatchesSeparateRuns() throws Exception {
+		int[] capacities = {6, 2, 3, 4};
+		
+		for(long seed = 0; seed < 6; seed++) {
+			Random random = new Random(seed);
+			ArrayList<Demand> pts = (seed % 2 == 0) ? uniform(random, 600) : coincident(random, 600, 3);
+			ArrayList<ArrayList<ArrayList<Demand>>> results = KCapFL.sweep(capacities, 4, BBOX, pts);
+			
+			check(results.size() == capacities.length, "sweep gave " + results.size() + " results");
+			
+			for(int i = 0; i < capacities.length; i++) {
+				String test = "sweep, capacity " + capacities[i] + ", seed " + seed;
+				KCapFL<Demand> solver = new KCapFL<>(capacities[i], 4, BBOX);
+				solver.build(pts);
+				
+				ArrayList<ArrayList<Demand>> expected = extractAll(solver);
+				
+				checkPartition(pts, results.get(i), capacities[i], test);
+				
+				if(seed % 2 == 0) {
+					check(results.get(i).equals(expected), test + ": clusters differ from a separate run");
+				} else {
+					checkSameUntilTie(expected, results.get(i), test);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A build and an extraction whose budget runs out say so, and resuming
+	 * them with new budgets gives the clusters of an unlimited run
+	 */
+	static void budgetRunsOutAndResumes() throws Exception {
+		ArrayList<Demand> pts = uniform(new Random(12), 900);
+		KCapFL<Demand> reference = new KCapFL<>(3, 4, BBOX);
+		reference.build(pts);
+		ArrayList<ArrayList<Demand>> expected = extractAll(reference);
+		
+		KCapFL<Demand> solver = new KCapFL<>(3, 4, BBOX);
+		KCapFL.Budget expired = new KCapFL.Budget(0);
+		
+		check(!solver.build(pts, expired), "build with an expired budget completed");
+		check(throwsException(() -> solver.extractCluster(expired)), "extraction with an expired budget returned");
+		check(solver.resumeBuild(new KCapFL.Budget()), "resumed build cut short");
+		
+		ArrayList<ArrayList<Demand>> clusters = new ArrayList<>();
+		KCapFL.Budget budget = new KCapFL.Budget();
+		
+		while(clusters.size() < 100) {
+			clusters.add(solver.extractCluster(budget));
+		}
+		
+		budget.cancel();
+		check(throwsException(() -> solver.extractCluster(budget)), "extraction with a cancelled budget returned");
+		
+		ArrayList<Demand> cluster;
+		while((cluster = solver.extractCluster(new KCapFL.Budget(60000))) != null) {
+			clusters.add(cluster);
+		}
+		
+		check(clusters.equals(expected), "resumed extraction differs from an unlimited run");
+		check(solver.extractWithin((c) -> { }, expired), "finished extraction reported as cut short");
+	}
+	
+	/**
+	 * addDemand rejects a point that is already present, including one given
+	 * twice in the same batch, and leaves the structure unchanged
+	 */
+	static void duplicateDemandRejected() throws Exception {
+		ArrayList<Demand> pts = uniform(new Random(1), 30);
+		KCapFL<Demand> solver = new KCapFL<>(3, 4, BBOX);
+		solver.build(pts);
+		
+		Demand p = new Demand("new", 500, 500);
+		ArrayList<Demand> batch = new ArrayList<>();
+		batch.add(p);
+		batch.add(new Demand("other", 10, 10));
+		batch.add(p);
+		
+		check(throwsException(() -> solver.addDemand(batch)), "duplicate in a batch accepted");
+		check(throwsException(() -> solver.addDemand(pts.get(7))), "present point accepted");
+		
+		batch.remove(2);
+		batch.add(new Demand("third", 20, 20));
+		solver.addDemand(batch);
+		
+		ArrayList<Demand> all = new ArrayList<>(pts);
+		all.addAll(batch);
+		checkPartition(all, extractAll(solver), 3, "after rejected duplicates");
+	}
+	
+	/**
+	 * By default extraction only deletes points from the kdTree, so listKdTree
+	 * shows the tree the points were inserted into, minus the extracted points
+	 */
+	static void listKeepsInsertionShape() throws Exception {
+		ArrayList<Demand> pts = uniform(new Random(4), 900);
+		KCapFL<Demand> solver = new KCapFL<>(3, 4, BBOX);
+		XkdTree<Demand> reference = new XkdTree<>(4, BBOX);
+		
+		solver.build(pts);
+		reference.bulkInsert(pts);
+		
+		for(int i = 0; i < 280; i++) {
+			for(Demand p: solver.extractCluster()) {
+				reference.delete(p);
+			}
+		}
+		
+		check(solver.listKdTree().equals(reference.list()), "kdTree shape changed by extraction");
+	}
+	
+	/**
+	 * An action of a test that may throw
+	 */
+	interface Action {
+		void run() throws Exception;
+	}
+	
+	/**
+	 * @return true if the action throws an Exception
+	 */
+	static boolean throwsException(Action action) {
+		try {
+			action.run();
+		} catch (Exception e) {
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return n points spread uniformly over the bounding box
+	 */
+	static ArrayList<Demand> uniform(Random random, int n) {
+		ArrayList<Demand> pts = new ArrayList<>(n);
+		
+		for(int i = 0; i < n; i++) {
+			pts.add(new Demand("p" + i, 1000 * random.nextDouble(), 1000 * random.nextDouble()));
+		}
+		
+		return pts;
+	}
+	
+	/**
+	 * @return n points stacked on a few sites, about 3 * capacity per site
+	 */
+	static ArrayList<Demand> coincident(Random random, int n, int capacity) {
+		double[][] sites = new double[Math.max(1, n / (3 * capacity))][2];
+		
+		for(double[] s: sites) {
+			s[0] = random.nextInt(1000);
+			s[1] = random.nextInt(1000);
+		}
+		
+		ArrayList<Demand> pts = new ArrayList<>(n);
+		
+		for(int i = 0; i < n; i++) {
+			double[] s = sites[random.nextInt(sites.length)];
+			pts.add(new Demand("p" + i, s[0], s[1]));
+		}
+		
+		return pts;
+	}
+	
+	/**
+	 * @return the clusters of the solver in extraction order
+	 */
+	static ArrayList<ArrayList<Demand>> extractAll(KCapFL<Demand> solver) {
+		ArrayList<ArrayList<Demand>> clusters = new ArrayList<>();
+		ArrayList<Demand> cluster;
+		
+		while((cluster = solver.extractCluster()) != null) {
+			clusters.add(cluster);
+		}
+		
+		return clusters;
+	}
+	
+	/**
+	 * Compares two cluster sequences of the same greedy run. Candidates of
+	 * equal radius (such as two points that are each other's farthest member)
+	 * may leave the heap in either order depending on how it was filled, so
+	 * the sequences must hold the same point sets up to the first such tie,
+	 * where both clusters must have the same radius
+	 */
+	static void checkSameUntilTie(ArrayList<ArrayList<Demand>> expected, ArrayList<ArrayList<Demand>> clusters,
+								  String test) {
+		check(expected.size() == clusters.size(), test + ": " + clusters.size() + " clusters instead of " + expected.size());
+		
+		for(int i = 0; i < expected.size(); i++) {
+			Set<Demand> cluster = Collections.newSetFromMap(new IdentityHashMap<>());
+			cluster.addAll(expected.get(i));
+			
+			if(!cluster.containsAll(clusters.get(i))) {
+				check(radius(expected.get(i)) == radius(clusters.get(i)), test + ": cluster " + i + " differs");
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return the squared radius of a cluster, whose first point is its center
+	 */
+	static double radius(ArrayList<Demand> cluster) {
+		return cluster.get(0).getPoint2D().distanceSq(cluster.get(cluster.size() - 1).getPoint2D());
+	}
+	
+	/**
+	 * Checks that the clusters are full and cover every point exactly once
+	 */
+	static void checkPartition(ArrayList<Demand> pts, ArrayList<ArrayList<Demand>> clusters, int capacity,
+							   String test) {
+		Set<Demand> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		
+		for(ArrayList<Demand> cluster: clusters) {
+			check(cluster.size() == capacity, test + ": cluster of " + cluster.size() + " points");
+			
+			for(Demand p: cluster) {
+				check(seen.add(p), test + ": " + p + " is in two clusters");
+			}
+		}
+		
+		check(seen.size() == pts.size(), test + ": " + (pts.size() - seen.size()) + " points left unassigned");
+	}
+	
+	/**
+	 * Fails the running test if a condition does not hold
+	 */
+	static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * @author David Morin
+ * Tests for KdTreeND against a scan of the points, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class KdTreeNDTest {
+	
+	private static final int[] DIMENSIONS = {1, 2, 3, 5};
+	
+	public static void main(String[] args) throws Exception {
+		queriesMatchScan();
+		deletesMatchScan();
+		nonexistentDeleteRejected();
+		
+		System.out.println("KdTreeNDTest passed");
+	}
+	
+	/**
+	 * Built by bulk and single insertions, with many coincident points, the
+	 * tree answers kNearestNeighbor, nearestNeighbor and find like a scan
+	 */
+	static void queriesMatchScan() throws Exception {
+		for(int dims: DIMENSIONS) {
+			for(int bucketSize = 1; bucketSize <= 4; bucketSize++) {
+				String test = dims + "-d, bucket size " + bucketSize;
+				Random random = new Random(10 * dims + bucketSize);
+				double[] coords = points(random, dims, 400);
+				KdTreeND<Integer> tree = build(dims, bucketSize, coords);
+				
+				checkQueries(tree, coords, live(400), random, test);
+			}
+		}
+	}
+	
+	/**
+	 * Deleting by coordinates and by value removes exactly one point, and the
+	 * remaining points are still found like a scan
+	 */
+	static void deletesMatchScan() throws Exception {
+		for(int dims: DIMENSIONS) {
+			for(int bucketSize = 1; bucketSize <= 4; bucketSize++) {
+				String test = dims + "-d, bucket size " + bucketSize;
+				Random random = new Random(100 * dims + bucketSize);
+				int n = 400;
+				double[] coords = points(random, dims, n);
+				KdTreeND<Integer> tree = build(dims, bucketSize, coords);
+				boolean[] live = live(n);
+				
+				for(int step = 0; tree.size() > 0; step++) {
+					int id = random.nextInt(n);
+					
+					while(!live[id]) {
+						id = (id + 1) % n;
+					}
+					
+					double[] pt = point(coords, dims, id);
+					
+					if(step % 2 == 0) {
+						tree.delete(pt, id);
+						live[id] = false;
+					} else {
+						live[removed(tree, coords, live, pt, test)] = false;
+					}
+					
+					KCapFLTest.check(tree.size() == count(live), test + ": size " + tree.size() + " after step " + step);
+					
+					if(step % 40 == 0) {
+						checkQueries(tree, coords, live, random, test + ", step " + step);
+					}
+				}
+				
+				KCapFLTest.check(tree.size() == 0, test + ": tree not empty after deleting every point");
+				KCapFLTest.check(tree.nearestNeighbor(new double[dims]) == null, test + ": nearest neighbor in an empty tree");
+				KCapFLTest.check(tree.kNearestNeighbor(new double[dims], 3).isEmpty(), test + ": neighbors in an empty tree");
+			}
+		}
+	}
+	
+	/**
+	 * Deleting a point that is not in the tree throws and leaves the tree as it was
+	 */
+	static void nonexistentDeleteRejected() throws Exception {
+		for(int dims: DIMENSIONS) {
+			String test = dims + "-d";
+			Random random = new Random(dims);
+			double[] coords = points(random, dims, 100);
+			KdTreeND<Integer> tree = build(dims, 3, coords);
+			
+			double[] off = point(coords, dims, 0);
+			off[dims - 1] += 0.5;
+			double[] first = point(coords, dims, 0);
+			
+			KCapFLTest.check(KCapFLTest.throwsException(() -> tree.delete(off)), test + ": deleted a point off the grid");
+			KCapFLTest.check(KCapFLTest.throwsException(() -> tree.delete(first, 100)), test + ": deleted a value not in the tree");
+			KCapFLTest.check(tree.size() == 100, test + ": failed deletes changed the size");
+			
+			tree.delete(first, 0);
+			KCapFLTest.check(KCapFLTest.throwsException(() -> tree.delete(first, 0)), test + ": deleted a value twice");
+			
+			boolean[] live = live(100);
+			live[0] = false;
+			checkQueries(tree, coords, live, random, test + ", after failed deletes");
+		}
+	}
+	
+	/**
+	 * Deletes any point at pt and finds out which one was removed: the
+	 * remaining points at pt are exactly its nearest neighbors at distance 0
+	 * @return the id of the removed point
+	 */
+	static int removed(KdTreeND<Integer> tree, double[] coords, boolean[] live, double[] pt, String test) throws Exception {
+		int dims = pt.length;
+		ArrayList<Integer> before = new ArrayList<>();
+		
+		for(int i = 0; i < live.length; i++) {
+			if(live[i] && distanceSq(coords, dims, i, pt) == 0) {
+				before.add(i);
+			}
+		}
+		
+		tree.delete(pt);
+		ArrayList<Integer> after = tree.kNearestNeighbor(pt, before.size() - 1);
+		before.removeAll(after);
+		
+		KCapFLTest.check(before.size() == 1 && after.size() + 1 == count(live, coords, pt), test + ": delete by coordinates removed " + before);
+		return before.get(0);
+	}
+	
+	/**
+	 * Checks kNearestNeighbor and nearestNeighbor at random points and at
+	 * points of the tree, and find at every live point and off the grid
+	 */
+	static void checkQueries(KdTreeND<Integer> tree, double[] coords, boolean[] live, Random random, String test) {
+		int dims = tree.dimensions();
+		int n = live.length;
+		
+		for(int query = 0; query < 30; query++) {
+			double[] q = new double[dims];
+			
+			if(query % 2 == 0) {
+				for(int d = 0; d < dims; d++) {
+					q[d] = grid(dims) * random.nextDouble();
+				}
+			} else {
+				q = point(coords, dims, random.nextInt(n));
+			}
+			
+			double[] distances = distances(coords, live, q);
+			
+			for(int k: new int[] {1, 4, 17, n + 1}) {
+				ArrayList<Integer> found = tree.kNearestNeighbor(q, k);
+				String message = test + ", query " + query + ", k = " + k;
+				
+				KCapFLTest.check(found.size() == Math.min(k, distances.length), message + ": " + found.size() + " neighbors");
+				
+				boolean[] seen = new boolean[n];
+				for(int i = 0; i < found.size(); i++) {
+					int id = found.get(i);
+					
+					KCapFLTest.check(live[id] && !seen[id], message + ": neighbor " + id + " is deleted or repeated");
+					KCapFLTest.check(distanceSq(coords, dims, id, q) == distances[i], message + ": neighbor " + i + " is at the wrong distance");
+					seen[id] = true;
+				}
+			}
+			
+			Integer nearest = tree.nearestNeighbor(q);
+			KCapFLTest.check(distances.length == 0 ? nearest == null : distanceSq(coords, dims, nearest, q) == distances[0], test + ", query " + query + ": wrong nearest neighbor");
+		}
+		
+		for(int i = 0; i < n; i++) {
+			if(live[i]) {
+				double[] pt = point(coords, dims, i);
+				Integer found = tree.find(pt);
+				
+				KCapFLTest.check(found != null && live[found] && distanceSq(coords, dims, found, pt) == 0, test + ": find of point " + i + " gave " + found);
+			}
+		}
+		
+		double[] off = new double[dims];
+		Arrays.fill(off, 0.5);
+		KCapFLTest.check(tree.find(off) == null, test + ": found a point off the grid");
+	}
+	
+	/**
+	 * @return a tree holding the points, the first half bulk inserted and the
+	 * rest inserted one at a time, each with its index as its value
+	 */
+	static KdTreeND<Integer> build(int dims, int bucketSize, double[] coords) throws Exception {
+		double[] high = new double[dims];
+		Arrays.fill(high, grid(dims));
+		KdTreeND<Integer> tree = new KdTreeND<>(bucketSize, new double[dims], high);
+		
+		int n = coords.length / dims;
+		int half = n / 2;
+		ArrayList<Integer> values = new ArrayList<>();
+		
+		for(int i = 0; i < half; i++) {
+			values.add(i);
+		}
+		
+		tree.bulkInsert(Arrays.copyOf(coords, half * dims), values);
+		
+		for(int i = half; i < n; i++) {
+			tree.insert(point(coords, dims, i), i);
+		}
+		
+		return tree;
+	}
+	
+	/**
+	 * @return n points with integer coordinates on a grid small enough that
+	 * many of them coincide
+	 */
+	static double[] points(Random random, int dims, int n) {
+		double[] coords = new double[n * dims];
+		
+		for(int i = 0; i < coords.length; i++) {
+			coords[i] = random.nextInt(grid(dims) + 1);
+		}
+		
+		return coords;
+	}
+	
+	/**
+	 * @return the largest coordinate of the grid in this number of dimensions
+	 */
+	static int grid(int dims) {
+		return (dims == 1) ? 40 : (dims == 2) ? 12 : 4;
+	}
+	
+	/**
+	 * @return the sorted squared distances from q to the live points
+	 */
+	static double[] distances(double[] coords, boolean[] live, double[] q) {
+		double[] distances = new double[count(live)];
+		int size = 0;
+		
+		for(int i = 0; i < live.length; i++) {
+			if(live[i]) {
+				distances[size++] = distanceSq(coords, q.length, i, q);
+			}
+		}
+		
+		Arrays.sort(distances);
+		return distances;
+	}
+	
+	/**
+	 * @return the squared distance from point i to q
+	 */
+	static double distanceSq(double[] coords, int dims, int i, double[] q) {
+		double distance = 0;
+		
+		for(int d = 0; d < dims; d++) {
+			double diff = coords[i * dims + d] - q[d];
+			distance += diff * diff;
+		}
+		
+		return distance;
+	}
+	
+	/**
+	 * @return the coordinates of point i
+	 */
+	static double[] point(double[] coords, int dims, int i) {
+		return Arrays.copyOfRange(coords, i * dims, (i + 1) * dims);
+	}
+	
+	/**
+	 * @return n flags, all set
+	 */
+	static boolean[] live(int n) {
+		boolean[] live = new boolean[n];
+		Arrays.fill(live, true);
+		return live;
+	}
+	
+	/**
+	 * @return the number of live points
+	 */
+	static int count(boolean[] live) {
+		int count = 0;
+		
+		for(boolean flag: live) {
+			if(flag) {
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return the number of live points at pt
+	 */
+	static int count(boolean[] live, double[] coords, double[] pt) {
+		int count = 0;
+		
+		for(int i = 0; i < live.length; i++) {
+			if(live[i] && distanceSq(coords, pt.length, i, pt) == 0) {
+				count++;
+			}
+		}
+		
+		return count;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * @author David Morin
+ * Tests for TiledKCapFL, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class TiledKCapFLTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		pointsOnTileEdges();
+		
+		System.out.println("TiledKCapFLTest passed");
+	}
+	
+	/**
+	 * Points that lie within rounding of a tile edge are put in a tile whose
+	 * box contains them, for every grid size
+	 */
+	static void pointsOnTileEdges() throws Exception {
+		Random random = new Random(9);
+		
+		for(int tiles = 2; tiles <= 12; tiles++) {
+			ArrayList<KCapFLTest.Demand> pts = new ArrayList<>();
+			
+			for(int i = 1; i < tiles; i++) {
+				double edge = 1000.0 * i / tiles;
+				
+				for(double v: new double[] {Math.nextDown(edge), edge, Math.nextUp(edge)}) {
+					pts.add(new KCapFLTest.Demand("x" + pts.size(), v, 1000 * random.nextDouble()));
+					pts.add(new KCapFLTest.Demand("y" + pts.size(), 1000 * random.nextDouble(), v));
+				}
+			}
+			
+			while(pts.size() % 3 != 0 || pts.size() < 300) {
+				pts.add(new KCapFLTest.Demand("u" + pts.size(), 1000 * random.nextDouble(), 1000 * random.nextDouble()));
+			}
+			
+			TiledKCapFL<KCapFLTest.Demand> solver = new TiledKCapFL<>(3, 4, BBOX, tiles, tiles, 2);
+			ArrayList<ArrayList<KCapFLTest.Demand>> clusters = solver.solve(pts, false).getClusters();
+			
+			KCapFLTest.checkPartition(pts, clusters, 3, tiles + " tiles");
+		}
+	}
+}
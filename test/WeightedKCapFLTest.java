@@ -0,0 +1,94 @@
+/**
+ * @author David Morin
+ * Tests for WeightedKCapFL, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class WeightedKCapFLTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		distinctPointsMatchKCapFL();
+		coincidentPoints();
+		pointOutsideBoxRejected();
+		
+		System.out.println("WeightedKCapFLTest passed");
+	}
+	
+	/**
+	 * Without co-located points every site holds one unit of demand, and the
+	 * clusters are those of KCapFL, in the same order
+	 */
+	static void distinctPointsMatchKCapFL() throws Exception {
+		for(long seed = 0; seed < 20; seed++) {
+			int capacity = 2 + (int) (seed % 10);
+			ArrayList<KCapFLTest.Demand> pts = KCapFLTest.uniform(new Random(seed), capacity * 100);
+			
+			KCapFL<KCapFLTest.Demand> reference = new KCapFL<>(capacity, 4, BBOX);
+			reference.build(pts);
+			
+			WeightedKCapFL<KCapFLTest.Demand> solver = new WeightedKCapFL<>(capacity, 4, BBOX, 0);
+			solver.build(pts);
+			
+			KCapFLTest.check(solver.siteCount() == pts.size(), "distinct points merged, seed " + seed);
+			KCapFLTest.check(extractAll(solver).equals(KCapFLTest.extractAll(reference)), "clusters differ from KCapFL, seed " + seed);
+		}
+	}
+	
+	/**
+	 * Points stacked on a few sites, merged exactly or by grid cell, end up in
+	 * full, disjoint clusters
+	 */
+	static void coincidentPoints() throws Exception {
+		for(int capacity = 2; capacity <= 9; capacity++) {
+			for(double resolution: new double[] {0, 5}) {
+				String test = "capacity " + capacity + ", resolution " + resolution;
+				ArrayList<KCapFLTest.Demand> pts = KCapFLTest.coincident(new Random(capacity), capacity * 60, capacity);
+				
+				WeightedKCapFL<KCapFLTest.Demand> solver = new WeightedKCapFL<>(capacity, 4, BBOX, resolution);
+				solver.build(pts);
+				
+				KCapFLTest.check(solver.siteCount() < pts.size(), test + ": co-located points not merged");
+				KCapFLTest.checkPartition(pts, extractAll(solver), capacity, test);
+			}
+		}
+	}
+	
+	/**
+	 * A build with a point outside the bounding box throws and leaves the
+	 * structure as it was
+	 */
+	static void pointOutsideBoxRejected() throws Exception {
+		ArrayList<KCapFLTest.Demand> pts = KCapFLTest.coincident(new Random(3), 300, 3);
+		ArrayList<KCapFLTest.Demand> bad = new ArrayList<>(pts.subList(0, 299));
+		bad.add(new KCapFLTest.Demand("outside", -1, 500));
+		
+		WeightedKCapFL<KCapFLTest.Demand> solver = new WeightedKCapFL<>(3, 4, BBOX, 0);
+		
+		KCapFLTest.check(KCapFLTest.throwsException(() -> solver.build(bad)), "point outside the bounding box accepted");
+		KCapFLTest.check(solver.siteCount() == 0, "rejected build left " + solver.siteCount() + " sites");
+		KCapFLTest.check(solver.extractCluster() == null, "rejected build left demand");
+		
+		solver.build(pts);
+		KCapFLTest.checkPartition(pts, extractAll(solver), 3, "build after a rejected build");
+	}
+	
+	/**
+	 * @return the clusters of the solver in extraction order
+	 */
+	static ArrayList<ArrayList<KCapFLTest.Demand>> extractAll(WeightedKCapFL<KCapFLTest.Demand> solver) {
+		ArrayList<ArrayList<KCapFLTest.Demand>> clusters = new ArrayList<>();
+		ArrayList<KCapFLTest.Demand> cluster;
+		
+		while((cluster = solver.extractCluster()) != null) {
+			clusters.add(cluster);
+		}
+		
+		return clusters;
+	}
+}
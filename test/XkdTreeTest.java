@@ -0,0 +1,821 @@
+/**
+ * @author David Morin
+ * Tests for XkdTree, run like KCapFLTest
+ */
+
+package cmsc420_f22; // Do not delete this line
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class XkdTreeTest {
+	
+	private static final Rectangle2D BBOX = new Rectangle2D(new Point2D(0, 0), new Point2D(1000, 1000));
+	
+	public static void main(String[] args) throws Exception {
+		deleteCountsNoFinds();
+		oversizedNeighborTableRejected();
+		bulkLoadMatchesPerLevelSort();
+		sparseSubtreesRebuiltWhileDeleting();
+		tightBoxSearchesMatchScan();
+		neighborBufferMatchesMinK();
+		batchedQueriesMatchSingleQueries();
+		allNeighborsMatchScan();
+		rangeQueriesMatchScan();
+		bucketCoordinatesFollowPoints();
+		
+		System.out.println("XkdTreeTest passed");
+	}
+	
+	/**
+	 * Deletions go straight to the nodes, so with metrics attached they count
+	 * as deletes and never as finds
+	 */
+	static void deleteCountsNoFinds() throws Exception {
+		ArrayList<KCapFLTest.Demand> pts = KCapFLTest.uniform(new Random(3), 200);
+		XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(4, BBOX);
+		SolverMetrics metrics = new SolverMetrics();
+		
+		tree.bulkInsert(pts);
+		tree.setMetrics(metrics);
+		
+		for(int i = 0; i < 100; i++) {
+			tree.delete(pts.get(i).getPoint2D());
+		}
+		
+		for(int i = 100; i < 200; i++) {
+			tree.delete(pts.get(i));
+		}
+		
+		KCapFLTest.check(metrics.getCount(SolverMetrics.Counter.DELETES) == 200, "deletes not counted");
+		KCapFLTest.check(metrics.getCount(SolverMetrics.Counter.FINDS) == 0, "delete counted as a find");
+		KCapFLTest.check(tree.size() == 0, "points left after deleting all");
+	}
+	
+	/**
+	 * A neighbor table of more than Integer.MAX_VALUE entries is rejected
+	 * instead of being allocated with an overflowed size
+	 */
+	static void oversizedNeighborTableRejected() throws Exception {
+		XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(4, BBOX);
+		tree.bulkInsert(KCapFLTest.uniform(new Random(6), 3));
+		
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.allKNearestNeighbors(Integer.MAX_VALUE / 2)),
+				"overflowed neighbor table accepted");
+		KCapFLTest.check(tree.allKNearestNeighbors(3).size() == 3, "small neighbor table rejected");
+	}
+	
+	/**
+	 * Bulk loads of growing batches, into an empty tree and into existing
+	 * buckets and cuts, give the same list() as sorting the points at every
+	 * level, with and without duplicate points
+	 */
+	static void bulkLoadMatchesPerLevelSort() throws Exception {
+		for(long seed = 0; seed < 10; seed++) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+				ArrayList<KCapFLTest.Demand> pts = stacked ? KCapFLTest.coincident(new Random(seed), 500, 3)
+						: KCapFLTest.uniform(new Random(seed), 500);
+				int bucketSize = 1 + (int) (seed % 4);
+				
+				XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(bucketSize, BBOX);
+				SortedTree expected = new SortedTree(bucketSize);
+				
+				int i = 0;
+				for(int batch = 1; i < pts.size(); batch *= 4) {
+					ArrayList<KCapFLTest.Demand> next = new ArrayList<>(pts.subList(i, Math.min(pts.size(), i + batch)));
+					
+					tree.bulkInsert(next);
+					expected.bulkInsert(next);
+					i += next.size();
+					
+					KCapFLTest.check(tree.list().equals(expected.list()), test + ": list differs after " + i + " points");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * With a rebuild threshold set, deleting most of the points one at a time
+	 * and in batches keeps the live and built counts in step with the tree,
+	 * and list() and kNearestNeighbor still see exactly the remaining points
+	 */
+	static void sparseSubtreesRebuiltWhileDeleting() throws Exception {
+		for(double threshold: new double[] {0.25, 0.5, 0.9}) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "threshold " + threshold + (stacked ? ", coincident" : ", uniform");
+				Random random = new Random((long) (threshold * 100));
+				ArrayList<KCapFLTest.Demand> pts = stacked ? KCapFLTest.coincident(random, 600, 3)
+						: KCapFLTest.uniform(random, 600);
+				
+				XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(3, BBOX);
+				tree.setRebuildThreshold(threshold);
+				tree.bulkInsert(pts);
+				
+				ArrayList<KCapFLTest.Demand> remaining = new ArrayList<>(pts);
+				Collections.shuffle(remaining, random);
+				
+				while(remaining.size() > 30) {
+					if(random.nextInt(4) == 0) {
+						ArrayList<KCapFLTest.Demand> batch = new ArrayList<>(remaining.subList(remaining.size() - 20, remaining.size()));
+						remaining.subList(remaining.size() - 20, remaining.size()).clear();
+						tree.deleteAllPoints(batch);
+					} else {
+						KCapFLTest.Demand p = remaining.remove(remaining.size() - 1);
+						
+						if(stacked) {
+							tree.delete(p);
+						} else {
+							tree.delete(p.getPoint2D());
+						}
+					}
+					
+					KCapFLTest.check(tree.countsConsistent(), test + ": counts out of step with " + remaining.size() + " points left");
+					
+					if(remaining.size() % 50 < 20) {
+						checkPoints(tree, remaining, random, test + ", " + remaining.size() + " points left");
+					}
+				}
+				
+				checkPoints(tree, remaining, random, test + ", after deletes");
+			}
+		}
+	}
+	
+	/**
+	 * With the points in small clusters, the bounding boxes of the nodes are
+	 * much tighter than their cells. kNearestNeighbor and nearestNeighbor find
+	 * the distances of a scan from queries near and far from the clusters,
+	 * while the boxes grow with insertions and shrink with deletions
+	 */
+	static void tightBoxSearchesMatchScan() throws Exception {
+		for(long seed = 0; seed < 6; seed++) {
+			Random random = new Random(seed);
+			ArrayList<KCapFLTest.Demand> pts = new ArrayList<>();
+			
+			for(int c = 0; c < 6; c++) {
+				double x = 10 + 980 * random.nextDouble(), y = 10 + 980 * random.nextDouble();
+				
+				for(int i = 0; i < 50; i++) {
+					double dx = (i % 5 == 0) ? 0 : 10 * random.nextDouble() - 5;
+					double dy = (i % 5 == 0) ? 0 : 10 * random.nextDouble() - 5;
+					pts.add(new KCapFLTest.Demand("p" + pts.size(), x + dx, y + dy));
+				}
+			}
+			
+			Collections.shuffle(pts, random);
+			
+			XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(1 + (int) (seed % 4), BBOX);
+			ArrayList<KCapFLTest.Demand> inserted = new ArrayList<>();
+			
+			for(int i = 0; i < pts.size(); i += 60) {
+				ArrayList<KCapFLTest.Demand> batch = new ArrayList<>(pts.subList(i, i + 60));
+				tree.bulkInsert(batch);
+				inserted.addAll(batch);
+				checkSearches(tree, inserted, random, "seed " + seed + ", " + inserted.size() + " points");
+			}
+			
+			while(inserted.size() > 20) {
+				for(int i = 0; i < 40; i++) {
+					tree.delete(inserted.remove(random.nextInt(inserted.size())));
+				}
+				
+				checkSearches(tree, inserted, random, "seed " + seed + ", " + inserted.size() + " points left");
+			}
+		}
+	}
+	
+	/**
+	 * A reused NeighborBuffer, and a snapshot that queries through one, find
+	 * the same neighbors as the MinK search in the same order, ties included,
+	 * with the distances of the points
+	 */
+	static void neighborBufferMatchesMinK() throws Exception {
+		XkdTree.NeighborBuffer<KCapFLTest.Demand> buffer = new XkdTree.NeighborBuffer<>();
+		
+		for(long seed = 0; seed < 8; seed++) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+				Random random = new Random(seed);
+				ArrayList<KCapFLTest.Demand> pts = stacked ? KCapFLTest.coincident(random, 400, 4)
+						: KCapFLTest.uniform(random, 400);
+				
+				XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(1 + (int) (seed % 5), BBOX);
+				tree.bulkInsert(pts);
+				
+				for(int round = 0; round < 3; round++) {
+					XkdTree<KCapFLTest.Demand>.Snapshot snapshot = tree.snapshot();
+					
+					for(int i = 0; i < 40; i++) {
+						Point2D q = (i % 2 == 0) ? new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble())
+								: pts.get(random.nextInt(pts.size())).getPoint2D();
+						
+						for(int k: new int[] {1, 3, 8, 40, tree.size() + 2}) {
+							String query = test + ", round " + round + ": " + k + " nearest neighbors of " + q;
+							ArrayList<KCapFLTest.Demand> expected = tree.kNearestNeighbor(q, k);
+							
+							KCapFLTest.check(tree.kNearestNeighbor(q, k, buffer) == expected.size(), query + ": wrong count");
+							KCapFLTest.check(FlatKdTreeTest.sameOrder(expected, buffer.toList()), query + ": buffer differs from MinK");
+							KCapFLTest.check(FlatKdTreeTest.sameOrder(expected, snapshot.kNearestNeighbor(q, k)), query + ": snapshot differs from MinK");
+							
+							for(int j = 0; j < buffer.size(); j++) {
+								KCapFLTest.check(buffer.distanceSq(j) == q.distanceSq(buffer.get(j).getPoint2D()), query + ": wrong distance");
+							}
+						}
+					}
+					
+					// deletions and list() reorder the buckets, and with them the ties
+					for(int i = 0; i < 100; i++) {
+						tree.delete(pts.remove(random.nextInt(pts.size())));
+					}
+					
+					tree.list();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Batched queries, run in Morton order on the calling thread or on a
+	 * pool, give every center the neighbors of a single query in the same
+	 * order, with their distances, and pad short answers with null entries
+	 */
+	static void batchedQueriesMatchSingleQueries() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		
+		try {
+			for(long seed = 0; seed < 8; seed++) {
+				for(boolean stacked: new boolean[] {false, true}) {
+					String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+					Random random = new Random(seed);
+					ArrayList<KCapFLTest.Demand> pts = stacked ? KCapFLTest.coincident(random, 300, 4)
+							: KCapFLTest.uniform(random, 300);
+					
+					XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(1 + (int) (seed % 5), BBOX);
+					tree.bulkInsert(pts);
+					
+					Point2D[] centers = new Point2D[200];
+					for(int i = 0; i < centers.length; i++) {
+						centers[i] = (i % 3 == 0) ? pts.get(random.nextInt(pts.size())).getPoint2D()
+								: (i % 3 == 1) ? new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble())
+								: centers[random.nextInt(i)];
+					}
+					
+					for(int k: new int[] {1, 4, 9, pts.size() + 3}) {
+						for(ForkJoinPool runner: new ForkJoinPool[] {null, pool}) {
+							String batch = test + ", k " + k + (runner == null ? ", serial" : ", pool");
+							KCapFLTest.Demand[] result = new KCapFLTest.Demand[centers.length * k];
+							double[] distances = new double[result.length];
+							
+							tree.kNearestNeighbors(centers, k, result, distances, runner);
+							
+							for(int i = 0; i < centers.length; i++) {
+								ArrayList<KCapFLTest.Demand> expected = tree.kNearestNeighbor(centers[i], k);
+								
+								for(int j = 0; j < k; j++) {
+									KCapFLTest.Demand p = (j < expected.size()) ? expected.get(j) : null;
+									double d = (p == null) ? Double.POSITIVE_INFINITY : centers[i].distanceSq(p.getPoint2D());
+									
+									KCapFLTest.check(result[i * k + j] == p && distances[i * k + j] == d,
+											batch + ": neighbor " + j + " of center " + i + " differs from a single query");
+								}
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(4, BBOX);
+		Point2D[] centers = {new Point2D(1, 1), new Point2D(2, 2)};
+		
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.kNearestNeighbors(centers, 3, new KCapFLTest.Demand[5], null, null)),
+				"short result array accepted");
+		KCapFLTest.check(KCapFLTest.throwsException(() -> tree.kNearestNeighbors(centers, 3, new KCapFLTest.Demand[6], new double[5], null)),
+				"short distance array accepted");
+	}
+	
+	/**
+	 * Every row of the dual-tree neighbor table, serial or on a pool, holds
+	 * the distances of kNearestNeighbor from its point, and is exactly the
+	 * first k points of a scan ordered by distance and then by number
+	 */
+	static void allNeighborsMatchScan() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(3);
+		
+		try {
+			for(long seed = 0; seed < 8; seed++) {
+				for(boolean stacked: new boolean[] {false, true}) {
+					String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+					Random random = new Random(seed);
+					ArrayList<KCapFLTest.Demand> pts = stacked ? KCapFLTest.coincident(random, 250, 4)
+							: KCapFLTest.uniform(random, 250);
+					
+					XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(1 + (int) (seed % 5), BBOX);
+					tree.bulkInsert(pts);
+					
+					for(int i = 0; i < 50; i++) {
+						tree.delete(pts.remove(random.nextInt(pts.size())));
+					}
+					
+					XkdTree.NeighborTable<KCapFLTest.Demand> numbers = tree.allKNearestNeighbors(0);
+					int[][] scan = scan(numbers);
+					
+					for(int k: new int[] {1, 2, 6, 13, pts.size() + 2}) {
+						XkdTree.NeighborTable<KCapFLTest.Demand> serial = tree.allKNearestNeighbors(k);
+						XkdTree.NeighborTable<KCapFLTest.Demand> parallel = tree.allKNearestNeighbors(k, pool);
+						
+						checkTable(tree, serial, numbers, scan, pts, k, test + ", k " + k + ", serial");
+						checkTable(tree, parallel, numbers, scan, pts, k, test + ", k " + k + ", pool");
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * @return for every point number, all the point numbers ordered by
+	 * distance from the point and then by number
+	 */
+	static int[][] scan(XkdTree.NeighborTable<KCapFLTest.Demand> table) {
+		int n = table.size();
+		int[][] scan = new int[n][];
+		
+		for(int i = 0; i < n; i++) {
+			Point2D p = table.getPoint(i).getPoint2D();
+			ArrayList<Integer> order = new ArrayList<>(n);
+			
+			for(int j = 0; j < n; j++) {
+				order.add(j);
+			}
+			
+			Collections.sort(order, Comparator.comparingDouble((Integer j) -> p.distanceSq(table.getPoint(j).getPoint2D()))
+					.thenComparingInt(j -> j));
+			scan[i] = order.stream().mapToInt(Integer::intValue).toArray();
+		}
+		
+		return scan;
+	}
+	
+	/**
+	 * Checks a neighbor table of the points of a tree against a scan
+	 * @param numbers: a table of the same tree, which numbers its points as the scan does
+	 * @param scan: the scan of the numbers table
+	 */
+	static void checkTable(XkdTree<KCapFLTest.Demand> tree, XkdTree.NeighborTable<KCapFLTest.Demand> table,
+						   XkdTree.NeighborTable<KCapFLTest.Demand> numbers, int[][] scan,
+						   ArrayList<KCapFLTest.Demand> pts, int k, String test) {
+		int n = pts.size();
+		Set<KCapFLTest.Demand> numbered = Collections.newSetFromMap(new IdentityHashMap<>());
+		
+		for(int i = 0; i < table.size(); i++) {
+			numbered.add(table.getPoint(i));
+			KCapFLTest.check(table.getPoint(i) == numbers.getPoint(i), test + ": point " + i + " numbered differently");
+		}
+		
+		KCapFLTest.check(table.size() == n && table.getK() == k && numbered.size() == n && pts.containsAll(numbered),
+				test + ": the table does not number the points of the tree");
+		
+		for(int i = 0; i < n; i++) {
+			Point2D p = table.getPoint(i).getPoint2D();
+			ArrayList<Double> expected = distances(p, tree.kNearestNeighbor(p, k));
+			ArrayList<Double> found = new ArrayList<>();
+			
+			for(int j = 0; j < k; j++) {
+				int neighbor = (j < n) ? scan[i][j] : -1;
+				double distance = (j < n) ? p.distanceSq(table.getPoint(neighbor).getPoint2D()) : Double.POSITIVE_INFINITY;
+				
+				KCapFLTest.check(table.getNeighbor(i, j) == neighbor && table.getDistanceSq(i, j) == distance,
+						test + ": neighbor " + j + " of point " + i + " differs from a scan");
+				
+				if(j < n) {
+					found.add(distance);
+				}
+			}
+			
+			KCapFLTest.check(found.equals(expected), test + ": row " + i + " differs from kNearestNeighbor");
+			KCapFLTest.check(table.getNeighbors(i).size() == Math.min(k, n), test + ": row " + i + " has the wrong length");
+		}
+	}
+	
+	/**
+	 * withinRadius, countWithinRadius, inRectangle and countInRectangle agree
+	 * with a scan on points with integer and real coordinates, for circles and
+	 * rectangles whose boundary passes through points, rectangles that hold no
+	 * points or are larger than the bounding box, and while deletions, partial
+	 * rebuilds and new insertions change the counts kept by the nodes
+	 */
+	static void rangeQueriesMatchScan() throws Exception {
+		for(long seed = 0; seed < 6; seed++) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+				Random random = new Random(seed);
+				ArrayList<KCapFLTest.Demand> pts = stacked ? KCapFLTest.coincident(random, 400, 3)
+						: KCapFLTest.uniform(random, 400);
+				ArrayList<KCapFLTest.Demand> later = new ArrayList<>(pts.subList(300, 400));
+				pts.subList(300, 400).clear();
+				
+				XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(1 + (int) (seed % 4), BBOX);
+				tree.setRebuildThreshold(0.5);
+				tree.bulkInsert(pts);
+				checkRanges(tree, pts, random, test);
+				
+				for(int round = 0; round < 4; round++) {
+					for(int i = 0; i < 30; i++) {
+						tree.delete(pts.remove(random.nextInt(pts.size())));
+					}
+					
+					ArrayList<KCapFLTest.Demand> batch = new ArrayList<>();
+					for(int i = 0; i < 30; i++) {
+						batch.add(pts.remove(random.nextInt(pts.size())));
+					}
+					
+					tree.deleteAllPoints(batch);
+					KCapFLTest.check(tree.countsConsistent(), test + ": counts out of step after round " + round);
+					checkRanges(tree, pts, random, test + ", " + pts.size() + " points left");
+				}
+				
+				tree.bulkInsert(later);
+				pts.addAll(later);
+				checkRanges(tree, pts, random, test + ", after reinserting");
+			}
+		}
+	}
+	
+	/**
+	 * The coordinate arrays of every bucket hold the coordinates of its points,
+	 * in order, through single and bulk insertions that split buckets, deletes
+	 * by coordinates, by point and in batches that shrink them, partial
+	 * rebuilds, the reordering done by list, and restores of snapshots whose
+	 * nodes the tree has since copied
+	 */
+	static void bucketCoordinatesFollowPoints() throws Exception {
+		for(long seed = 0; seed < 8; seed++) {
+			for(boolean stacked: new boolean[] {false, true}) {
+				String test = "seed " + seed + (stacked ? ", coincident" : ", uniform");
+				Random random = new Random(seed);
+				ArrayList<KCapFLTest.Demand> pool = stacked ? KCapFLTest.coincident(random, 600, 3)
+						: KCapFLTest.uniform(random, 600);
+				ArrayList<KCapFLTest.Demand> pts = new ArrayList<>(pool.subList(0, 200));
+				pool.subList(0, 200).clear();
+				
+				XkdTree<KCapFLTest.Demand> tree = new XkdTree<>(1 + (int) (seed % 5), BBOX);
+				tree.setRebuildThreshold(0.5);
+				tree.bulkInsert(pts);
+				
+				XkdTree<KCapFLTest.Demand>.Snapshot saved = null;
+				ArrayList<KCapFLTest.Demand> savedPts = null;
+				
+				for(int step = 0; step < 300; step++) {
+					int op = random.nextInt(7);
+					
+					if(op == 0 && !pool.isEmpty()) {
+						KCapFLTest.Demand p = pool.remove(pool.size() - 1);
+						tree.insert(p);
+						pts.add(p);
+					} else if(op == 1 && pool.size() >= 10) {
+						ArrayList<KCapFLTest.Demand> batch = new ArrayList<>(pool.subList(pool.size() - 10, pool.size()));
+						pool.subList(pool.size() - 10, pool.size()).clear();
+						tree.bulkInsert(batch);
+						pts.addAll(batch);
+					} else if(op == 2 && pts.size() >= 10) {
+						ArrayList<KCapFLTest.Demand> batch = new ArrayList<>();
+						for(int i = 0; i < 10; i++) {
+							batch.add(pts.remove(random.nextInt(pts.size())));
+						}
+						tree.deleteAllPoints(batch);
+					} else if(op == 3) {
+						tree.list();
+					} else if(op == 4) {
+						saved = tree.snapshot();
+						savedPts = new ArrayList<>(pts);
+					} else if(op == 5 && saved != null) {
+						tree.restore(saved);
+						pts = new ArrayList<>(savedPts);
+					} else if(!pts.isEmpty()) {
+						KCapFLTest.Demand p = pts.remove(random.nextInt(pts.size()));
+						
+						if(stacked) {
+							tree.delete(p);
+						} else {
+							tree.delete(p.getPoint2D());
+						}
+					}
+					
+					KCapFLTest.check(tree.coordinatesConsistent(), test + ": bucket coordinates out of step after step " + step + ", operation " + op);
+					
+					if(step % 100 == 0) {
+						checkPoints(tree, pts, random, test + ", step " + step);
+					}
+				}
+				
+				checkPoints(tree, pts, random, test + ", after all steps");
+			}
+		}
+	}
+	
+	/**
+	 * Compares the range and count queries of a tree with a scan of its points
+	 */
+	static void checkRanges(XkdTree<KCapFLTest.Demand> tree, ArrayList<KCapFLTest.Demand> pts, Random random,
+							String test) {
+		for(int i = 0; i < 40; i++) {
+			KCapFLTest.Demand p = pts.get(random.nextInt(pts.size()));
+			Point2D center;
+			double radius;
+			
+			switch(i % 5) {
+				case 0: // a circle through p, with an exact radius if p has integer coordinates
+					int t = 1 + random.nextInt(20);
+					center = new Point2D(p.getX() + 3 * t, p.getY() - 4 * t);
+					radius = Math.sqrt(center.distanceSq(p.getPoint2D()));
+					break;
+				case 1: // only the points at p
+					center = p.getPoint2D();
+					radius = 0;
+					break;
+				case 2: // every point
+					center = new Point2D(500, 500);
+					radius = 2000;
+					break;
+				case 3:
+					center = new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble());
+					radius = -1;
+					break;
+				default:
+					center = new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble());
+					radius = 300 * random.nextDouble();
+			}
+			
+			ArrayList<KCapFLTest.Demand> expected = new ArrayList<>();
+			for(KCapFLTest.Demand q: pts) {
+				if(radius >= 0 && q.getPoint2D().distanceSq(center) <= radius * radius) {
+					expected.add(q);
+				}
+			}
+			
+			String query = test + ": radius " + radius + " around " + center;
+			KCapFLTest.check(sameSet(expected, tree.withinRadius(center, radius)), query + " lists other points than a scan");
+			KCapFLTest.check(tree.countWithinRadius(center, radius) == expected.size(), query + " counts other points than a scan");
+		}
+		
+		for(int i = 0; i < 40; i++) {
+			KCapFLTest.Demand p = pts.get(random.nextInt(pts.size()));
+			KCapFLTest.Demand q = pts.get(random.nextInt(pts.size()));
+			Rectangle2D rect;
+			
+			switch(i % 5) {
+				case 0: // corners on two points
+					rect = new Rectangle2D(new Point2D(Math.min(p.getX(), q.getX()), Math.min(p.getY(), q.getY())),
+										   new Point2D(Math.max(p.getX(), q.getX()), Math.max(p.getY(), q.getY())));
+					break;
+				case 1: // only the points at p
+					rect = new Rectangle2D(p.getPoint2D(), p.getPoint2D());
+					break;
+				case 2: // larger than the bounding box
+					rect = new Rectangle2D(new Point2D(-500, -500), new Point2D(1500, 1500));
+					break;
+				case 3: // outside the bounding box, so empty
+					rect = new Rectangle2D(new Point2D(-20, 1001), new Point2D(-1, 1200));
+					break;
+				default:
+					double x = 1000 * random.nextDouble(), y = 1000 * random.nextDouble();
+					rect = new Rectangle2D(new Point2D(x, y), new Point2D(x + 200 * random.nextDouble(), y + 200 * random.nextDouble()));
+			}
+			
+			ArrayList<KCapFLTest.Demand> expected = new ArrayList<>();
+			for(KCapFLTest.Demand r: pts) {
+				if(r.getX() >= rect.getLow().getX() && r.getX() <= rect.getHigh().getX()
+				   && r.getY() >= rect.getLow().getY() && r.getY() <= rect.getHigh().getY()) {
+					expected.add(r);
+				}
+			}
+			
+			String query = test + ": rectangle " + rect.getLow() + " " + rect.getHigh();
+			KCapFLTest.check(sameSet(expected, tree.inRectangle(rect)), query + " lists other points than a scan");
+			KCapFLTest.check(tree.countInRectangle(rect) == expected.size(), query + " counts other points than a scan");
+		}
+	}
+	
+	/**
+	 * @return true if both lists hold the same points, each once, in any order
+	 */
+	static boolean sameSet(ArrayList<KCapFLTest.Demand> expected, ArrayList<KCapFLTest.Demand> found) {
+		Set<KCapFLTest.Demand> set = Collections.newSetFromMap(new IdentityHashMap<>());
+		set.addAll(found);
+		
+		return found.size() == expected.size() && set.size() == found.size() && set.containsAll(expected);
+	}
+	
+	/**
+	 * Compares kNearestNeighbor and nearestNeighbor with a scan, at random
+	 * points, at the corners of the bounding box and at the points themselves
+	 */
+	static void checkSearches(XkdTree<KCapFLTest.Demand> tree, ArrayList<KCapFLTest.Demand> pts, Random random,
+							  String test) {
+		ArrayList<Point2D> queries = new ArrayList<>();
+		queries.add(BBOX.getLow());
+		queries.add(BBOX.getHigh());
+		queries.add(new Point2D(0, 1000));
+		queries.add(new Point2D(1000, 0));
+		
+		for(int i = 0; i < 15; i++) {
+			queries.add(new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble()));
+			queries.add(pts.get(random.nextInt(pts.size())).getPoint2D());
+		}
+		
+		for(Point2D q: queries) {
+			for(int k: new int[] {1, 2, 7, 30, pts.size(), pts.size() + 3}) {
+				KCapFLTest.check(distances(q, tree.kNearestNeighbor(q, k)).equals(distances(q, nearest(pts, q, k))),
+						test + ": " + k + " nearest neighbors of " + q + " differ from a scan");
+			}
+			
+			KCapFLTest.check(q.distanceSq(tree.nearestNeighbor(q).getPoint2D()) == q.distanceSq(nearest(pts, q, 1).get(0).getPoint2D()),
+					test + ": nearest neighbor of " + q + " differs from a scan");
+		}
+	}
+	
+	/**
+	 * Checks that the tree holds exactly the given points: list() shows each
+	 * of them once, and kNearestNeighbor finds the same distances as a scan
+	 */
+	static void checkPoints(XkdTree<KCapFLTest.Demand> tree, ArrayList<KCapFLTest.Demand> pts, Random random,
+							String test) {
+		KCapFLTest.check(tree.size() == pts.size(), test + ": " + tree.size() + " points instead of " + pts.size());
+		
+		ArrayList<String> listed = new ArrayList<>();
+		Matcher matcher = Pattern.compile("\\{([^}]*)\\}").matcher(String.join(" ", tree.list()));
+		
+		while(matcher.find()) {
+			listed.add(matcher.group(1));
+		}
+		
+		ArrayList<String> labels = new ArrayList<>();
+		for(KCapFLTest.Demand p: pts) {
+			labels.add(p.getLabel());
+		}
+		
+		Collections.sort(listed);
+		Collections.sort(labels);
+		KCapFLTest.check(listed.equals(labels), test + ": list() shows other points");
+		
+		for(int i = 0; i < 20; i++) {
+			Point2D q = new Point2D(1000 * random.nextDouble(), 1000 * random.nextDouble());
+			int k = 1 + random.nextInt(Math.min(10, pts.size()));
+			
+			ArrayList<KCapFLTest.Demand> found = tree.kNearestNeighbor(q, k);
+			Set<KCapFLTest.Demand> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+			distinct.addAll(found);
+			
+			KCapFLTest.check(found.size() == k && distinct.size() == k && pts.containsAll(found),
+					test + ": " + k + " nearest neighbors of " + q + " are not remaining points");
+			KCapFLTest.check(distances(q, found).equals(distances(q, nearest(pts, q, k))),
+					test + ": " + k + " nearest neighbors of " + q + " differ from a scan");
+		}
+	}
+	
+	/**
+	 * @return the k points nearest to q, by a scan
+	 */
+	static ArrayList<KCapFLTest.Demand> nearest(ArrayList<KCapFLTest.Demand> pts, Point2D q, int k) {
+		ArrayList<KCapFLTest.Demand> sorted = new ArrayList<>(pts);
+		Collections.sort(sorted, Comparator.comparingDouble(p -> p.getPoint2D().distanceSq(q)));
+		
+		return new ArrayList<>(sorted.subList(0, Math.min(k, sorted.size())));
+	}
+	
+	/**
+	 * @return the squared distances from q to the points, in order
+	 */
+	static ArrayList<Double> distances(Point2D q, ArrayList<KCapFLTest.Demand> pts) {
+		ArrayList<Double> result = new ArrayList<>(pts.size());
+		
+		for(KCapFLTest.Demand p: pts) {
+			result.add(q.distanceSq(p.getPoint2D()));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * The bulk insertion of XkdTree as it was before presorting: every internal
+	 * node sorts its points by its cutting dimension, and every overflowing
+	 * bucket sorts its points by its widest dimension and splits them at the median
+	 */
+	static class SortedTree {
+		int bucketSize;
+		int cutDim = -1; // -1 for a bucket
+		double cutVal;
+		SortedTree left, right;
+		ArrayList<KCapFLTest.Demand> points = new ArrayList<>();
+		
+		/**
+		 * Constructor of an empty bucket
+		 */
+		SortedTree(int bucketSize) {
+			this.bucketSize = bucketSize;
+		}
+		
+		/**
+		 * Inserts the points into the subtree, splitting the bucket if it overflows
+		 */
+		void bulkInsert(ArrayList<KCapFLTest.Demand> pts) {
+			if(cutDim >= 0) {
+				sort(pts, cutDim);
+				
+				int index = 0;
+				while(index < pts.size() && pts.get(index).getPoint2D().get(cutDim) < cutVal) {
+					index++;
+				}
+				
+				if(index > 0) {
+					left.bulkInsert(new ArrayList<>(pts.subList(0, index)));
+				}
+				
+				if(index < pts.size()) {
+					right.bulkInsert(new ArrayList<>(pts.subList(index, pts.size())));
+				}
+				
+				return;
+			}
+			
+			points.addAll(pts);
+			
+			if(points.size() <= bucketSize) {
+				return;
+			}
+			
+			double lowX = Double.MAX_VALUE, lowY = Double.MAX_VALUE, highX = -Double.MAX_VALUE, highY = -Double.MAX_VALUE;
+			
+			for(KCapFLTest.Demand p: points) {
+				lowX = Math.min(lowX, p.getX());
+				lowY = Math.min(lowY, p.getY());
+				highX = Math.max(highX, p.getX());
+				highY = Math.max(highY, p.getY());
+			}
+			
+			cutDim = (highX - lowX >= highY - lowY) ? 0 : 1;
+			sort(points, cutDim);
+			
+			int median = points.size() / 2;
+			cutVal = (points.size() % 2 == 0)
+					? (points.get(median).getPoint2D().get(cutDim) + points.get(median - 1).getPoint2D().get(cutDim)) / 2
+					: points.get(median).getPoint2D().get(cutDim);
+			
+			left = new SortedTree(bucketSize);
+			right = new SortedTree(bucketSize);
+			left.bulkInsert(new ArrayList<>(points.subList(0, median)));
+			right.bulkInsert(new ArrayList<>(points.subList(median, points.size())));
+			points = null;
+		}
+		
+		/**
+		 * Sorts points lexicographically by dim, then by the other coordinate
+		 */
+		static void sort(ArrayList<KCapFLTest.Demand> pts, int dim) {
+			Collections.sort(pts, Comparator.comparingDouble((KCapFLTest.Demand p) -> p.getPoint2D().get(dim))
+					.thenComparingDouble(p -> p.getPoint2D().get(1 - dim)));
+		}
+		
+		/**
+		 * @return the list() of XkdTree, which leaves every bucket sorted by label
+		 */
+		ArrayList<String> list() {
+			ArrayList<String> list = new ArrayList<>();
+			list(list);
+			return list;
+		}
+		
+		/**
+		 * Adds the subtree in preorder, right subtree first
+		 */
+		void list(ArrayList<String> list) {
+			if(cutDim >= 0) {
+				list.add((cutDim == 0 ? "(x=" : "(y=") + cutVal + ")");
+				right.list(list);
+				left.list(list);
+				return;
+			}
+			
+			Collections.sort(points, Comparator.comparing(KCapFLTest.Demand::getLabel));
+			
+			String added = "[ ";
+			for(KCapFLTest.Demand p: points) {
+				added += ("{" + p.toString() + "} ");
+			}
+			
+			list.add(added + "]");
+		}
+	}
+}